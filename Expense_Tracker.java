@@ -1,14 +1,92 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableColumn;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.geom.Arc2D;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-public class ExpenseTracker {
+class ExpenseTracker {
   
     static class User implements Serializable {
+        // What the JVM derived for this class when users.ser was first written.
+        private static final long serialVersionUID = -3403111984222381045L;
+
         private String username;
         private String password;
 
@@ -17,103 +95,6453 @@ public class ExpenseTracker {
             this.password = password;
         }
 
-        public String getUsername() {
-            return username;
+        public String getUsername() {
+            return username;
+        }
+
+        public boolean checkPassword(String inputPassword) {
+            return this.password.equals(inputPassword);
+        }
+    }
+
+    // Registrations are appended to users.log one record at a time; the whole
+    // log is read once per process into a shared in-memory index, so logging
+    // in is a hash lookup and registering is a single append.
+    static class UserManager {
+        private static final String USER_FILE = "users.ser";
+        private static final String USER_LOG = "users.log";
+        private static final int MAGIC = 0x55534C47;
+        private static final int VERSION = 1;
+        private static UserManager instance;
+
+        private final File logFile;
+        private final Map<String, User> users = new ConcurrentHashMap<>();
+        private DataOutputStream log;
+
+        public static synchronized UserManager getInstance() {
+            if (instance == null) {
+                instance = new UserManager(new File(USER_LOG), new File(USER_FILE));
+            }
+            return instance;
+        }
+
+        UserManager(File logFile, File legacyFile) {
+            this.logFile = logFile;
+            try {
+                if (logFile.exists()) {
+                    loadUsers();
+                } else {
+                    importLegacyUsers(legacyFile);
+                }
+            } catch (IOException e) {
+                Metrics.reportError("users", e);
+            }
+        }
+
+        private void loadUsers() throws IOException {
+            long validLength = 0;
+            try (ExpenseJournal.CountingInputStream counter = new ExpenseJournal.CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(logFile)))) {
+                DataInputStream in = new DataInputStream(counter);
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unrecognised user log format: " + logFile);
+                }
+                validLength = counter.count;
+                while (true) {
+                    String username = in.readUTF();
+                    String password = in.readUTF();
+                    users.put(username, new User(username, password));
+                    validLength = counter.count;
+                }
+            } catch (EOFException e) {
+                // end of log, or a torn final record that is dropped below
+            }
+            if (validLength < logFile.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+
+        private void importLegacyUsers(File legacyFile) throws IOException {
+            if (legacyFile.exists()) {
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacyFile))) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, User> legacy = (Map<String, User>) ois.readObject();
+                    users.putAll(legacy);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Corrupt user file: " + legacyFile, e);
+                }
+            }
+            openLog();
+            for (User user : users.values()) {
+                appendUser(user);
+            }
+        }
+
+        private void openLog() throws IOException {
+            boolean fresh = !logFile.exists() || logFile.length() == 0;
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+            if (fresh) {
+                log.writeInt(MAGIC);
+                log.writeInt(VERSION);
+                log.flush();
+            }
+        }
+
+        // Every record is flushed, so the file length is where this one starts.
+        // A failed write is cut back off and the log reopened on the next
+        // append, so a later record never follows a torn one.
+        private void appendUser(User user) throws IOException {
+            if (log == null) {
+                openLog();
+            }
+            long length = logFile.length();
+            try {
+                log.writeUTF(user.getUsername());
+                log.writeUTF(user.password);
+                log.flush();
+            } catch (IOException e) {
+                try {
+                    log.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+                log = null;
+                try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                    raf.setLength(length);
+                }
+                throw e;
+            }
+        }
+
+        // The user is only published once their record is in the log, so an
+        // account that was not saved never exists, not even until a restart.
+        public synchronized boolean registerUser(String username, String password) throws IOException {
+            Metrics.AuthenticationEvent event = new Metrics.AuthenticationEvent();
+            event.begin();
+            long start = System.nanoTime();
+            boolean registered = false;
+            try {
+                if (!users.containsKey(username)) {
+                    User user = new User(username, password);
+                    appendUser(user);
+                    users.put(username, user);
+                    registered = true;
+                }
+            } finally {
+                Metrics.getInstance().histogram("auth.register").record(System.nanoTime() - start);
+                event.operation = "register";
+                event.success = registered;
+                event.commit();
+            }
+            return registered;
+        }
+
+        public boolean authenticateUser(String username, String password) {
+            Metrics.AuthenticationEvent event = new Metrics.AuthenticationEvent();
+            event.begin();
+            long start = System.nanoTime();
+            User user = users.get(username);
+            boolean authenticated = user != null && user.checkPassword(password);
+            Metrics metrics = Metrics.getInstance();
+            metrics.histogram("auth.authenticate").record(System.nanoTime() - start);
+            if (!authenticated) {
+                metrics.counter("auth.failures").increment();
+            }
+            event.operation = "authenticate";
+            event.success = authenticated;
+            event.commit();
+            return authenticated;
+        }
+    }
+
+    // Amounts are whole cents. The serialized form keeps the original
+    // (category, double amount, date) fields so old expense_data.ser files load.
+    static class Expense implements Serializable {
+        private static final long serialVersionUID = -61278688707130144L;
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("category", String.class),
+                new ObjectStreamField("amount", double.class),
+                new ObjectStreamField("date", String.class)};
+
+        // stable identity across devices, assigned by the store; 0 until stored
+        private long id;
+        private String category;
+        private long amountCents;
+        private String date;
+
+        public Expense(String category, long amountCents, String date) {
+            this(0, category, amountCents, date);
+        }
+
+        public Expense(long id, String category, long amountCents, String date) {
+            this.id = id;
+            this.category = category;
+            this.amountCents = amountCents;
+            this.date = date;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public long getAmountCents() {
+            return amountCents;
+        }
+
+        // For display only; arithmetic stays in cents.
+        public double getAmount() {
+            return ExpenseStore.fromCents(amountCents);
+        }
+
+        public String getDate() {
+            return date;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("category", category);
+            fields.put("amount", ExpenseStore.fromCents(amountCents));
+            fields.put("date", date);
+            out.writeFields();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            category = (String) fields.get("category", null);
+            amountCents = ExpenseStore.toCents(fields.get("amount", 0.0));
+            date = (String) fields.get("date", null);
+        }
+
+        @Override
+        public String toString() {
+            return category + " | " + ExpenseStore.formatCents(amountCents) + " | " + date;
+        }
+    }
+
+    // Interns category names so the store only keeps a small int per row.
+    // Every method holds the dictionary's lock, since readers resolve names and
+    // prefixes on other threads while the writer interns.
+    static class CategoryDictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final ArrayList<String> names = new ArrayList<>();
+        // lower-cased names in order, with their ids; rebuilt after new interns
+        private String[] sortedKeys = new String[0];
+        private int[] sortedIds = new int[0];
+
+        public synchronized int intern(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+            }
+            return id;
+        }
+
+        public synchronized int lookup(String name) {
+            Integer id = ids.get(name);
+            return id == null ? -1 : id;
+        }
+
+        public synchronized String name(int id) {
+            return names.get(id);
+        }
+
+        public synchronized int size() {
+            return names.size();
+        }
+
+        // Ids of the categories whose name starts with prefix, ignoring case.
+        public synchronized int[] idsWithPrefix(String prefix) {
+            sortIfStale();
+            String key = prefix.toLowerCase(Locale.ROOT);
+            int from = Arrays.binarySearch(sortedKeys, key);
+            if (from < 0) {
+                from = -from - 1;
+            } else {
+                while (from > 0 && sortedKeys[from - 1].equals(key)) {
+                    from--;
+                }
+            }
+            int to = from;
+            while (to < sortedKeys.length && sortedKeys[to].startsWith(key)) {
+                to++;
+            }
+            return Arrays.copyOfRange(sortedIds, from, to);
+        }
+
+        // Position of every id in case-insensitive name order, used to sort by category.
+        public synchronized int[] ranks() {
+            sortIfStale();
+            int[] ranks = new int[sortedIds.length];
+            for (int i = 0; i < sortedIds.length; i++) {
+                ranks[sortedIds[i]] = i;
+            }
+            return ranks;
+        }
+
+        private void sortIfStale() {
+            if (sortedIds.length == names.size()) {
+                return;
+            }
+            Integer[] order = new Integer[names.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int byKey = names.get(a).toLowerCase(Locale.ROOT).compareTo(names.get(b).toLowerCase(Locale.ROOT));
+                return byKey != 0 ? byKey : names.get(a).compareTo(names.get(b));
+            });
+            String[] keys = new String[order.length];
+            int[] sorted = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sorted[i] = order[i];
+                keys[i] = names.get(order[i]).toLowerCase(Locale.ROOT);
+            }
+            sortedKeys = keys;
+            sortedIds = sorted;
+        }
+
+        public synchronized CategoryDictionary copy() {
+            CategoryDictionary copy = new CategoryDictionary();
+            for (String name : names) {
+                copy.intern(name);
+            }
+            return copy;
+        }
+    }
+
+    static class IntList {
+        private int[] values;
+        private int size;
+
+        public IntList() {
+            this(8);
+        }
+
+        public IntList(int capacity) {
+            values = new int[Math.max(capacity, 1)];
+        }
+
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        // Keeps the list ascending; appends of a new largest value stay O(1).
+        public void insertSorted(int value) {
+            int index = size;
+            if (size > 0 && values[size - 1] > value) {
+                index = Arrays.binarySearch(values, 0, size, value);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+        }
+
+        public boolean removeSorted(int value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        // Arrays.binarySearch over an ascending list.
+        public int binarySearch(int value) {
+            return Arrays.binarySearch(values, 0, size, value);
+        }
+
+        public boolean removeValue(int value) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (values[i] == value) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int get(int index) {
+            return values[index];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        static IntList of(int[] values, int size) {
+            IntList list = new IntList(0);
+            list.values = values;
+            list.size = size;
+            return list;
+        }
+    }
+
+    // Sorted day -> physical rows index over the store's date column.
+    static class DateIndex {
+        private final TreeMap<Integer, IntList> byDay = new TreeMap<>();
+
+        public void add(int epochDay, int row) {
+            byDay.computeIfAbsent(epochDay, day -> new IntList(2)).insertSorted(row);
+        }
+
+        public void remove(int epochDay, int row) {
+            IntList rows = byDay.get(epochDay);
+            if (rows != null && rows.removeSorted(row) && rows.isEmpty()) {
+                byDay.remove(epochDay);
+            }
+        }
+
+        // Rows dated within [fromDay, toDay], ordered by date.
+        public IntList rowsBetween(int fromDay, int toDay) {
+            IntList result = new IntList();
+            if (fromDay > toDay) {
+                return result;
+            }
+            for (IntList rows : byDay.subMap(fromDay, true, toDay, true).values()) {
+                for (int i = 0; i < rows.size(); i++) {
+                    result.add(rows.get(i));
+                }
+            }
+            return result;
+        }
+
+        // Every row by date, undated rows first; same-day rows stay in ledger order.
+        public IntList rowsInOrder(boolean descending, int size) {
+            int[] result = new int[size];
+            int count = 0;
+            for (IntList rows : (descending ? byDay.descendingMap() : byDay).values()) {
+                for (int i = 0; i < rows.size(); i++) {
+                    result[count++] = rows.get(i);
+                }
+            }
+            return IntList.of(result, count);
+        }
+    }
+
+    // Category -> physical rows posting lists. Each list stays ascending, which
+    // is ledger order, so a selective category query never touches other rows.
+    static class CategoryIndex {
+        private IntList[] byCategory = new IntList[16];
+
+        public void add(int categoryId, int row) {
+            if (categoryId >= byCategory.length) {
+                byCategory = Arrays.copyOf(byCategory, Math.max(categoryId + 1, byCategory.length * 2));
+            }
+            if (byCategory[categoryId] == null) {
+                byCategory[categoryId] = new IntList();
+            }
+            byCategory[categoryId].insertSorted(row);
+        }
+
+        public void remove(int categoryId, int row) {
+            if (categoryId < byCategory.length && byCategory[categoryId] != null) {
+                byCategory[categoryId].removeSorted(row);
+            }
+        }
+
+        public int count(int categoryId) {
+            return categoryId < byCategory.length && byCategory[categoryId] != null
+                    ? byCategory[categoryId].size() : 0;
+        }
+
+        // Rows of all the given categories, merged back into ledger order.
+        public IntList rows(int[] categoryIds) {
+            int total = 0;
+            for (int id : categoryIds) {
+                total += count(id);
+            }
+            int[] rows = new int[total];
+            int size = 0;
+            for (int id : categoryIds) {
+                int count = count(id);
+                for (int i = 0; i < count; i++) {
+                    rows[size++] = byCategory[id].get(i);
+                }
+            }
+            if (categoryIds.length > 1) {
+                Arrays.sort(rows);
+            }
+            return IntList.of(rows, size);
+        }
+
+        // Every row grouped by category in the order given, ledger order within each.
+        public IntList rowsInOrder(int[] categoryIds, boolean descending, int size) {
+            int[] result = new int[size];
+            int count = 0;
+            for (int i = 0; i < categoryIds.length; i++) {
+                int id = categoryIds[descending ? categoryIds.length - 1 - i : i];
+                for (int j = 0; j < count(id); j++) {
+                    result[count++] = byCategory[id].get(j);
+                }
+            }
+            return IntList.of(result, count);
+        }
+    }
+
+    // Expense id -> physical row, open addressing with linear probing over two
+    // parallel primitive arrays. Ids are never 0, so 0 marks a free slot.
+    static class IdIndex {
+        private long[] ids = new long[16];
+        private int[] rows = new int[16];
+        private int size;
+
+        private int slotOf(long id) {
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (ids.length - 1);
+        }
+
+        public void put(long id, int row) {
+            if (size * 2 >= ids.length) {
+                long[] oldIds = ids;
+                int[] oldRows = rows;
+                ids = new long[oldIds.length * 2];
+                rows = new int[oldIds.length * 2];
+                size = 0;
+                for (int i = 0; i < oldIds.length; i++) {
+                    if (oldIds[i] != 0) {
+                        put(oldIds[i], oldRows[i]);
+                    }
+                }
+            }
+            int slot = slotOf(id);
+            while (ids[slot] != 0 && ids[slot] != id) {
+                slot = (slot + 1) & (ids.length - 1);
+            }
+            if (ids[slot] == 0) {
+                size++;
+            }
+            ids[slot] = id;
+            rows[slot] = row;
+        }
+
+        // The row holding id, or -1.
+        public int get(long id) {
+            int slot = slotOf(id);
+            while (ids[slot] != 0) {
+                if (ids[slot] == id) {
+                    return rows[slot];
+                }
+                slot = (slot + 1) & (ids.length - 1);
+            }
+            return -1;
+        }
+
+        // Backward-shift deletion, so lookups never need tombstones.
+        public void remove(long id) {
+            int mask = ids.length - 1;
+            int slot = slotOf(id);
+            while (ids[slot] != id) {
+                if (ids[slot] == 0) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            size--;
+            int gap = slot;
+            for (int next = (gap + 1) & mask; ids[next] != 0; next = (next + 1) & mask) {
+                int home = slotOf(ids[next]);
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    ids[gap] = ids[next];
+                    rows[gap] = rows[next];
+                    gap = next;
+                }
+            }
+            ids[gap] = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    // What the table shows: a case-insensitive category prefix plus optional
+    // inclusive amount and date ranges. Immutable, so the view can tell when a
+    // new filter only narrows the previous one and refine that result instead.
+    static final class LedgerFilter {
+        static final LedgerFilter ALL = new LedgerFilter("", Long.MIN_VALUE, Long.MAX_VALUE,
+                Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+        final String categoryPrefix;
+        final long minCents;
+        final long maxCents;
+        final int fromDay;
+        final int toDay;
+
+        private LedgerFilter(String categoryPrefix, long minCents, long maxCents, int fromDay, int toDay) {
+            this.categoryPrefix = categoryPrefix;
+            this.minCents = minCents;
+            this.maxCents = maxCents;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+        }
+
+        public LedgerFilter withCategoryPrefix(String prefix) {
+            return new LedgerFilter(prefix.trim().toLowerCase(Locale.ROOT), minCents, maxCents, fromDay, toDay);
+        }
+
+        public LedgerFilter withAmounts(long minCents, long maxCents) {
+            return new LedgerFilter(categoryPrefix, minCents, maxCents, fromDay, toDay);
+        }
+
+        public LedgerFilter withDays(int fromDay, int toDay) {
+            return new LedgerFilter(categoryPrefix, minCents, maxCents, fromDay, toDay);
+        }
+
+        public LedgerFilter withoutDays() {
+            return withDays(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        public boolean hasCategory() {
+            return !categoryPrefix.isEmpty();
+        }
+
+        public boolean hasAmounts() {
+            return minCents != Long.MIN_VALUE || maxCents != Long.MAX_VALUE;
+        }
+
+        // Undated rows only pass when no date range is set.
+        public boolean hasDays() {
+            return fromDay != Integer.MIN_VALUE || toDay != Integer.MAX_VALUE;
+        }
+
+        public boolean isAll() {
+            return !hasCategory() && !hasAmounts() && !hasDays();
+        }
+
+        // True when every row this filter accepts is also accepted by wider.
+        public boolean narrows(LedgerFilter wider) {
+            return categoryPrefix.startsWith(wider.categoryPrefix)
+                    && minCents >= wider.minCents && maxCents <= wider.maxCents
+                    && fromDay >= wider.fromDay && toDay <= wider.toDay;
+        }
+
+        boolean accepts(long cents, int day) {
+            return cents >= minCents && cents <= maxCents && day >= fromDay && day <= toDay;
+        }
+    }
+
+    // Category x month totals kept up to date on every change, so budgets and
+    // reports never rescan the ledger. Cells live in an open-addressing table
+    // keyed by (category, month) and the per-category and per-month margins are
+    // plain arrays, so an update is a few array writes and never allocates.
+    static class RollupCube {
+        static final int NO_MONTH = Integer.MIN_VALUE;
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] cellKeys = emptyKeys(64);
+        private long[] cellCents = new long[64];
+        private long[] cellRows = new long[64];
+        private int usedSlots;
+        private long[] categoryCents = new long[16];
+        private int firstMonth;
+        private long[] monthCents = new long[0];
+        private long undatedCents;
+        private long totalCents;
+        private long count;
+
+        // Same result as LocalDate.ofEpochDay(epochDay) year * 12 + month - 1,
+        // computed arithmetically (civil-from-days) so it does not allocate.
+        static int monthOf(int epochDay) {
+            if (epochDay == ExpenseStore.NO_DATE) {
+                return NO_MONTH;
+            }
+            long z = epochDay + 719_468L;
+            long era = Math.floorDiv(z, 146_097L);
+            long dayOfEra = z - era * 146_097L;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long shiftedMonth = (5 * dayOfYear + 2) / 153;
+            long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            return (int) (year * 12 + month - 1);
+        }
+
+        private static long cellKey(int categoryId, int month) {
+            return ((long) categoryId << 32) | (month & 0xFFFFFFFFL);
+        }
+
+        private static long[] emptyKeys(int size) {
+            long[] keys = new long[size];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        public void add(int categoryId, long amountCents, int epochDay) {
+            apply(categoryId, monthOf(epochDay), amountCents, 1);
+        }
+
+        public void remove(int categoryId, long amountCents, int epochDay) {
+            apply(categoryId, monthOf(epochDay), -amountCents, -1);
+        }
+
+        void apply(int categoryId, int month, long cents, long rows) {
+            int slot = slotFor(cellKey(categoryId, month));
+            cellCents[slot] += cents;
+            cellRows[slot] += rows;
+            if (categoryId >= categoryCents.length) {
+                categoryCents = Arrays.copyOf(categoryCents, Math.max(categoryId + 1, categoryCents.length * 2));
+            }
+            categoryCents[categoryId] += cents;
+            if (month == NO_MONTH) {
+                undatedCents += cents;
+            } else {
+                int index = monthIndex(month);
+                monthCents[index] += cents;
+            }
+            totalCents += cents;
+            count += rows;
+        }
+
+        private static int hash(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        private int find(long key) {
+            int mask = cellKeys.length - 1;
+            for (int slot = hash(key, mask); ; slot = (slot + 1) & mask) {
+                if (cellKeys[slot] == key) {
+                    return slot;
+                }
+                if (cellKeys[slot] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        private int slotFor(long key) {
+            int slot = find(key);
+            if (slot >= 0) {
+                return slot;
+            }
+            if ((usedSlots + 1) * 4 > cellKeys.length * 3) {
+                rehash();
+            }
+            int mask = cellKeys.length - 1;
+            slot = hash(key, mask);
+            while (cellKeys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            cellKeys[slot] = key;
+            usedSlots++;
+            return slot;
+        }
+
+        // Grows the table, dropping cells whose rows have all been removed.
+        private void rehash() {
+            long[] keys = cellKeys;
+            long[] cents = cellCents;
+            long[] rows = cellRows;
+            int live = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY && rows[i] != 0) {
+                    live++;
+                }
+            }
+            int size = keys.length;
+            while ((live + 1) * 2 > size) {
+                size *= 2;
+            }
+            cellKeys = emptyKeys(size);
+            cellCents = new long[size];
+            cellRows = new long[size];
+            usedSlots = 0;
+            int mask = size - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == EMPTY || rows[i] == 0) {
+                    continue;
+                }
+                int slot = hash(keys[i], mask);
+                while (cellKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                cellKeys[slot] = keys[i];
+                cellCents[slot] = cents[i];
+                cellRows[slot] = rows[i];
+                usedSlots++;
+            }
+        }
+
+        private int monthIndex(int month) {
+            if (monthCents.length == 0) {
+                firstMonth = month;
+                monthCents = new long[12];
+            } else if (month < firstMonth) {
+                int shift = Math.max(firstMonth - month, 12);
+                long[] grown = new long[monthCents.length + shift];
+                System.arraycopy(monthCents, 0, grown, shift, monthCents.length);
+                monthCents = grown;
+                firstMonth -= shift;
+            } else if (month - firstMonth >= monthCents.length) {
+                monthCents = Arrays.copyOf(monthCents, Math.max(month - firstMonth + 1, monthCents.length + 12));
+            }
+            return month - firstMonth;
+        }
+
+        public long totalCents() {
+            return totalCents;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long categoryCents(int categoryId) {
+            return categoryId >= 0 && categoryId < categoryCents.length ? categoryCents[categoryId] : 0;
+        }
+
+        public long monthCents(int month) {
+            if (month == NO_MONTH) {
+                return undatedCents;
+            }
+            long index = (long) month - firstMonth;
+            return index >= 0 && index < monthCents.length ? monthCents[(int) index] : 0;
+        }
+
+        public long cellCents(int categoryId, int month) {
+            int slot = find(cellKey(categoryId, month));
+            return slot < 0 ? 0 : cellCents[slot];
+        }
+
+        // Sum over the months in [fromMonth, toMonth].
+        public long periodCents(int fromMonth, int toMonth) {
+            int from = (int) Math.max(0, (long) fromMonth - firstMonth);
+            int to = (int) Math.min(monthCents.length - 1, (long) toMonth - firstMonth);
+            long sum = 0;
+            for (int i = from; i <= to; i++) {
+                sum += monthCents[i];
+            }
+            return sum;
+        }
+
+        // Months [firstMonth(), firstMonth() + monthSpan()) cover every dated row.
+        public int firstMonth() {
+            return firstMonth;
+        }
+
+        public int monthSpan() {
+            return monthCents.length;
+        }
+
+        // Spending indexed by category id; ids past the end of the array have none.
+        public long[] categoryTotals() {
+            return categoryCents.clone();
+        }
+
+        interface CellVisitor {
+            void visit(int categoryId, int month, long cents, long rows);
+        }
+
+        public void forEachCell(CellVisitor visitor) {
+            for (int i = 0; i < cellKeys.length; i++) {
+                long key = cellKeys[i];
+                if (key != EMPTY && cellRows[i] != 0) {
+                    visitor.visit((int) (key >>> 32), (int) key, cellCents[i], cellRows[i]);
+                }
+            }
+        }
+
+        public int cellCount() {
+            int cells = 0;
+            for (int i = 0; i < cellKeys.length; i++) {
+                if (cellKeys[i] != EMPTY && cellRows[i] != 0) {
+                    cells++;
+                }
+            }
+            return cells;
+        }
+
+        static RollupCube of(ExpenseStore store) {
+            RollupCube cube = new RollupCube();
+            store.forEach(cube::add);
+            return cube;
+        }
+
+        public boolean sameAs(RollupCube other) {
+            if (totalCents != other.totalCents || count != other.count || cellCount() != other.cellCount()) {
+                return false;
+            }
+            for (int i = 0; i < cellKeys.length; i++) {
+                if (cellKeys[i] == EMPTY || cellRows[i] == 0) {
+                    continue;
+                }
+                int slot = other.find(cellKeys[i]);
+                if (slot < 0 || other.cellCents[slot] != cellCents[i] || other.cellRows[slot] != cellRows[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Column-oriented ledger: category ids, amounts in cents and dates as epoch
+    // days live in chunked primitive arrays instead of one Expense object per row.
+    // Rows keep their physical slot until the next snapshot; deletes only drop the
+    // slot from the live index, so row positions never shift inside the columns.
+    // Whole chunks of closed months can be sealed into cold segments: those rows
+    // keep their slots for good and are inflated from the segment files into a
+    // small bounded cache when something reads them, so only the rows after the
+    // cold ones, and cold chunks edited since, are held and saved with snapshots.
+    // Every row also carries a stable id: this ledger's random replica number in
+    // the top bits and a per-ledger serial below, so devices that sync never
+    // hand out the same id.
+    static class ExpenseStore {
+        static final int NO_DATE = Integer.MIN_VALUE;
+        static final int SERIAL_BITS = 40;
+        static final int REPLICA_BITS = 23;
+        private static final int CHUNK_SHIFT = 12;
+        static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+        // shortest run of closed chunks worth its own segment file
+        static final int SEAL_CHUNKS = 4;
+        // cold chunks kept inflated at once, about 24 MB
+        private static final int COLD_CACHE = 256;
+
+        interface RowVisitor {
+            void visit(int categoryId, long amountCents, int epochDay);
+        }
+
+        // Chunks are published with compareAndSet and their arrays are final, so a
+        // chunk decoded lazily by one reader is safely visible to every other reader.
+        static final class Chunk {
+            final int[] categoryIds = new int[CHUNK_SIZE];
+            final long[] amounts = new long[CHUNK_SIZE];
+            final int[] days = new int[CHUNK_SIZE];
+            final long[] ids = new long[CHUNK_SIZE];
+
+            Chunk() {
+            }
+
+            // Decodes count records from the given one. Records written before ids
+            // existed are numbered on from firstId.
+            Chunk(ByteBuffer base, int record, int count, int recordSize, long firstId) {
+                for (int offset = 0; offset < count; offset++) {
+                    int position = (record + offset) * recordSize;
+                    categoryIds[offset] = base.getInt(position);
+                    amounts[offset] = base.getLong(position + 4);
+                    days[offset] = base.getInt(position + 12);
+                    ids[offset] = recordSize == LedgerFile.RECORD_SIZE ? base.getLong(position + 16) : firstId + offset;
+                }
+            }
+
+            Chunk copy() {
+                Chunk copy = new Chunk();
+                System.arraycopy(categoryIds, 0, copy.categoryIds, 0, CHUNK_SIZE);
+                System.arraycopy(amounts, 0, copy.amounts, 0, CHUNK_SIZE);
+                System.arraycopy(days, 0, copy.days, 0, CHUNK_SIZE);
+                System.arraycopy(ids, 0, copy.ids, 0, CHUNK_SIZE);
+                return copy;
+            }
+        }
+
+        private CategoryDictionary categories;
+        private AtomicReferenceArray<Chunk> chunks;
+        private int rowCount;
+        // deleted physical rows, ascending; live positions map around them, so a
+        // ledger with a handful of deletes still needs no per-row position table
+        private IntList deadRows;
+        private int liveCount;
+        private RollupCube rollup;
+        // rows [baseFirst, baseFirst + baseRows) are decoded from this mapped record
+        // section on first touch; edited cold chunks saved with it follow those rows
+        private ByteBuffer base;
+        private int baseFirst;
+        private int baseRows;
+        private int recordSize;
+        private int replica;
+        private long nextSerial;
+        // rows [0, coldRows) are sealed into segments, in row order; those below
+        // baseFirst were sealed before this ledger was opened and are read from
+        // the segment files unless their chunk is dirty (rewritten since sealing)
+        private List<ColdSegment> segments;
+        private int coldRows;
+        private BitSet dirty = new BitSet();
+        // dirty cold chunk -> its slot after the base rows, or -1
+        private int[] patchSlots;
+        private AtomicReferenceArray<Chunk> coldCache;
+        // the cold chunks in coldCache, plus one, in the order they were inflated
+        private final AtomicIntegerArray coldRing = new AtomicIntegerArray(COLD_CACHE);
+        private final AtomicInteger coldCursor = new AtomicInteger();
+        private DateIndex dateIndex;
+        private CategoryIndex categoryIndex;
+        private IdIndex idIndex;
+        // bumped whenever physical rows are renumbered, so a reader working
+        // through the rows in batches can tell its position no longer holds
+        private int rebuilds;
+
+        public ExpenseStore() {
+            this(new CategoryDictionary(), null, LedgerFile.RECORD_SIZE, 0, new RollupCube(), newReplica(), 1);
+        }
+
+        // A null rollup means the file did not carry one and it is rebuilt from the rows.
+        ExpenseStore(CategoryDictionary categories, ByteBuffer base, int recordSize, int baseRows,
+                     RollupCube rollup, int replica, long nextSerial) {
+            this(categories, base, recordSize, baseRows, rollup, replica, nextSerial,
+                    new ArrayList<>(), 0, new IntList(), new int[0]);
+        }
+
+        // Cold rows come first, with deadRows among them; the base holds the rows
+        // after them and then a full chunk of records for each of the patches.
+        ExpenseStore(CategoryDictionary categories, ByteBuffer base, int recordSize, int baseRows,
+                     RollupCube rollup, int replica, long nextSerial, List<ColdSegment> segments,
+                     int coldRows, IntList deadRows, int[] patches) {
+            this.categories = categories;
+            this.base = base;
+            this.recordSize = recordSize;
+            this.baseFirst = coldRows;
+            this.baseRows = baseRows;
+            this.replica = replica;
+            this.nextSerial = nextSerial;
+            this.segments = segments;
+            this.coldRows = coldRows;
+            this.deadRows = deadRows;
+            int coldChunks = coldRows >>> CHUNK_SHIFT;
+            patchSlots = new int[coldChunks];
+            Arrays.fill(patchSlots, -1);
+            for (int slot = 0; slot < patches.length; slot++) {
+                patchSlots[patches[slot]] = slot;
+                dirty.set(patches[slot]);
+            }
+            coldCache = new AtomicReferenceArray<>(coldChunks);
+            rowCount = coldRows + baseRows;
+            liveCount = rowCount - deadRows.size();
+            chunks = new AtomicReferenceArray<>((rowCount + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+            this.rollup = rollup != null ? rollup : RollupCube.of(this);
+        }
+
+        static int newReplica() {
+            return 1 + new Random().nextInt((1 << REPLICA_BITS) - 1);
+        }
+
+        static long idOf(int replica, long serial) {
+            return (long) replica << SERIAL_BITS | serial;
+        }
+
+        static int replicaOf(long id) {
+            return (int) (id >>> SERIAL_BITS);
+        }
+
+        public int replica() {
+            return replica;
+        }
+
+        public long nextSerial() {
+            return nextSerial;
+        }
+
+        static long toCents(double amount) {
+            return Math.round(amount * 100);
+        }
+
+        static double fromCents(long cents) {
+            return cents / 100.0;
+        }
+
+        // Parses a decimal amount such as "12.5" straight to cents, rounding half up.
+        static long parseCents(String text) {
+            try {
+                return new BigDecimal(text.trim()).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+            } catch (ArithmeticException e) {
+                throw new NumberFormatException("Amount out of range: " + text);
+            }
+        }
+
+        static String formatCents(long cents) {
+            return BigDecimal.valueOf(cents, 2).toPlainString();
+        }
+
+        static int parseDay(String date) {
+            return (int) LocalDate.parse(date.trim()).toEpochDay();
+        }
+
+        static int parseDayOrNone(String date) {
+            try {
+                return parseDay(date);
+            } catch (DateTimeParseException e) {
+                return NO_DATE;
+            }
+        }
+
+        static String formatDay(int epochDay) {
+            return epochDay == NO_DATE ? "" : LocalDate.ofEpochDay(epochDay).toString();
+        }
+
+        public int size() {
+            return liveCount;
+        }
+
+        public boolean isEmpty() {
+            return liveCount == 0;
+        }
+
+        // Live rows plus the deleted ones still holding a physical row.
+        public int physicalRows() {
+            return rowCount;
+        }
+
+        public int rebuilds() {
+            return rebuilds;
+        }
+
+        public CategoryDictionary categories() {
+            return categories;
+        }
+
+        // Physical row behind a live position. Physical rows are stable until the
+        // next snapshot; deadRows[i] - i live rows come before the i-th deleted row,
+        // which never decreases, so both directions are a binary search over deadRows.
+        public int rowAt(int index) {
+            if (index < 0 || index >= liveCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + liveCount);
+            }
+            int low = 0;
+            int high = deadRows.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (deadRows.get(mid) - mid <= index) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return index + low;
+        }
+
+        public int indexOfRow(int row) {
+            if (row < 0 || row >= rowCount) {
+                return -1;
+            }
+            int dead = deadRows.binarySearch(row);
+            return dead >= 0 ? -1 : row + dead + 1;
+        }
+
+        private Chunk chunkOf(int row) {
+            int index = row >>> CHUNK_SHIFT;
+            Chunk chunk = chunks.get(index);
+            if (chunk == null) {
+                if (row < baseFirst && patchSlots[index] < 0) {
+                    return coldChunk(index);
+                }
+                int first = index << CHUNK_SHIFT;
+                Chunk loaded;
+                if (row < baseFirst) {
+                    loaded = new Chunk(base, baseRows + patchSlots[index] * CHUNK_SIZE, CHUNK_SIZE, recordSize, 0);
+                } else if (first - baseFirst < baseRows) {
+                    loaded = new Chunk(base, first - baseFirst, Math.min(CHUNK_SIZE, baseRows - (first - baseFirst)),
+                            recordSize, idOf(replica, first + 1));
+                } else {
+                    loaded = new Chunk();
+                }
+                chunk = chunks.compareAndSet(index, null, loaded) ? loaded : chunks.get(index);
+            }
+            return chunk;
+        }
+
+        // A chunk sealed before this ledger was opened, inflated into the cold
+        // cache. Once the cache is full each new chunk pushes out the oldest; a
+        // reader still holding that chunk keeps its own reference to it.
+        private Chunk coldChunk(int index) {
+            Chunk chunk = coldCache.get(index);
+            if (chunk != null) {
+                return chunk;
+            }
+            ColdSegment segment = segmentOf(index << CHUNK_SHIFT);
+            Chunk loaded = segment.read((index << CHUNK_SHIFT) - segment.firstRow >>> CHUNK_SHIFT);
+            if (!coldCache.compareAndSet(index, null, loaded)) {
+                chunk = coldCache.get(index);
+                return chunk != null ? chunk : loaded;
+            }
+            int evicted = coldRing.getAndSet(coldCursor.getAndIncrement() & (COLD_CACHE - 1), index + 1) - 1;
+            if (evicted >= 0 && evicted != index) {
+                coldCache.set(evicted, null);
+            }
+            return loaded;
+        }
+
+        // A chunk about to be written. Cold chunks become dirty, and those read
+        // from a segment are pinned, so the change is kept and saved as a patch.
+        private Chunk writableChunkOf(int row) {
+            Chunk chunk = chunkOf(row);
+            if (row < coldRows) {
+                int index = row >>> CHUNK_SHIFT;
+                dirty.set(index);
+                if (row < baseFirst) {
+                    chunks.set(index, chunk);
+                    coldCache.set(index, null);
+                }
+            }
+            return chunk;
+        }
+
+        private ColdSegment segmentOf(int row) {
+            int low = 0;
+            int high = segments.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (segments.get(mid).firstRow <= row) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return segments.get(low);
+        }
+
+        static int chunkEnd(int row) {
+            return (row | CHUNK_MASK) + 1;
+        }
+
+        // The first physical row at or after row that a scan for rows dated in
+        // [fromDay, toDay] has to read: cold chunks unchanged since they were
+        // sealed are passed over whole when their block has no day in the window.
+        public int nextRowToScan(int row, int fromDay, int toDay) {
+            while (row < baseFirst && !dirty.get(row >>> CHUNK_SHIFT)) {
+                ColdSegment segment = segmentOf(row);
+                if (segment.mayHold(row - segment.firstRow >>> CHUNK_SHIFT, fromDay, toDay)) {
+                    break;
+                }
+                row = chunkEnd(row);
+            }
+            return row;
+        }
+
+        // Live position of row, or of the first live row after it.
+        public int positionAtOrAfter(int row) {
+            int dead = deadRows.binarySearch(row);
+            return row - (dead >= 0 ? dead : -dead - 1);
+        }
+
+        public int categoryIdOfRow(int row) {
+            return chunkOf(row).categoryIds[row & CHUNK_MASK];
+        }
+
+        public long amountCentsOfRow(int row) {
+            return chunkOf(row).amounts[row & CHUNK_MASK];
+        }
+
+        public int epochDayOfRow(int row) {
+            return chunkOf(row).days[row & CHUNK_MASK];
+        }
+
+        public long idOfRow(int row) {
+            return chunkOf(row).ids[row & CHUNK_MASK];
+        }
+
+        public int categoryIdAt(int index) {
+            return categoryIdOfRow(rowAt(index));
+        }
+
+        public long idAt(int index) {
+            return idOfRow(rowAt(index));
+        }
+
+        // Live position of the expense with this id, or -1. The first lookup
+        // builds the id index; like the other indexes it is kept up to date after.
+        public int positionOfId(long id) {
+            if (idIndex == null) {
+                IdIndex index = new IdIndex();
+                for (int row = 0, dead = 0; row < rowCount; row++) {
+                    if (dead < deadRows.size() && deadRows.get(dead) == row) {
+                        dead++;
+                        continue;
+                    }
+                    index.put(idOfRow(row), row);
+                }
+                idIndex = index;
+            }
+            int row = idIndex.get(id);
+            return row < 0 ? -1 : indexOfRow(row);
+        }
+
+        public String categoryAt(int index) {
+            return categories.name(categoryIdAt(index));
+        }
+
+        public long amountCentsAt(int index) {
+            return amountCentsOfRow(rowAt(index));
+        }
+
+        public int epochDayAt(int index) {
+            return epochDayOfRow(rowAt(index));
+        }
+
+        // Built on the first date query and maintained by every mutation after that,
+        // so opening a ledger never pays for it.
+        public boolean hasDateIndex() {
+            return dateIndex != null;
+        }
+
+        public DateIndex dateIndex() {
+            if (dateIndex == null) {
+                DateIndex index = new DateIndex();
+                for (int row = 0, dead = 0; row < rowCount; row++) {
+                    if (dead < deadRows.size() && deadRows.get(dead) == row) {
+                        dead++;
+                        continue;
+                    }
+                    index.add(epochDayOfRow(row), row);
+                }
+                dateIndex = index;
+            }
+            return dateIndex;
+        }
+
+        // Built and maintained the same way, on the first category search.
+        public boolean hasCategoryIndex() {
+            return categoryIndex != null;
+        }
+
+        public CategoryIndex categoryIndex() {
+            if (categoryIndex == null) {
+                CategoryIndex index = new CategoryIndex();
+                for (int row = 0, dead = 0; row < rowCount; row++) {
+                    if (dead < deadRows.size() && deadRows.get(dead) == row) {
+                        dead++;
+                        continue;
+                    }
+                    index.add(categoryIdOfRow(row), row);
+                }
+                categoryIndex = index;
+            }
+            return categoryIndex;
+        }
+
+        public Expense get(int index) {
+            int row = rowAt(index);
+            return new Expense(idOfRow(row), categories.name(categoryIdOfRow(row)), amountCentsOfRow(row),
+                    formatDay(epochDayOfRow(row)));
+        }
+
+        // Keeps the expense's id if it already has one (a synced or undone row).
+        public void add(Expense expense) {
+            append(idFor(expense), categories.intern(expense.getCategory()), expense.getAmountCents(),
+                    parseDayOrNone(expense.getDate()));
+        }
+
+        private long idFor(Expense expense) {
+            return expense.getId() != 0 ? expense.getId() : idOf(replica, nextSerial);
+        }
+
+        // Serials are never reused, even for ids that come back through undo or a sync.
+        private void claim(long id) {
+            if (replicaOf(id) == replica) {
+                nextSerial = Math.max(nextSerial, (id & ((1L << SERIAL_BITS) - 1)) + 1);
+            }
+        }
+
+        public void append(int categoryId, long amountCents, int epochDay) {
+            append(idOf(replica, nextSerial), categoryId, amountCents, epochDay);
+        }
+
+        public void append(long id, int categoryId, long amountCents, int epochDay) {
+            claim(id);
+            int index = rowCount >>> CHUNK_SHIFT;
+            if (index == chunks.length()) {
+                AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<>(Math.max(4, index * 2));
+                for (int i = 0; i < index; i++) {
+                    grown.set(i, chunks.get(i));
+                }
+                chunks = grown;
+            }
+            Chunk chunk = chunkOf(rowCount);
+            int offset = rowCount & CHUNK_MASK;
+            chunk.categoryIds[offset] = categoryId;
+            chunk.amounts[offset] = amountCents;
+            chunk.days[offset] = epochDay;
+            chunk.ids[offset] = id;
+            if (dateIndex != null) {
+                dateIndex.add(epochDay, rowCount);
+            }
+            if (categoryIndex != null) {
+                categoryIndex.add(categoryId, rowCount);
+            }
+            if (idIndex != null) {
+                idIndex.put(id, rowCount);
+            }
+            rowCount++;
+            liveCount++;
+            rollup.add(categoryId, amountCents, epochDay);
+        }
+
+        public Expense set(int index, Expense expense) {
+            Expense old = get(index);
+            int row = rowAt(index);
+            Chunk chunk = writableChunkOf(row);
+            int offset = row & CHUNK_MASK;
+            int categoryId = categories.intern(expense.getCategory());
+            long cents = expense.getAmountCents();
+            int day = parseDayOrNone(expense.getDate());
+            rollup.remove(chunk.categoryIds[offset], chunk.amounts[offset], chunk.days[offset]);
+            rollup.add(categoryId, cents, day);
+            if (dateIndex != null && day != chunk.days[offset]) {
+                dateIndex.remove(chunk.days[offset], row);
+                dateIndex.add(day, row);
+            }
+            if (categoryIndex != null && categoryId != chunk.categoryIds[offset]) {
+                categoryIndex.remove(chunk.categoryIds[offset], row);
+                categoryIndex.add(categoryId, row);
+            }
+            chunk.categoryIds[offset] = categoryId;
+            chunk.amounts[offset] = cents;
+            chunk.days[offset] = day;
+            return old;
+        }
+
+        public Expense remove(int index) {
+            Expense old = get(index);
+            int row = rowAt(index);
+            rollup.remove(categoryIdOfRow(row), amountCentsOfRow(row), epochDayOfRow(row));
+            if (dateIndex != null) {
+                dateIndex.remove(epochDayOfRow(row), row);
+            }
+            if (categoryIndex != null) {
+                categoryIndex.remove(categoryIdOfRow(row), row);
+            }
+            if (idIndex != null) {
+                idIndex.remove(idOfRow(row));
+            }
+            if (row == rowCount - 1 && row >= coldRows) {
+                // the newest physical row is simply dropped and its slot reused
+                rowCount--;
+            } else {
+                deadRows.insertSorted(row);
+            }
+            liveCount--;
+            return old;
+        }
+
+        // Puts a row back at a ledger position, as undoing a delete does. Physical
+        // rows strictly between the two neighbours are never live, so when there
+        // is such a gap (there always is right after a delete) one of those slots
+        // is rewritten and relinked. At the end the row is simply appended; only a
+        // mid-ledger insert with no gap rebuilds the columns densely.
+        public void insert(int index, Expense expense) {
+            if (index < 0 || index > liveCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + liveCount);
+            }
+            long id = idFor(expense);
+            int categoryId = categories.intern(expense.getCategory());
+            long cents = expense.getAmountCents();
+            int day = parseDayOrNone(expense.getDate());
+            if (index == liveCount) {
+                append(id, categoryId, cents, day);
+                return;
+            }
+            int before = index == 0 ? -1 : rowAt(index - 1);
+            int after = rowAt(index);
+            if (after - before < 2) {
+                rebuildWith(index, id, categoryId, cents, day);
+                return;
+            }
+            claim(id);
+            int row = before + 1;
+            Chunk chunk = writableChunkOf(row);
+            int offset = row & CHUNK_MASK;
+            chunk.categoryIds[offset] = categoryId;
+            chunk.amounts[offset] = cents;
+            chunk.days[offset] = day;
+            chunk.ids[offset] = id;
+            deadRows.removeSorted(row);
+            liveCount++;
+            if (dateIndex != null) {
+                dateIndex.add(day, row);
+            }
+            if (categoryIndex != null) {
+                categoryIndex.add(categoryId, row);
+            }
+            if (idIndex != null) {
+                idIndex.put(id, row);
+            }
+            rollup.add(categoryId, cents, day);
+        }
+
+        private void rebuildWith(int index, long id, int categoryId, long cents, int day) {
+            ExpenseStore dense = new ExpenseStore();
+            dense.categories = categories;
+            dense.replica = replica;
+            dense.nextSerial = nextSerial;
+            for (int i = 0; i < liveCount; i++) {
+                if (i == index) {
+                    dense.append(id, categoryId, cents, day);
+                }
+                int row = rowAt(i);
+                dense.append(idOfRow(row), categoryIdOfRow(row), amountCentsOfRow(row), epochDayOfRow(row));
+            }
+            chunks = dense.chunks;
+            rowCount = dense.rowCount;
+            deadRows = new IntList();
+            liveCount = dense.liveCount;
+            nextSerial = dense.nextSerial;
+            base = null;
+            baseFirst = 0;
+            baseRows = 0;
+            // the rows no longer line up with the segments, which the next
+            // snapshot leaves behind for the next open to delete
+            segments = new ArrayList<>();
+            coldRows = 0;
+            dirty = new BitSet();
+            patchSlots = new int[0];
+            coldCache = new AtomicReferenceArray<>(0);
+            rollup = dense.rollup;
+            dateIndex = null;
+            categoryIndex = null;
+            idIndex = null;
+            rebuilds++;
+        }
+
+        // Physical rows accepted by filter. When within (a wider earlier result) is
+        // given only those rows are rechecked and their order is kept; otherwise
+        // the rows come back in ledger order, fetched through whichever of the
+        // category index, the date index or a plain column scan touches the
+        // fewest rows. The date range is sized from the rollup's month cells.
+        public IntList select(LedgerFilter filter, IntList within) {
+            boolean[] categoryMask = null;
+            int[] categoryIds = null;
+            if (filter.hasCategory()) {
+                categoryIds = categories.idsWithPrefix(filter.categoryPrefix);
+                categoryMask = maskOf(categoryIds);
+            }
+            if (within != null) {
+                return filterRows(within, filter, categoryMask);
+            }
+            long byCategory = Long.MAX_VALUE;
+            if (categoryIds != null) {
+                byCategory = 0;
+                for (int id : categoryIds) {
+                    byCategory += categoryIndex().count(id);
+                }
+            }
+            long byDate = Long.MAX_VALUE;
+            if (filter.hasDays()) {
+                long fromMonth = filter.fromDay == NO_DATE ? Long.MIN_VALUE : RollupCube.monthOf(filter.fromDay);
+                long toMonth = RollupCube.monthOf(filter.toDay);
+                long[] rows = new long[1];
+                rollup.forEachCell((categoryId, month, cents, count) -> {
+                    if (month != RollupCube.NO_MONTH && month >= fromMonth && month <= toMonth) {
+                        rows[0] += count;
+                    }
+                });
+                byDate = rows[0];
+            }
+            long scan = liveCount / 4;
+            if (byCategory <= byDate && byCategory <= scan) {
+                return filterRows(categoryIndex().rows(categoryIds), filter, null);
+            }
+            // building the date index would inflate every cold chunk, where a scan
+            // passes over the blocks outside the range
+            if (byDate <= scan && (dateIndex != null || baseFirst == 0)) {
+                int[] rows = dateIndex().rowsBetween(filter.fromDay, filter.toDay).toArray();
+                Arrays.sort(rows);
+                return filterRows(IntList.of(rows, rows.length), filter, categoryMask);
+            }
+            IntList result = new IntList();
+            for (int row = 0, dead = 0; row < rowCount; row++) {
+                if (filter.hasDays() && (row & CHUNK_MASK) == 0) {
+                    row = nextRowToScan(row, filter.fromDay, filter.toDay);
+                    while (dead < deadRows.size() && deadRows.get(dead) < row) {
+                        dead++;
+                    }
+                    if (row >= rowCount) {
+                        break;
+                    }
+                }
+                if (dead < deadRows.size() && deadRows.get(dead) == row) {
+                    dead++;
+                    continue;
+                }
+                Chunk chunk = chunkOf(row);
+                int offset = row & CHUNK_MASK;
+                if ((categoryMask == null || categoryMask[chunk.categoryIds[offset]])
+                        && filter.accepts(chunk.amounts[offset], chunk.days[offset])) {
+                    result.add(row);
+                }
+            }
+            return result;
+        }
+
+        // Visits the live rows among physical rows [from, to) that filter accepts,
+        // in ledger order. Like the select scan it passes over cold blocks
+        // outside the date range, and allocates nothing past the category mask.
+        public void forEachRow(int from, int to, LedgerFilter filter, RowVisitor visitor) {
+            boolean[] categoryMask = filter.hasCategory() ? maskOf(categories.idsWithPrefix(filter.categoryPrefix)) : null;
+            to = Math.min(to, rowCount);
+            int dead = deadRows.binarySearch(from);
+            dead = dead >= 0 ? dead : -dead - 1;
+            for (int row = from; row < to; row++) {
+                if (filter.hasDays() && (row == from || (row & CHUNK_MASK) == 0)) {
+                    row = nextRowToScan(row, filter.fromDay, filter.toDay);
+                    while (dead < deadRows.size() && deadRows.get(dead) < row) {
+                        dead++;
+                    }
+                    if (row >= to) {
+                        break;
+                    }
+                }
+                if (dead < deadRows.size() && deadRows.get(dead) == row) {
+                    dead++;
+                    continue;
+                }
+                Chunk chunk = chunkOf(row);
+                int offset = row & CHUNK_MASK;
+                if ((categoryMask == null || categoryMask[chunk.categoryIds[offset]])
+                        && filter.accepts(chunk.amounts[offset], chunk.days[offset])) {
+                    visitor.visit(chunk.categoryIds[offset], chunk.amounts[offset], chunk.days[offset]);
+                }
+            }
+        }
+
+        private boolean[] maskOf(int[] categoryIds) {
+            boolean[] mask = new boolean[categories.size()];
+            for (int id : categoryIds) {
+                mask[id] = true;
+            }
+            return mask;
+        }
+
+        private IntList filterRows(IntList rows, LedgerFilter filter, boolean[] categoryMask) {
+            IntList result = new IntList();
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rows.get(i);
+                Chunk chunk = chunkOf(row);
+                int offset = row & CHUNK_MASK;
+                if ((categoryMask == null || categoryMask[chunk.categoryIds[offset]])
+                        && filter.accepts(chunk.amounts[offset], chunk.days[offset])) {
+                    result.add(row);
+                }
+            }
+            return result;
+        }
+
+        // The given physical rows (all live rows when null) ordered by a table
+        // column: 0 category name, 1 amount, 2 date. The sort is stable, so ties
+        // stay in their current order, and undated rows sort before dated ones.
+        public IntList sortRows(IntList rows, int column, boolean descending) {
+            // the whole ledger in category or date order is just an index walk
+            if (rows == null && column == 0 && categoryIndex != null) {
+                return categoryIndex.rowsInOrder(categories.idsWithPrefix(""), descending, liveCount);
+            }
+            if (rows == null && column == 2 && dateIndex != null) {
+                return dateIndex.rowsInOrder(descending, liveCount);
+            }
+            int count = rows == null ? liveCount : rows.size();
+            int[] sorted = new int[count];
+            long[] keys = new long[count];
+            int[] ranks = column == 0 ? categories.ranks() : null;
+            boolean undated = false;
+            long earliest = Long.MAX_VALUE;
+            for (int i = 0, row = -1, dead = 0; i < count; i++) {
+                if (rows != null) {
+                    row = rows.get(i);
+                } else {
+                    row++;
+                    while (dead < deadRows.size() && deadRows.get(dead) == row) {
+                        dead++;
+                        row++;
+                    }
+                }
+                Chunk chunk = chunkOf(row);
+                int offset = row & CHUNK_MASK;
+                long key = column == 0 ? ranks[chunk.categoryIds[offset]]
+                        : column == 1 ? chunk.amounts[offset] : chunk.days[offset];
+                if (column == 2) {
+                    if (key == NO_DATE) {
+                        undated = true;
+                    } else {
+                        earliest = Math.min(earliest, key);
+                    }
+                }
+                sorted[i] = row;
+                keys[i] = key;
+            }
+            for (int i = 0; i < count; i++) {
+                if (undated && keys[i] == NO_DATE) {
+                    // undated rows sort first without stretching the key range
+                    keys[i] = earliest == Long.MAX_VALUE ? 0 : earliest - 1;
+                }
+                if (descending) {
+                    keys[i] = ~keys[i];
+                }
+            }
+            radixSort(sorted, keys, count);
+            return IntList.of(sorted, count);
+        }
+
+        // LSD radix sort of rows by signed keys. Keys are taken relative to the
+        // smallest one and only the bits that vary are sorted, 11 at a time so
+        // the counts stay in L1. When the key range fits in 32 bits (a few years
+        // of dates, amounts up to $40M) key and row are packed into one long, so
+        // each pass moves a single array; typical ledgers need one or two passes.
+        static void radixSort(int[] rows, long[] keys, int count) {
+            if (count < 2) {
+                return;
+            }
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                min = Math.min(min, keys[i]);
+                max = Math.max(max, keys[i]);
+            }
+            long range = max - min;
+            int bits = range < 0 ? 64 : 64 - Long.numberOfLeadingZeros(range);
+            int[] counts = new int[2049];
+            if (bits <= 32) {
+                long[] packed = keys;
+                for (int i = 0; i < count; i++) {
+                    packed[i] = (keys[i] - min) << 32 | rows[i];
+                }
+                long[] buffer = new long[count];
+                for (int shift = 32; shift < 32 + bits; shift += 11) {
+                    long[] sorted = radixPass(packed, buffer, count, shift, counts);
+                    buffer = packed;
+                    packed = sorted;
+                }
+                for (int i = 0; i < count; i++) {
+                    rows[i] = (int) packed[i];
+                }
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                keys[i] -= min;
+            }
+            int[] rowBuffer = new int[count];
+            long[] keyBuffer = new long[count];
+            for (int shift = 0; shift < bits; shift += 11) {
+                Arrays.fill(counts, 0);
+                for (int i = 0; i < count; i++) {
+                    counts[(int) ((keys[i] >>> shift) & 0x7FF) + 1]++;
+                }
+                for (int d = 0; d < 2048; d++) {
+                    counts[d + 1] += counts[d];
+                }
+                for (int i = 0; i < count; i++) {
+                    int slot = counts[(int) ((keys[i] >>> shift) & 0x7FF)]++;
+                    rowBuffer[slot] = rows[i];
+                    keyBuffer[slot] = keys[i];
+                }
+                int[] sortedRows = rowBuffer;
+                rowBuffer = rows;
+                rows = sortedRows;
+                long[] sortedKeys = keyBuffer;
+                keyBuffer = keys;
+                keys = sortedKeys;
+            }
+            if (((bits + 10) / 11) % 2 == 1) {
+                System.arraycopy(rows, 0, rowBuffer, 0, count);
+            }
+        }
+
+        // One counting pass over the 11-bit digit at shift; returns the sorted array.
+        private static long[] radixPass(long[] from, long[] to, int count, int shift, int[] counts) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < count; i++) {
+                counts[(int) ((from[i] >>> shift) & 0x7FF) + 1]++;
+            }
+            for (int d = 0; d < 2048; d++) {
+                counts[d + 1] += counts[d];
+            }
+            for (int i = 0; i < count; i++) {
+                to[counts[(int) ((from[i] >>> shift) & 0x7FF)]++] = from[i];
+            }
+            return to;
+        }
+
+        // Visits every live row in order without allocating.
+        public void forEach(RowVisitor visitor) {
+            for (int row = 0, dead = 0; row < rowCount; row++) {
+                if (dead < deadRows.size() && deadRows.get(dead) == row) {
+                    dead++;
+                    continue;
+                }
+                Chunk chunk = chunkOf(row);
+                int offset = row & CHUNK_MASK;
+                visitor.visit(chunk.categoryIds[offset], chunk.amounts[offset], chunk.days[offset]);
+            }
+        }
+
+        public long totalCents() {
+            return rollup.totalCents();
+        }
+
+        public RollupCube rollup() {
+            return rollup;
+        }
+
+        // Recomputes the rollup from the rows; returns false (and adopts the
+        // recomputed cube) if the maintained one had drifted.
+        public boolean verifyRollup() {
+            RollupCube rebuilt = RollupCube.of(this);
+            if (rebuilt.sameAs(rollup)) {
+                return true;
+            }
+            rollup = rebuilt;
+            return false;
+        }
+
+        // Copy handed to the persistence thread for a snapshot. The cold rows keep
+        // their slots and share the immutable segments, so only dirty chunks and
+        // those of segments not yet written are copied; the rows after them are
+        // copied densely. The cost follows the recent rows, not the whole ledger.
+        public ExpenseStore copy() {
+            ExpenseStore copy = new ExpenseStore(categories.copy(), null, LedgerFile.RECORD_SIZE, 0,
+                    new RollupCube(), replica, nextSerial, new ArrayList<>(segments), coldRows,
+                    coldDeadRows(), new int[0]);
+            copy.dirty = (BitSet) dirty.clone();
+            for (int index = 0; index < coldRows >>> CHUNK_SHIFT; index++) {
+                if (dirty.get(index) || !segmentOf(index << CHUNK_SHIFT).isWritten()) {
+                    copy.chunks.set(index, chunkOf(index << CHUNK_SHIFT).copy());
+                }
+            }
+            for (int row = coldRows, dead = copy.deadRows.size(); row < rowCount; row++) {
+                if (dead < deadRows.size() && deadRows.get(dead) == row) {
+                    dead++;
+                    continue;
+                }
+                copy.append(idOfRow(row), categoryIdOfRow(row), amountCentsOfRow(row), epochDayOfRow(row));
+            }
+            copy.rollup = new RollupCube();
+            rollup.forEachCell(copy.rollup::apply);
+            return copy;
+        }
+
+        // Moves the run of whole chunks after the cold rows in which no row is
+        // dated on or after closedBefore into a new cold segment, once the run is
+        // SEAL_CHUNKS long. The next snapshot writes the segment file; until then
+        // the chunks stay resident as they are.
+        public boolean seal(int closedBefore) {
+            int first = coldRows >>> CHUNK_SHIFT;
+            int end = first;
+            while ((end + 1) << CHUNK_SHIFT <= rowCount && closed(end, closedBefore)) {
+                end++;
+            }
+            if (end - first < SEAL_CHUNKS) {
+                return false;
+            }
+            segments.add(ColdSegment.create(first << CHUNK_SHIFT, (end - first) << CHUNK_SHIFT));
+            coldRows = end << CHUNK_SHIFT;
+            return true;
+        }
+
+        // Undated rows belong to no month and never hold a chunk back.
+        private boolean closed(int index, int closedBefore) {
+            int[] days = chunkOf(index << CHUNK_SHIFT).days;
+            for (int day : days) {
+                if (day != NO_DATE && day >= closedBefore) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<ColdSegment> segments() {
+            return segments;
+        }
+
+        int coldRows() {
+            return coldRows;
+        }
+
+        IntList coldDeadRows() {
+            IntList cold = new IntList();
+            for (int i = 0; i < deadRows.size() && deadRows.get(i) < coldRows; i++) {
+                cold.add(deadRows.get(i));
+            }
+            return cold;
+        }
+
+        // Cold chunks rewritten since they were sealed, ascending.
+        int[] dirtyChunks() {
+            return dirty.stream().filter(index -> index < coldRows >>> CHUNK_SHIFT).toArray();
+        }
+
+        Chunk chunkAt(int index) {
+            return chunkOf(index << CHUNK_SHIFT);
+        }
+
+        public long estimatedHeapBytes() {
+            long loaded = 0;
+            for (int i = 0; i < chunks.length(); i++) {
+                if (chunks.get(i) != null) {
+                    loaded++;
+                }
+            }
+            for (int i = 0; i < coldCache.length(); i++) {
+                if (coldCache.get(i) != null) {
+                    loaded++;
+                }
+            }
+            long perChunk = 16 + 4 * 16 + CHUNK_SIZE * (4L + 8L + 4L + 8L);
+            long index = 16 + 4L * deadRows.size();
+            return loaded * perChunk + 16 + 8L * (chunks.length() + coldCache.length()) + index;
+        }
+
+        static ExpenseStore fromList(List<Expense> expenses) {
+            ExpenseStore store = new ExpenseStore();
+            for (Expense expense : expenses) {
+                store.add(expense);
+            }
+            return store;
+        }
+    }
+
+    // Versioned binary snapshot of a ledger, read through FileChannel.map.
+    //   header (64 bytes): magic, version, generation, budget, total cents,
+    //                      category count, record count, section offsets
+    //   dictionary:        UTF-8 category names, in id order
+    //   rollup:            category x month cells (category, month, cents, rows)
+    //   budgets:           category and period budgets, straight after the cells,
+    //                      then the ledger's replica number and next id serial
+    //   cold rows:         since version 6, the count of sealed rows, the rows after
+    //                      them, the segment files holding them, the deleted cold
+    //                      rows and the cold chunks saved as patches
+    //   records:           fixed 24-byte rows (int category, long cents, int epoch day,
+    //                      long id); 16 bytes without the id before version 5. The
+    //                      rows after the cold ones, then a full chunk per patch
+    // Opening only parses the header, the dictionary and the rollup; records
+    // stay in the mapping until ExpenseStore touches their chunk.
+    static class LedgerFile {
+        static final int MAGIC = 0x454C4752;
+        static final int VERSION = 6;
+        static final int HEADER_SIZE = 64;
+        static final int RECORD_SIZE = 24;
+        static final int LEGACY_RECORD_SIZE = 16;
+
+        int version;
+        long generation;
+        long budgetCents;
+        List<BudgetBook.Budget> budgets = new ArrayList<>();
+        ExpenseStore store;
+
+        static LedgerFile open(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (map.remaining() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+                    throw new IOException("Not a ledger file: " + file);
+                }
+                int version = map.getInt(4);
+                if (version < 1 || version > VERSION) {
+                    throw new IOException("Unsupported ledger version " + version + ": " + file);
+                }
+                LedgerFile ledger = new LedgerFile();
+                ledger.version = version;
+                ledger.generation = map.getLong(8);
+                // versions before 3 stored the budget as a double
+                ledger.budgetCents = version >= 3 ? map.getLong(16) : ExpenseStore.toCents(map.getDouble(16));
+                int categoryCount = map.getInt(32);
+                int recordCount = map.getInt(36);
+                int dictionaryOffset = (int) map.getLong(40);
+                int recordsOffset = (int) map.getLong(48);
+
+                CategoryDictionary categories = new CategoryDictionary();
+                ByteBuffer dictionary = map.duplicate();
+                dictionary.position(dictionaryOffset);
+                for (int i = 0; i < categoryCount; i++) {
+                    byte[] name = new byte[dictionary.getShort() & 0xFFFF];
+                    dictionary.get(name);
+                    categories.intern(new String(name, StandardCharsets.UTF_8));
+                    if (version == 1) {
+                        dictionary.getDouble(); // per-category spending, superseded by the rollup
+                    }
+                }
+
+                RollupCube rollup = null;
+                int replica = ExpenseStore.newReplica();
+                long nextSerial = recordCount + 1L;
+                List<ColdSegment> segments = new ArrayList<>();
+                int coldRows = 0;
+                int hotRows = recordCount;
+                IntList deadRows = new IntList();
+                int[] patches = new int[0];
+                if (version >= 2) {
+                    rollup = new RollupCube();
+                    ByteBuffer cells = map.duplicate();
+                    cells.position((int) map.getLong(56));
+                    int cellCount = cells.getInt();
+                    for (int i = 0; i < cellCount; i++) {
+                        rollup.apply(cells.getInt(), cells.getInt(), cells.getLong(), cells.getLong());
+                    }
+                    if (version >= 4) {
+                        int budgetCount = cells.getInt();
+                        for (int i = 0; i < budgetCount; i++) {
+                            int length = cells.getShort();
+                            String category = null;
+                            if (length >= 0) {
+                                byte[] name = new byte[length];
+                                cells.get(name);
+                                category = new String(name, StandardCharsets.UTF_8);
+                            }
+                            byte period = cells.get();
+                            ledger.budgets.add(new BudgetBook.Budget(category, period, cells.getLong()));
+                        }
+                    }
+                    if (version >= 5) {
+                        replica = cells.getInt();
+                        nextSerial = cells.getLong();
+                    }
+                    if (version >= 6) {
+                        coldRows = cells.getInt();
+                        hotRows = cells.getInt();
+                        int segmentCount = cells.getInt();
+                        for (int i = 0; i < segmentCount; i++) {
+                            byte[] name = new byte[cells.getShort() & 0xFFFF];
+                            cells.get(name);
+                            segments.add(ColdSegment.open(file.getAbsoluteFile().getParentFile(),
+                                    new String(name, StandardCharsets.UTF_8), cells.getInt(), cells.getInt()));
+                        }
+                        int deadCount = cells.getInt();
+                        for (int i = 0; i < deadCount; i++) {
+                            deadRows.add(cells.getInt());
+                        }
+                        patches = new int[cells.getInt()];
+                        for (int i = 0; i < patches.length; i++) {
+                            patches[i] = cells.getInt();
+                        }
+                    }
+                }
+
+                int recordSize = version >= 5 ? RECORD_SIZE : LEGACY_RECORD_SIZE;
+                if ((long) recordsOffset + (long) recordCount * recordSize > map.capacity()) {
+                    throw new IOException("Truncated ledger file: " + file);
+                }
+                ByteBuffer records = map.duplicate();
+                records.position(recordsOffset);
+                records.limit(recordsOffset + recordCount * recordSize);
+                ledger.store = new ExpenseStore(categories, records.slice(), recordSize, hotRows, rollup,
+                        replica, nextSerial, segments, coldRows, deadRows, patches);
+                return ledger;
+            }
+        }
+
+        static void write(File file, ExpenseStore store, long budgetCents, List<BudgetBook.Budget> budgets,
+                          long generation) throws IOException {
+            CategoryDictionary categories = store.categories();
+            ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+            DataOutputStream sections = new DataOutputStream(sectionBytes);
+            for (int i = 0; i < categories.size(); i++) {
+                byte[] name = categories.name(i).getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xFFFF) {
+                    throw new IOException("Category name too long: " + categories.name(i));
+                }
+                sections.writeShort(name.length);
+                sections.write(name);
+            }
+            long rollupOffset = HEADER_SIZE + sections.size();
+            RollupCube rollup = store.rollup();
+            sections.writeInt(rollup.cellCount());
+            rollup.forEachCell((categoryId, month, cents, rows) -> {
+                try {
+                    sections.writeInt(categoryId);
+                    sections.writeInt(month);
+                    sections.writeLong(cents);
+                    sections.writeLong(rows);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            sections.writeInt(budgets.size());
+            for (BudgetBook.Budget budget : budgets) {
+                // a negative length marks a budget over all categories
+                if (budget.category == null) {
+                    sections.writeShort(-1);
+                } else {
+                    byte[] name = budget.category.getBytes(StandardCharsets.UTF_8);
+                    if (name.length > Short.MAX_VALUE) {
+                        throw new IOException("Category name too long: " + budget.category);
+                    }
+                    sections.writeShort(name.length);
+                    sections.write(name);
+                }
+                sections.writeByte(budget.period);
+                sections.writeLong(budget.limitCents);
+            }
+            sections.writeInt(store.replica());
+            sections.writeLong(store.nextSerial());
+            IntList coldDeadRows = store.coldDeadRows();
+            int[] patches = store.dirtyChunks();
+            int firstHot = store.coldRows() - coldDeadRows.size();
+            int hotRows = store.size() - firstHot;
+            sections.writeInt(store.coldRows());
+            sections.writeInt(hotRows);
+            sections.writeInt(store.segments().size());
+            for (ColdSegment segment : store.segments()) {
+                byte[] name = segment.name.getBytes(StandardCharsets.UTF_8);
+                sections.writeShort(name.length);
+                sections.write(name);
+                sections.writeInt(segment.firstRow);
+                sections.writeInt(segment.rows);
+            }
+            sections.writeInt(coldDeadRows.size());
+            for (int i = 0; i < coldDeadRows.size(); i++) {
+                sections.writeInt(coldDeadRows.get(i));
+            }
+            sections.writeInt(patches.length);
+            for (int index : patches) {
+                sections.writeInt(index);
+            }
+            sections.flush();
+            long recordsOffset = (HEADER_SIZE + sectionBytes.size() + 7) & ~7L;
+            long recordCount = hotRows + (long) patches.length * ExpenseStore.CHUNK_SIZE;
+            if (recordsOffset + recordCount * RECORD_SIZE > Integer.MAX_VALUE) {
+                throw new IOException("Ledger too large for a single mapped segment");
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate((int) recordsOffset);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putLong(generation);
+                header.putLong(budgetCents);
+                header.putLong(store.totalCents());
+                header.putInt(categories.size());
+                header.putInt((int) recordCount);
+                header.putLong(HEADER_SIZE);
+                header.putLong(recordsOffset);
+                header.putLong(rollupOffset);
+                header.put(sectionBytes.toByteArray());
+                header.position(0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+
+                ByteBuffer records = ByteBuffer.allocateDirect(RECORD_SIZE * 4096);
+                for (int i = firstHot; i < store.size(); i++) {
+                    if (!records.hasRemaining()) {
+                        drain(channel, records);
+                    }
+                    records.putInt(store.categoryIdAt(i));
+                    records.putLong(store.amountCentsAt(i));
+                    records.putInt(store.epochDayAt(i));
+                    records.putLong(store.idAt(i));
+                }
+                for (int index : patches) {
+                    ExpenseStore.Chunk chunk = store.chunkAt(index);
+                    for (int offset = 0; offset < ExpenseStore.CHUNK_SIZE; offset++) {
+                        if (!records.hasRemaining()) {
+                            drain(channel, records);
+                        }
+                        records.putInt(chunk.categoryIds[offset]);
+                        records.putLong(chunk.amounts[offset]);
+                        records.putInt(chunk.days[offset]);
+                        records.putLong(chunk.ids[offset]);
+                    }
+                }
+                drain(channel, records);
+                channel.force(true);
+            }
+        }
+
+        private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // Sealed history: an immutable run of whole store chunks, each compressed
+    // with Deflate into its own block, written once and never rewritten.
+    //   header (16 bytes): magic, version, first row, rows
+    //   index:             per block: offset, compressed length, earliest and
+    //                      latest dated day, total cents of its rows
+    //   blocks:            ids, category ids, amounts and days, column after column
+    // The index is read when the ledger opens; a block is inflated only when a
+    // row in it is read, and is checked against its total when it is.
+    static class ColdSegment {
+        static final int MAGIC = 0x45434C44;
+        static final int VERSION = 1;
+        private static final int HEADER_SIZE = 16;
+        private static final int INDEX_ENTRY = 28;
+        private static final int BLOCK_BYTES = ExpenseStore.CHUNK_SIZE * 24;
+        private static final Metrics.Counter INFLATED = Metrics.getInstance().counter("ledger.cold.inflated");
+
+        final String name;
+        final int firstRow;
+        final int rows;
+        private int[] minDays;
+        private int[] maxDays;
+        private long[] cents;
+        private long[] offsets;
+        private int[] lengths;
+        private volatile MappedByteBuffer map;
+
+        private ColdSegment(String name, int firstRow, int rows) {
+            this.name = name;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+
+        // A segment for rows about to be sealed; its file is written by the next snapshot.
+        static ColdSegment create(int firstRow, int rows) {
+            return new ColdSegment(String.format("cold-%010d-%08x.seg", firstRow, new Random().nextInt()),
+                    firstRow, rows);
+        }
+
+        static ColdSegment open(File directory, String name, int firstRow, int rows) throws IOException {
+            File file = new File(directory, name);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int blocks = rows / ExpenseStore.CHUNK_SIZE;
+                if (map.capacity() < HEADER_SIZE + (long) blocks * INDEX_ENTRY || map.getInt(0) != MAGIC
+                        || map.getInt(8) != firstRow || map.getInt(12) != rows) {
+                    throw new IOException("Not the cold segment the ledger expects: " + file);
+                }
+                if (map.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported cold segment version " + map.getInt(4) + ": " + file);
+                }
+                ColdSegment segment = new ColdSegment(name, firstRow, rows);
+                segment.allocateIndex(blocks);
+                ByteBuffer index = map.duplicate();
+                index.position(HEADER_SIZE);
+                for (int block = 0; block < blocks; block++) {
+                    segment.offsets[block] = index.getLong();
+                    segment.lengths[block] = index.getInt();
+                    segment.minDays[block] = index.getInt();
+                    segment.maxDays[block] = index.getInt();
+                    segment.cents[block] = index.getLong();
+                    if (segment.offsets[block] + segment.lengths[block] > map.capacity()) {
+                        throw new IOException("Truncated cold segment: " + file);
+                    }
+                }
+                segment.map = map;
+                return segment;
+            }
+        }
+
+        private void allocateIndex(int blocks) {
+            offsets = new long[blocks];
+            lengths = new int[blocks];
+            minDays = new int[blocks];
+            maxDays = new int[blocks];
+            cents = new long[blocks];
+        }
+
+        boolean isWritten() {
+            return map != null;
+        }
+
+        // Compresses the segment's rows from store into the directory, through a
+        // temporary file so a crash never leaves a torn segment under its name.
+        void write(File directory, ExpenseStore store) throws IOException {
+            int blocks = rows / ExpenseStore.CHUNK_SIZE;
+            allocateIndex(blocks);
+            File file = new File(directory, name);
+            File tmp = new File(directory, name + ".tmp");
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer raw = ByteBuffer.allocate(BLOCK_BYTES);
+                ByteBuffer compressed = ByteBuffer.allocateDirect(BLOCK_BYTES);
+                long position = HEADER_SIZE + (long) blocks * INDEX_ENTRY;
+                for (int block = 0; block < blocks; block++) {
+                    ExpenseStore.Chunk chunk = store.chunkAt(firstRow / ExpenseStore.CHUNK_SIZE + block);
+                    raw.clear();
+                    raw.asLongBuffer().put(chunk.ids);
+                    raw.position(ExpenseStore.CHUNK_SIZE * 8);
+                    raw.asIntBuffer().put(chunk.categoryIds);
+                    raw.position(ExpenseStore.CHUNK_SIZE * 12);
+                    raw.asLongBuffer().put(chunk.amounts);
+                    raw.position(ExpenseStore.CHUNK_SIZE * 20);
+                    raw.asIntBuffer().put(chunk.days);
+                    raw.clear();
+                    offsets[block] = position;
+                    deflater.reset();
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        compressed.clear();
+                        deflater.deflate(compressed);
+                        compressed.flip();
+                        while (compressed.hasRemaining()) {
+                            position += channel.write(compressed, position);
+                        }
+                    }
+                    lengths[block] = (int) (position - offsets[block]);
+                    int min = Integer.MAX_VALUE;
+                    int max = Integer.MIN_VALUE;
+                    long total = 0;
+                    for (int offset = 0; offset < ExpenseStore.CHUNK_SIZE; offset++) {
+                        int day = chunk.days[offset];
+                        if (day != ExpenseStore.NO_DATE) {
+                            min = Math.min(min, day);
+                            max = Math.max(max, day);
+                        }
+                        total += chunk.amounts[offset];
+                    }
+                    minDays[block] = min;
+                    maxDays[block] = max;
+                    cents[block] = total;
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + blocks * INDEX_ENTRY);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(firstRow);
+                header.putInt(rows);
+                for (int block = 0; block < blocks; block++) {
+                    header.putLong(offsets[block]);
+                    header.putInt(lengths[block]);
+                    header.putInt(minDays[block]);
+                    header.putInt(maxDays[block]);
+                    header.putLong(cents[block]);
+                }
+                header.flip();
+                for (long at = 0; header.hasRemaining(); ) {
+                    at += channel.write(header, at);
+                }
+                channel.force(true);
+            } finally {
+                deflater.end();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        // False only when the block has no dated row in [fromDay, toDay].
+        boolean mayHold(int block, int fromDay, int toDay) {
+            return maxDays[block] >= fromDay && minDays[block] <= toDay;
+        }
+
+        ExpenseStore.Chunk read(int block) {
+            ByteBuffer compressed = map.duplicate();
+            compressed.position((int) offsets[block]);
+            compressed.limit((int) offsets[block] + lengths[block]);
+            ByteBuffer raw = ByteBuffer.allocate(BLOCK_BYTES);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                while (raw.hasRemaining() && !inflater.finished()) {
+                    if (inflater.inflate(raw) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new UncheckedIOException(new IOException("Corrupt cold segment block " + block + ": " + name, e));
+            } finally {
+                inflater.end();
+            }
+            if (raw.hasRemaining()) {
+                throw new UncheckedIOException(new IOException("Short cold segment block " + block + ": " + name));
+            }
+            ExpenseStore.Chunk chunk = new ExpenseStore.Chunk();
+            raw.flip();
+            raw.asLongBuffer().get(chunk.ids);
+            raw.position(ExpenseStore.CHUNK_SIZE * 8);
+            raw.asIntBuffer().get(chunk.categoryIds);
+            raw.position(ExpenseStore.CHUNK_SIZE * 12);
+            raw.asLongBuffer().get(chunk.amounts);
+            raw.position(ExpenseStore.CHUNK_SIZE * 20);
+            raw.asIntBuffer().get(chunk.days);
+            long total = 0;
+            for (long amount : chunk.amounts) {
+                total += amount;
+            }
+            if (total != cents[block]) {
+                throw new UncheckedIOException(new IOException("Corrupt cold segment block " + block + ": " + name));
+            }
+            INFLATED.increment();
+            return chunk;
+        }
+    }
+
+    // Append-only log of ledger mutations on top of a periodic snapshot.
+    // Every change costs one small append; the snapshot is rewritten only
+    // when the journal grows past COMPACT_THRESHOLD records.
+    static class ExpenseJournal {
+        private static final int MAGIC = 0x454A524E;
+        private static final int VERSION = 3;
+        static final int COMPACT_THRESHOLD = 1000;
+
+        private static final byte OP_ADD = 1;
+        private static final byte OP_EDIT = 2;
+        private static final byte OP_DELETE = 3;
+        private static final byte OP_BUDGET = 4;
+        private static final byte OP_ADD_ROWS = 5;
+        private static final byte OP_INSERT = 6;
+        private static final byte OP_CATEGORY_BUDGET = 7;
+
+        private final File snapshotFile;
+        private final File legacySnapshotFile;
+        private final File journalFile;
+        private FileOutputStream fileOut;
+        private DataOutputStream out;
+        private long bytesInClosedStreams;
+        private long generation;
+        private int replayedVersion;
+        private int recordsSinceSnapshot;
+
+        public ExpenseJournal(String snapshotPath, String legacySnapshotPath, String journalPath) {
+            this.snapshotFile = new File(snapshotPath);
+            this.legacySnapshotFile = new File(legacySnapshotPath);
+            this.journalFile = new File(journalPath);
+        }
+
+        static class LedgerState {
+            ExpenseStore expenses = new ExpenseStore();
+            long budgetCents;
+            List<BudgetBook.Budget> budgets = new ArrayList<>();
+
+            void add(Expense expense) {
+                expenses.add(expense);
+            }
+
+            void edit(int index, Expense newExpense) {
+                expenses.set(index, newExpense);
+            }
+
+            void delete(int index) {
+                expenses.remove(index);
+            }
+
+            void insert(int index, Expense expense) {
+                expenses.insert(index, expense);
+            }
+
+            void setBudget(BudgetBook.Budget budget) {
+                budgets.removeIf(budget::sameKey);
+                if (budget.limitCents > 0) {
+                    budgets.add(budget);
+                }
+            }
+        }
+
+        // Reads the last snapshot and replays every journal record written after it.
+        public LedgerState load() throws IOException {
+            Metrics.LoadEvent event = new Metrics.LoadEvent();
+            event.begin();
+            long start = System.nanoTime();
+            LedgerState state = new LedgerState();
+            generation = 0;
+            int snapshotVersion = 0;
+            if (snapshotFile.exists()) {
+                LedgerFile ledger = LedgerFile.open(snapshotFile);
+                snapshotVersion = ledger.version;
+                state.expenses = ledger.store;
+                state.budgetCents = ledger.budgetCents;
+                state.budgets = ledger.budgets;
+                generation = ledger.generation;
+            } else if (legacySnapshotFile.exists()) {
+                // expense_data.ser from before the binary ledger format
+                try (ObjectInputStream ois = new ObjectInputStream(
+                        new BufferedInputStream(new FileInputStream(legacySnapshotFile)))) {
+                    @SuppressWarnings("unchecked")
+                    List<Expense> expenses = (List<Expense>) ois.readObject();
+                    state.expenses = ExpenseStore.fromList(expenses);
+                    state.budgetCents = ExpenseStore.toCents(ois.readDouble());
+                    ois.readObject(); // per-category spending, now derived by the rollup
+                    try {
+                        generation = ois.readLong();
+                    } catch (EOFException e) {
+                        // snapshot written before the journal existed
+                    }
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Corrupt snapshot: " + legacySnapshotFile, e);
+                }
+            }
+            deleteUnusedSegments(state.expenses);
+            long validLength = replay(state);
+            if (snapshotVersion < LedgerFile.VERSION || replayedVersion < VERSION && validLength > 0) {
+                // fold records in the old encoding into a snapshot rather than append after
+                // them; a new or pre-id ledger gets its replica number written down too
+                compact(state.expenses, state.budgetCents, state.budgets);
+            } else {
+                openForAppend(validLength);
+            }
+
+            long bytes = (snapshotFile.exists() ? snapshotFile.length() : legacySnapshotFile.length()) + validLength;
+            Metrics metrics = Metrics.getInstance();
+            metrics.histogram("ledger.load").record(System.nanoTime() - start);
+            metrics.counter("ledger.load.bytes").add(bytes);
+            event.rows = state.expenses.size();
+            event.bytes = bytes;
+            event.commit();
+            return state;
+        }
+
+        // Segments the snapshot does not name were sealed by a snapshot that never
+        // landed, or left behind when a rebuild unsealed the rows.
+        private void deleteUnusedSegments(ExpenseStore expenses) {
+            Set<String> used = new HashSet<>();
+            for (ColdSegment segment : expenses.segments()) {
+                used.add(segment.name);
+            }
+            File[] files = directory().listFiles((dir, name) -> name.startsWith("cold-")
+                    && (name.endsWith(".seg") || name.endsWith(".seg.tmp")));
+            for (File file : files == null ? new File[0] : files) {
+                if (!used.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+
+        private long replay(LedgerState state) throws IOException {
+            recordsSinceSnapshot = 0;
+            replayedVersion = VERSION;
+            if (!journalFile.exists() || journalFile.length() == 0) {
+                return 0;
+            }
+            try (CountingInputStream counter = new CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(journalFile)))) {
+                DataInputStream in = new DataInputStream(counter);
+                int version = in.readInt() == MAGIC ? in.readInt() : -1;
+                if (version < 1 || version > VERSION) {
+                    throw new IOException("Unrecognised journal format: " + journalFile);
+                }
+                replayedVersion = version;
+                if (in.readLong() != generation) {
+                    // already folded into the snapshot by an interrupted compaction
+                    return 0;
+                }
+                long validLength = counter.count;
+                while (true) {
+                    try {
+                        byte op = in.readByte();
+                        switch (op) {
+                            case OP_ADD:
+                                state.add(readAdded(in, version));
+                                break;
+                            case OP_EDIT: {
+                                int index = in.readInt();
+                                state.edit(index, readExpense(in, version));
+                                break;
+                            }
+                            case OP_DELETE:
+                                state.delete(in.readInt());
+                                break;
+                            case OP_INSERT: {
+                                int index = in.readInt();
+                                state.insert(index, readAdded(in, version));
+                                break;
+                            }
+                            case OP_BUDGET:
+                                state.budgetCents = version == 1 ? ExpenseStore.toCents(in.readDouble()) : in.readLong();
+                                break;
+                            case OP_CATEGORY_BUDGET: {
+                                String category = in.readBoolean() ? in.readUTF() : null;
+                                byte period = in.readByte();
+                                state.setBudget(new BudgetBook.Budget(category, period, in.readLong()));
+                                break;
+                            }
+                            case OP_ADD_ROWS: {
+                                int count = in.readInt();
+                                String[] categories = new String[count];
+                                long[] cents = new long[count];
+                                int[] days = new int[count];
+                                for (int i = 0; i < count; i++) {
+                                    categories[i] = in.readUTF();
+                                    cents[i] = in.readLong();
+                                    days[i] = in.readInt();
+                                }
+                                // apply only once the whole batch has been read
+                                for (int i = 0; i < count; i++) {
+                                    state.expenses.append(state.expenses.categories().intern(categories[i]),
+                                            cents[i], days[i]);
+                                }
+                                recordsSinceSnapshot += count - 1;
+                                break;
+                            }
+                            default:
+                                throw new IOException("Unknown journal record " + op + " at " + validLength);
+                        }
+                        validLength = counter.count;
+                        recordsSinceSnapshot++;
+                    } catch (EOFException e) {
+                        // torn tail from a crash mid-append; drop it
+                        return validLength;
+                    }
+                }
+            }
+        }
+
+        // Version 1 journals stored the amount as a double.
+        private static Expense readExpense(DataInputStream in, int version) throws IOException {
+            String category = in.readUTF();
+            long amountCents = version == 1 ? ExpenseStore.toCents(in.readDouble()) : in.readLong();
+            String date = in.readUTF();
+            return new Expense(category, amountCents, date);
+        }
+
+        // Since version 3 a row entering the ledger is followed by its id.
+        private static Expense readAdded(DataInputStream in, int version) throws IOException {
+            Expense expense = readExpense(in, version);
+            if (version < 3) {
+                return expense;
+            }
+            return new Expense(in.readLong(), expense.getCategory(), expense.getAmountCents(), expense.getDate());
+        }
+
+        static class CountingInputStream extends FilterInputStream {
+            long count;
+
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    count += n;
+                }
+                return n;
+            }
+        }
+
+        private void openForAppend(long validLength) throws IOException {
+            if (validLength == 0) {
+                resetJournal();
+                return;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                raf.setLength(validLength);
+            }
+            fileOut = new FileOutputStream(journalFile, true);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        }
+
+        private void resetJournal() throws IOException {
+            if (out != null) {
+                bytesInClosedStreams += out.size();
+                out.close();
+            }
+            fileOut = new FileOutputStream(journalFile, false);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            flush();
+            recordsSinceSnapshot = 0;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (out == null) {
+                throw new IOException("Journal is not open: " + journalFile);
+            }
+        }
+
+        public void appendAdd(Expense expense) throws IOException {
+            ensureOpen();
+            out.writeByte(OP_ADD);
+            writeExpense(expense);
+            out.writeLong(expense.getId());
+            commit();
+        }
+
+        public void appendEdit(int index, Expense expense) throws IOException {
+            ensureOpen();
+            out.writeByte(OP_EDIT);
+            out.writeInt(index);
+            writeExpense(expense);
+            commit();
+        }
+
+        public void appendDelete(int index) throws IOException {
+            ensureOpen();
+            out.writeByte(OP_DELETE);
+            out.writeInt(index);
+            commit();
+        }
+
+        // A row put back at a position, as written by undo and redo.
+        public void appendInsert(int index, Expense expense) throws IOException {
+            ensureOpen();
+            out.writeByte(OP_INSERT);
+            out.writeInt(index);
+            writeExpense(expense);
+            out.writeLong(expense.getId());
+            commit();
+        }
+
+        // A category or period budget; a zero limit removes it.
+        public void appendCategoryBudget(BudgetBook.Budget budget) throws IOException {
+            ensureOpen();
+            out.writeByte(OP_CATEGORY_BUDGET);
+            out.writeBoolean(budget.category != null);
+            if (budget.category != null) {
+                out.writeUTF(budget.category);
+            }
+            out.writeByte(budget.period);
+            out.writeLong(budget.limitCents);
+            commit();
+        }
+
+        public void appendBudget(long budgetCents) throws IOException {
+            ensureOpen();
+            out.writeByte(OP_BUDGET);
+            out.writeLong(budgetCents);
+            commit();
+        }
+
+        // One record for a whole batch of new rows, as written by bulk imports.
+        public void appendRows(String[] categories, long[] cents, int[] days, int count) throws IOException {
+            ensureOpen();
+            out.writeByte(OP_ADD_ROWS);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeUTF(categories[i]);
+                out.writeLong(cents[i]);
+                out.writeInt(days[i]);
+            }
+            recordsSinceSnapshot += count;
+        }
+
+        private void writeExpense(Expense expense) throws IOException {
+            out.writeUTF(expense.getCategory());
+            out.writeLong(expense.getAmountCents());
+            out.writeUTF(expense.getDate());
+        }
+
+        private void commit() {
+            recordsSinceSnapshot++;
+        }
+
+        // Pushes buffered records to disk; callers batch several appends per flush.
+        public void flush() throws IOException {
+            ensureOpen();
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        public int recordsSinceSnapshot() {
+            return recordsSinceSnapshot;
+        }
+
+        // The partition directory, where other per-ledger files such as the sync state live.
+        public File directory() {
+            return journalFile.getAbsoluteFile().getParentFile();
+        }
+
+        // Bytes handed to the journal stream since this journal was opened.
+        public long bytesWritten() {
+            return bytesInClosedStreams + (out == null ? 0 : out.size());
+        }
+
+        // Writes a fresh snapshot under the next generation, then starts an empty journal.
+        public void compact(ExpenseStore expenses, long budgetCents, List<BudgetBook.Budget> budgets)
+                throws IOException {
+            Metrics.SaveEvent event = new Metrics.SaveEvent();
+            event.begin();
+            long start = System.nanoTime();
+            long nextGeneration = generation + 1;
+            long bytes = 0;
+            for (ColdSegment segment : expenses.segments()) {
+                if (!segment.isWritten()) {
+                    long sealStart = System.nanoTime();
+                    segment.write(directory(), expenses);
+                    Metrics metrics = Metrics.getInstance();
+                    metrics.histogram("ledger.cold.seal").record(System.nanoTime() - sealStart);
+                    metrics.counter("ledger.cold.sealedRows").add(segment.rows);
+                    bytes += new File(directory(), segment.name).length();
+                }
+            }
+            File tmp = new File(snapshotFile.getPath() + ".tmp");
+            LedgerFile.write(tmp, expenses, budgetCents, budgets, nextGeneration);
+            bytes += tmp.length();
+            Files.move(tmp.toPath(), snapshotFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            generation = nextGeneration;
+            resetJournal();
+
+            Metrics metrics = Metrics.getInstance();
+            metrics.histogram("ledger.snapshot").record(System.nanoTime() - start);
+            metrics.counter("ledger.snapshot.bytes").add(bytes);
+            event.kind = "snapshot";
+            event.records = expenses.size();
+            event.bytes = bytes;
+            event.commit();
+        }
+
+        public void close() throws IOException {
+            if (out != null) {
+                flush();
+                out.close();
+                out = null;
+                fileOut = null;
+            }
+        }
+    }
+
+    // Maps each username to its own ledger directory under ledgers/, so a login
+    // only opens that user's snapshot and journal. The index is a small
+    // append-only file of (username, directory) records.
+    static class LedgerPartitions {
+        private static final String INDEX_FILE = "index";
+        private static final String[] LEGACY_FILES = {
+                "expense_data.ledger", "expense_data.ser", "expense_data.journal"};
+
+        private final File root;
+
+        public LedgerPartitions(File root) {
+            this.root = root;
+        }
+
+        public synchronized ExpenseJournal openJournal(String username) throws IOException {
+            File dir = partitionFor(username);
+            return new ExpenseJournal(new File(dir, "expense_data.ledger").getPath(),
+                    new File(dir, "expense_data.ser").getPath(),
+                    new File(dir, "expense_data.journal").getPath());
+        }
+
+        private File partitionFor(String username) throws IOException {
+            Map<String, String> index = readIndex();
+            String name = index.get(username);
+            if (name == null) {
+                name = "u" + (index.size() + 1);
+                File dir = new File(root, name);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create ledger directory " + dir);
+                }
+                if (index.isEmpty()) {
+                    adoptLegacyLedger(dir);
+                }
+                // on disk before the directory is used, so a crash cannot lose the
+                // record and hand the same name to the next new user
+                try (FileOutputStream file = new FileOutputStream(new File(root, INDEX_FILE), true)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                    out.writeUTF(username);
+                    out.writeUTF(name);
+                    out.flush();
+                    file.getChannel().force(true);
+                }
+            }
+            return new File(root, name);
+        }
+
+        private Map<String, String> readIndex() throws IOException {
+            Map<String, String> index = new HashMap<>();
+            File file = new File(root, INDEX_FILE);
+            if (!file.exists()) {
+                return index;
+            }
+            long validLength = 0;
+            try (ExpenseJournal.CountingInputStream counter = new ExpenseJournal.CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                DataInputStream in = new DataInputStream(counter);
+                while (true) {
+                    String username = in.readUTF();
+                    String name = in.readUTF();
+                    index.put(username, name);
+                    validLength = counter.count;
+                }
+            } catch (EOFException e) {
+                // end of the index, or a torn final record that is dropped below
+            }
+            if (validLength < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+            return index;
+        }
+
+        // Before partitioning every user shared one ledger in the working
+        // directory; the first user to get a partition inherits it.
+        private void adoptLegacyLedger(File dir) throws IOException {
+            for (String name : LEGACY_FILES) {
+                File legacy = new File(name);
+                if (legacy.exists()) {
+                    Files.move(legacy.toPath(), new File(dir, name).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    // Background thread that owns the journal. Mutations are queued from the
+    // EDT and every burst that piles up while a write is in flight is committed
+    // with a single flush.
+    static class PersistenceWriter {
+        interface Task {
+            void run(ExpenseJournal journal) throws IOException;
+        }
+
+        private final ExpenseJournal journal;
+        private final Consumer<IOException> errorHandler;
+        private final LinkedBlockingQueue<Task> queue =
+                new LinkedBlockingQueue<>();
+        private final Object durableLock = new Object();
+        private final Thread thread;
+        private final AtomicInteger sinceSnapshot;
+        private final Metrics.Histogram flushLatency = Metrics.getInstance().histogram("journal.flush");
+        private final Metrics.Counter flushedBytes = Metrics.getInstance().counter("journal.bytes");
+        private final Metrics.Counter journalRecords = Metrics.getInstance().counter("journal.records");
+        private long submitted;
+        private long durable;
+        // first failure; nothing is written after it, so the journal on disk is
+        // always a prefix of the changes and replay never skips one
+        private volatile IOException failure;
+        private volatile boolean running = true;
+
+        public PersistenceWriter(ExpenseJournal journal,
+                                 Consumer<IOException> errorHandler) {
+            this.journal = journal;
+            this.errorHandler = errorHandler;
+            this.sinceSnapshot = new AtomicInteger(journal.recordsSinceSnapshot());
+            thread = new Thread(this::runLoop, "expense-persistence");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void submit(Task task) {
+            submit(task, 1);
+        }
+
+        // records is the number of ledger rows the task journals, used to schedule compaction.
+        public void submit(Task task, int records) {
+            synchronized (durableLock) {
+                submitted++;
+            }
+            if (failure != null) {
+                return;
+            }
+            sinceSnapshot.addAndGet(records);
+            queue.add(task);
+        }
+
+        public IOException failure() {
+            return failure;
+        }
+
+        public boolean needsSnapshot() {
+            return sinceSnapshot.get() >= ExpenseJournal.COMPACT_THRESHOLD;
+        }
+
+        // The caller hands over a private copy of the ledger taken at this point in the stream.
+        public void submitSnapshot(ExpenseStore expenses, long budgetCents, List<BudgetBook.Budget> budgets) {
+            sinceSnapshot.set(0);
+            synchronized (durableLock) {
+                submitted++;
+            }
+            if (failure == null) {
+                queue.add(j -> j.compact(expenses, budgetCents, budgets));
+            }
+        }
+
+        // Stops at the first failure of any kind, leaving the failed batch and
+        // everything after it unacknowledged.
+        private void runLoop() {
+            ArrayList<Task> batch = new ArrayList<>();
+            while (running || !queue.isEmpty()) {
+                try {
+                    Task first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    Metrics.SaveEvent event = new Metrics.SaveEvent();
+                    event.begin();
+                    long start = System.nanoTime();
+                    long bytesBefore = journal.bytesWritten();
+                    for (Task task : batch) {
+                        task.run(journal);
+                    }
+                    journal.flush();
+                    flushLatency.record(System.nanoTime() - start);
+                    long bytes = Math.max(0, journal.bytesWritten() - bytesBefore);
+                    flushedBytes.add(bytes);
+                    journalRecords.add(batch.size());
+                    event.kind = "journal";
+                    event.records = batch.size();
+                    event.bytes = bytes;
+                    event.commit();
+                    synchronized (durableLock) {
+                        durable += batch.size();
+                        durableLock.notifyAll();
+                    }
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Throwable e) {
+                    fail(e);
+                    return;
+                }
+            }
+        }
+
+        private void fail(Throwable e) {
+            IOException error = e instanceof IOException ? (IOException) e
+                    : new IOException("Journal writer failed: " + e, e);
+            synchronized (durableLock) {
+                failure = error;
+                durableLock.notifyAll();
+            }
+            queue.clear();
+            Metrics.getInstance().counter("errors.journal").increment();
+            errorHandler.accept(error);
+        }
+
+        // Blocks until everything submitted so far has been written and flushed,
+        // and throws the writer's failure instead if it never will be.
+        public void awaitDurable() throws InterruptedException, IOException {
+            synchronized (durableLock) {
+                long target = submitted;
+                while (durable < target && failure == null && thread.isAlive()) {
+                    durableLock.wait(100);
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (durable < target) {
+                    throw new IOException("Journal writer stopped with " + (target - durable) + " changes unsaved");
+                }
+            }
+        }
+
+        public void close() throws InterruptedException, IOException {
+            try {
+                awaitDurable();
+            } finally {
+                running = false;
+                thread.join();
+                journal.close();
+            }
+        }
+    }
+
+    // Bounded undo/redo log. Each command carries both sides of a change, so
+    // undoing or redoing one is a single store mutation. Recording a new
+    // command drops the redo tail; once full, the oldest command is overwritten.
+    static class CommandHistory {
+        static final int DEFAULT_CAPACITY = 1000;
+
+        static final byte ADD = 1;
+        static final byte EDIT = 2;
+        static final byte DELETE = 3;
+        static final byte BUDGET = 4;
+
+        static final class Command {
+            final byte kind;
+            final int position;
+            final Expense before;
+            final Expense after;
+            final long budgetBefore;
+            final long budgetAfter;
+
+            Command(byte kind, int position, Expense before, Expense after, long budgetBefore, long budgetAfter) {
+                this.kind = kind;
+                this.position = position;
+                this.before = before;
+                this.after = after;
+                this.budgetBefore = budgetBefore;
+                this.budgetAfter = budgetAfter;
+            }
+
+            String describe() {
+                switch (kind) {
+                    case ADD:
+                        return "add " + after.getCategory() + " " + ExpenseStore.formatCents(after.getAmountCents());
+                    case EDIT:
+                        return "edit of " + before.getCategory() + " " + ExpenseStore.formatCents(before.getAmountCents());
+                    case DELETE:
+                        return "delete " + before.getCategory() + " " + ExpenseStore.formatCents(before.getAmountCents());
+                    default:
+                        return "budget " + ExpenseStore.formatCents(budgetAfter);
+                }
+            }
+        }
+
+        private final Command[] ring;
+        private int oldest;
+        private int count;
+        private int cursor;
+
+        CommandHistory(int capacity) {
+            ring = new Command[capacity];
+        }
+
+        void record(Command command) {
+            discardRedo();
+            if (count == ring.length) {
+                oldest = slot(1);
+                count--;
+            }
+            ring[slot(count)] = command;
+            cursor = ++count;
+        }
+
+        Command undo() {
+            return cursor == 0 ? null : ring[slot(--cursor)];
+        }
+
+        Command redo() {
+            return cursor == count ? null : ring[slot(cursor++)];
+        }
+
+        boolean canUndo() {
+            return cursor > 0;
+        }
+
+        boolean canRedo() {
+            return cursor < count;
+        }
+
+        // Forgets the undone commands, as when rows are added that no command
+        // records: redoing an add would then insert in the middle of the ledger.
+        void discardRedo() {
+            for (int i = cursor; i < count; i++) {
+                ring[slot(i)] = null;
+            }
+            count = cursor;
+        }
+
+        // Forgets every command, as when a sync has moved the positions they refer to.
+        void clear() {
+            Arrays.fill(ring, null);
+            oldest = 0;
+            count = 0;
+            cursor = 0;
+        }
+
+        private int slot(int i) {
+            return (oldest + i) % ring.length;
+        }
+    }
+
+    // Category and period budgets with running totals. Each change to the ledger
+    // reaches only the budgets it can affect (those on its category and the
+    // all-category ones) as a delta, and a status is reported only when a
+    // budget actually crosses between within, near the limit and over, so a
+    // mutation costs O(affected budgets) however many are active.
+    static class BudgetBook {
+        static final byte MONTHLY = 1;
+        static final byte YEARLY = 2;
+        static final byte TOTAL = 3;
+
+        static final byte WITHIN = 0;
+        static final byte NEAR = 1;
+        static final byte OVER = 2;
+
+        // A limit on one category, or on all of them when category is null.
+        static final class Budget {
+            final String category;
+            final byte period;
+            final long limitCents;
+
+            Budget(String category, byte period, long limitCents) {
+                if (period != MONTHLY && period != YEARLY && period != TOTAL) {
+                    throw new IllegalArgumentException("Unknown budget period " + period);
+                }
+                if (limitCents < 0) {
+                    throw new IllegalArgumentException("Budget cannot be negative");
+                }
+                this.category = category;
+                this.period = period;
+                this.limitCents = limitCents;
+            }
+
+            boolean sameKey(Budget other) {
+                return period == other.period && Objects.equals(category, other.category);
+            }
+
+            boolean isOverall() {
+                return category == null && period == TOTAL;
+            }
+
+            String describe() {
+                String name = category == null ? "All categories" : category;
+                return name + (period == MONTHLY ? " (monthly)" : period == YEARLY ? " (yearly)" : "");
+            }
+        }
+
+        // A budget's spending in its current period, as reported to listeners.
+        static final class Status {
+            final Budget budget;
+            final long spentCents;
+            final byte state;
+
+            Status(Budget budget, long spentCents, byte state) {
+                this.budget = budget;
+                this.spentCents = spentCents;
+                this.state = state;
+            }
+
+            long remainingCents() {
+                return budget.limitCents - spentCents;
+            }
+
+            String stateName() {
+                return state == OVER ? "OVER BUDGET" : state == NEAR ? "NEAR LIMIT" : "Within Budget";
+            }
+        }
+
+        private static final class Tracker {
+            final Budget budget;
+            // -1 for the all-category budgets, and for a category the ledger
+            // has no rows in yet
+            int categoryId;
+            int fromMonth;
+            int toMonth;
+            long spentCents;
+            byte state;
+
+            Tracker(Budget budget, int categoryId) {
+                this.budget = budget;
+                this.categoryId = categoryId;
+            }
+
+            // Near the limit means less than a tenth of it left.
+            byte evaluate() {
+                long remaining = budget.limitCents - spentCents;
+                return remaining < 0 ? OVER : remaining * 10 < budget.limitCents ? NEAR : WITHIN;
+            }
+
+            Status status() {
+                return new Status(budget, spentCents, state);
+            }
+        }
+
+        private final IntSupplier today;
+        private final ArrayList<Tracker> trackers = new ArrayList<>();
+        private final ArrayList<ArrayList<Tracker>> byCategory = new ArrayList<>();
+        private final ArrayList<Tracker> allCategories = new ArrayList<>();
+        // budgets on categories not in the dictionary yet, looked up again when
+        // a row arrives with a category id the book has not seen
+        private final ArrayList<Tracker> unresolved = new ArrayList<>();
+        private CategoryDictionary categories;
+        private int knownCategories;
+        private int currentMonth;
+
+        BudgetBook(IntSupplier today) {
+            this.today = today;
+            this.currentMonth = RollupCube.monthOf(today.getAsInt());
+        }
+
+        // Adds or replaces a budget (a zero limit removes it) and seeds its
+        // running total from the rollup. Returns the new status. The category
+        // is only looked up, never interned, so a budget leaves nothing behind
+        // in the ledger's dictionary.
+        Status set(Budget budget, ExpenseStore store) {
+            categories = store.categories();
+            knownCategories = categories.size();
+            for (int i = 0; i < trackers.size(); i++) {
+                Tracker old = trackers.get(i);
+                if (old.budget.sameKey(budget)) {
+                    trackers.remove(i);
+                    listOf(old).remove(old);
+                    break;
+                }
+            }
+            if (budget.limitCents == 0) {
+                return new Status(budget, 0, WITHIN);
+            }
+            int categoryId = budget.category == null ? -1 : categories.lookup(budget.category);
+            Tracker tracker = new Tracker(budget, categoryId);
+            seed(tracker, store.rollup());
+            trackers.add(tracker);
+            listOf(tracker).add(tracker);
+            return tracker.status();
+        }
+
+        private List<Tracker> listOf(Tracker tracker) {
+            if (tracker.budget.category == null) {
+                return allCategories;
+            }
+            if (tracker.categoryId < 0) {
+                return unresolved;
+            }
+            while (byCategory.size() <= tracker.categoryId) {
+                byCategory.add(new ArrayList<>());
+            }
+            return byCategory.get(tracker.categoryId);
+        }
+
+        // A category first seen after its budget was set has had nothing spent
+        // on it, so its budgets just move over with their totals as they are.
+        private void resolve() {
+            knownCategories = categories.size();
+            for (int i = unresolved.size() - 1; i >= 0; i--) {
+                Tracker tracker = unresolved.get(i);
+                int categoryId = categories.lookup(tracker.budget.category);
+                if (categoryId >= 0) {
+                    unresolved.remove(i);
+                    tracker.categoryId = categoryId;
+                    listOf(tracker).add(tracker);
+                }
+            }
+        }
+
+        // One row's worth of spending entering (positive) or leaving a category;
+        // budgets that change state are added to crossings.
+        void apply(int categoryId, int epochDay, long cents, List<Status> crossings) {
+            if (categoryId >= knownCategories && !unresolved.isEmpty()) {
+                resolve();
+            }
+            int month = RollupCube.monthOf(epochDay);
+            if (categoryId < byCategory.size()) {
+                applyTo(byCategory.get(categoryId), month, cents, crossings);
+            }
+            applyTo(allCategories, month, cents, crossings);
+        }
+
+        private void applyTo(List<Tracker> list, int month, long cents, List<Status> crossings) {
+            for (int i = 0; i < list.size(); i++) {
+                Tracker tracker = list.get(i);
+                if (tracker.budget.period == TOTAL
+                        || (month != RollupCube.NO_MONTH && month >= tracker.fromMonth && month <= tracker.toMonth)) {
+                    tracker.spentCents += cents;
+                    byte state = tracker.evaluate();
+                    if (state != tracker.state) {
+                        tracker.state = state;
+                        crossings.add(tracker.status());
+                    }
+                }
+            }
+        }
+
+        // Moves monthly and yearly budgets on to the current calendar period.
+        // Costs one clock read unless the month has turned since the last call.
+        void roll(RollupCube rollup, List<Status> crossings) {
+            int month = RollupCube.monthOf(today.getAsInt());
+            if (month == currentMonth) {
+                return;
+            }
+            currentMonth = month;
+            for (Tracker tracker : trackers) {
+                if (tracker.budget.period != TOTAL) {
+                    byte before = tracker.state;
+                    seed(tracker, rollup);
+                    if (tracker.state != before) {
+                        crossings.add(tracker.status());
+                    }
+                }
+            }
+        }
+
+        private void seed(Tracker tracker, RollupCube rollup) {
+            int category = tracker.categoryId;
+            boolean all = tracker.budget.category == null;
+            if (tracker.budget.period == TOTAL) {
+                tracker.spentCents = all ? rollup.totalCents() : category < 0 ? 0 : rollup.categoryCents(category);
+            } else {
+                tracker.fromMonth = tracker.budget.period == MONTHLY ? currentMonth : Math.floorDiv(currentMonth, 12) * 12;
+                tracker.toMonth = tracker.budget.period == MONTHLY ? currentMonth : tracker.fromMonth + 11;
+                long spent = 0;
+                for (int month = tracker.fromMonth; month <= tracker.toMonth; month++) {
+                    spent += all ? rollup.monthCents(month) : category < 0 ? 0 : rollup.cellCents(category, month);
+                }
+                tracker.spentCents = spent;
+            }
+            tracker.state = tracker.evaluate();
+        }
+
+        List<Status> statuses() {
+            List<Status> statuses = new ArrayList<>(trackers.size());
+            for (Tracker tracker : trackers) {
+                statuses.add(tracker.status());
+            }
+            return statuses;
+        }
+
+        // Everything but the overall budget, which the ledger stores on its own.
+        List<Budget> categoryBudgets() {
+            List<Budget> budgets = new ArrayList<>();
+            for (Tracker tracker : trackers) {
+                if (!tracker.budget.isOverall()) {
+                    budgets.add(tracker.budget);
+                }
+            }
+            return budgets;
+        }
+    }
+
+    // UI-independent ledger API. A single writer at a time mutates the store
+    // under a StampedLock write lock; point reads are optimistic and retry
+    // under the read lock only if a write raced them, and scans run under the
+    // read lock. Listeners are told about every change while the write lock is
+    // held, so they always see events in the order they were applied.
+    static class LedgerEngine {
+        interface Listener {
+            void rowsInserted(int first, int last);
+
+            void rowUpdated(int position);
+
+            void rowDeleted(int position);
+
+            void budgetChanged(long budgetCents);
+
+            // A budget moved between within, near the limit and over, or was set or removed.
+            void budgetCrossed(BudgetBook.Status status);
+        }
+
+        interface Query<T> {
+            T apply(ExpenseStore store);
+        }
+
+        private static final Metrics.Counter ADDS = Metrics.getInstance().counter("ledger.mutations.add");
+        private static final Metrics.Counter ROWS_IMPORTED = Metrics.getInstance().counter("ledger.mutations.importedRows");
+        private static final Metrics.Counter EDITS = Metrics.getInstance().counter("ledger.mutations.edit");
+        private static final Metrics.Counter DELETES = Metrics.getInstance().counter("ledger.mutations.delete");
+        private static final Metrics.Counter UNDOS = Metrics.getInstance().counter("ledger.mutations.undo");
+        private static final Metrics.Counter REDOS = Metrics.getInstance().counter("ledger.mutations.redo");
+        private static final Metrics.Counter BUDGETS = Metrics.getInstance().counter("ledger.mutations.budget");
+        private static final Metrics.Counter MERGES = Metrics.getInstance().counter("ledger.mutations.merged");
+
+        private final StampedLock lock = new StampedLock();
+        private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+        private final PersistenceWriter writer;
+        private final ExpenseStore expenses;
+        private final CommandHistory history = new CommandHistory(CommandHistory.DEFAULT_CAPACITY);
+        private final BudgetBook budgets = new BudgetBook(() -> (int) LocalDate.now().toEpochDay());
+        // crossings found during the current mutation, announced once it is applied
+        private final List<BudgetBook.Status> crossings = new ArrayList<>();
+        private long budgetCents;
+        // once attached, every local row change is also stamped for sync; changes
+        // merged from other devices are not fed back to it
+        private LedgerSync sync;
+        private boolean merging;
+
+        LedgerEngine(ExpenseJournal journal, ExpenseJournal.LedgerState state,
+                     Consumer<IOException> errorHandler) {
+            this.expenses = state.expenses;
+            this.budgetCents = state.budgetCents;
+            this.writer = new PersistenceWriter(journal, errorHandler);
+            if (budgetCents > 0) {
+                budgets.set(new BudgetBook.Budget(null, BudgetBook.TOTAL, budgetCents), expenses);
+            }
+            for (BudgetBook.Budget budget : state.budgets) {
+                budgets.set(budget, expenses);
+            }
+        }
+
+        public static LedgerEngine open(ExpenseJournal journal, Consumer<IOException> errorHandler)
+                throws IOException {
+            return new LedgerEngine(journal, journal.load(), errorHandler);
+        }
+
+        public void addListener(Listener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeListener(Listener listener) {
+            listeners.remove(listener);
+        }
+
+        static void validate(Expense expense) {
+            if (expense.getCategory() == null || expense.getCategory().trim().isEmpty()) {
+                throw new IllegalArgumentException("Category is required");
+            }
+            if (expense.getAmountCents() <= 0) {
+                throw new IllegalArgumentException("Amount must be positive");
+            }
+            ExpenseStore.parseDay(expense.getDate());
+        }
+
+        public int add(Expense expense) {
+            validate(expense);
+            long stamp = lockForChange();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                expenses.add(expense);
+                int position = expenses.size() - 1;
+                Expense stored = expenses.get(position);
+                track(position, 1);
+                persist(j -> j.appendAdd(stored), 1);
+                replicate(LedgerSync.ADD, position);
+                history.record(new CommandHistory.Command(CommandHistory.ADD, position, null, stored, 0, 0));
+                ADDS.increment();
+                for (Listener listener : listeners) {
+                    listener.rowsInserted(position, position);
+                }
+                announceCrossings();
+                return position;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public void addRows(String[] categories, long[] cents, int[] days, int count) {
+            if (count == 0) {
+                return;
+            }
+            long stamp = lockForChange();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                int first = expenses.size();
+                CategoryDictionary dictionary = expenses.categories();
+                for (int i = 0; i < count; i++) {
+                    int categoryId = dictionary.intern(categories[i]);
+                    expenses.append(categoryId, cents[i], days[i]);
+                    budgets.apply(categoryId, days[i], cents[i], crossings);
+                }
+                persist(j -> j.appendRows(categories, cents, days, count), count);
+                for (int i = 0; i < count; i++) {
+                    replicate(LedgerSync.ADD, first + i);
+                }
+                history.discardRedo();
+                ROWS_IMPORTED.add(count);
+                for (Listener listener : listeners) {
+                    listener.rowsInserted(first, first + count - 1);
+                }
+                announceCrossings();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public Expense edit(int position, Expense expense) {
+            validate(expense);
+            long stamp = lockForChange();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                track(position, -1);
+                Expense old = expenses.set(position, expense);
+                track(position, 1);
+                persist(j -> j.appendEdit(position, expense), 1);
+                replicate(LedgerSync.EDIT, position);
+                history.record(new CommandHistory.Command(CommandHistory.EDIT, position, old, expense, 0, 0));
+                EDITS.increment();
+                for (Listener listener : listeners) {
+                    listener.rowUpdated(position);
+                }
+                announceCrossings();
+                return old;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public Expense delete(int position) {
+            long stamp = lockForChange();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                track(position, -1);
+                replicate(LedgerSync.DELETE, position);
+                Expense old = expenses.remove(position);
+                persist(j -> j.appendDelete(position), 1);
+                history.record(new CommandHistory.Command(CommandHistory.DELETE, position, old, null, 0, 0));
+                DELETES.increment();
+                for (Listener listener : listeners) {
+                    listener.rowDeleted(position);
+                }
+                announceCrossings();
+                return old;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Reverts the most recent command; returns its description, or null if
+        // there is nothing left to undo.
+        public String undo() {
+            long stamp = lockForChange();
+            try {
+                CommandHistory.Command command = history.undo();
+                if (command == null) {
+                    return null;
+                }
+                budgets.roll(expenses.rollup(), crossings);
+                switch (command.kind) {
+                    case CommandHistory.ADD:
+                        removeAt(command.position);
+                        break;
+                    case CommandHistory.EDIT:
+                        replaceAt(command.position, command.before);
+                        break;
+                    case CommandHistory.DELETE:
+                        insertAt(command.position, command.before);
+                        break;
+                    default:
+                        applyBudget(command.budgetBefore);
+                }
+                UNDOS.increment();
+                announceCrossings();
+                return command.describe();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Re-applies the most recently undone command; returns its description,
+        // or null if there is nothing to redo.
+        public String redo() {
+            long stamp = lockForChange();
+            try {
+                CommandHistory.Command command = history.redo();
+                if (command == null) {
+                    return null;
+                }
+                budgets.roll(expenses.rollup(), crossings);
+                switch (command.kind) {
+                    case CommandHistory.ADD:
+                        insertAt(command.position, command.after);
+                        break;
+                    case CommandHistory.EDIT:
+                        replaceAt(command.position, command.after);
+                        break;
+                    case CommandHistory.DELETE:
+                        removeAt(command.position);
+                        break;
+                    default:
+                        applyBudget(command.budgetAfter);
+                }
+                REDOS.increment();
+                announceCrossings();
+                return command.describe();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public boolean canUndo() {
+            long stamp = lock.readLock();
+            try {
+                return history.canUndo();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public boolean canRedo() {
+            long stamp = lock.readLock();
+            try {
+                return history.canRedo();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Undo, redo and merge steps; the write lock is held and nothing is recorded.
+        // A row coming back is stamped as an edit so it outranks its own deletion.
+        private void removeAt(int position) {
+            track(position, -1);
+            replicate(LedgerSync.DELETE, position);
+            expenses.remove(position);
+            persist(j -> j.appendDelete(position), 1);
+            for (Listener listener : listeners) {
+                listener.rowDeleted(position);
+            }
+        }
+
+        private void insertAt(int position, Expense expense) {
+            expenses.insert(position, expense);
+            Expense stored = expenses.get(position);
+            track(position, 1);
+            persist(j -> j.appendInsert(position, stored), 1);
+            replicate(LedgerSync.EDIT, position);
+            for (Listener listener : listeners) {
+                listener.rowsInserted(position, position);
+            }
+        }
+
+        private void replaceAt(int position, Expense expense) {
+            track(position, -1);
+            expenses.set(position, expense);
+            track(position, 1);
+            persist(j -> j.appendEdit(position, expense), 1);
+            replicate(LedgerSync.EDIT, position);
+            for (Listener listener : listeners) {
+                listener.rowUpdated(position);
+            }
+        }
+
+        private void applyBudget(long cents) {
+            budgetCents = cents;
+            crossings.add(budgets.set(new BudgetBook.Budget(null, BudgetBook.TOTAL, cents), expenses));
+            persist(j -> j.appendBudget(cents), 1);
+            for (Listener listener : listeners) {
+                listener.budgetChanged(cents);
+            }
+        }
+
+        // Feeds the row at position into the budgets, entering (sign 1) or
+        // leaving (sign -1) the ledger.
+        private void track(int position, int sign) {
+            int row = expenses.rowAt(position);
+            budgets.apply(expenses.categoryIdOfRow(row), expenses.epochDayOfRow(row),
+                    sign * expenses.amountCentsOfRow(row), crossings);
+        }
+
+        // Stamps the row at position for sync; the outbox append rides on the
+        // persistence thread with the journal record, in the same order.
+        private void replicate(byte kind, int position) {
+            if (sync == null || merging) {
+                return;
+            }
+            int row = expenses.rowAt(position);
+            LedgerSync.Op op = sync.stamp(kind, expenses.idOfRow(row),
+                    expenses.categories().name(expenses.categoryIdOfRow(row)),
+                    expenses.amountCentsOfRow(row), expenses.epochDayOfRow(row));
+            persist(j -> sync.append(op), 0);
+        }
+
+        // Starts stamping changes for sync. A ledger joining sync for the first
+        // time stamps every row it already has as an add, so peers receive them.
+        void attach(LedgerSync sync, boolean seed) throws IOException {
+            long stamp = lock.writeLock();
+            try {
+                if (seed) {
+                    for (int position = 0; position < expenses.size(); position++) {
+                        int row = expenses.rowAt(position);
+                        sync.append(sync.stamp(LedgerSync.ADD, expenses.idOfRow(row),
+                                expenses.categories().name(expenses.categoryIdOfRow(row)),
+                                expenses.amountCentsOfRow(row), expenses.epochDayOfRow(row)));
+                    }
+                }
+                this.sync = sync;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public int replica() {
+            return read(ExpenseStore::replica);
+        }
+
+        // Applies operations pulled from other devices that win their conflicts.
+        // They are journaled and reach the rollup, budgets and listeners like
+        // local changes, but they move row positions under the undo history,
+        // so that is cleared. Returns how many operations were applied.
+        public int merge(List<LedgerSync.Op> ops) {
+            long stamp = lockForChange();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                merging = true;
+                int applied = 0;
+                for (LedgerSync.Op op : ops) {
+                    int position = expenses.positionOfId(op.id);
+                    if (!sync.resolve(op, position >= 0)) {
+                        continue;
+                    }
+                    applied++;
+                    if (op.kind == LedgerSync.DELETE) {
+                        if (position >= 0) {
+                            removeAt(position);
+                        }
+                    } else if (position >= 0) {
+                        replaceAt(position, op.expense());
+                    } else {
+                        insertAt(expenses.size(), op.expense());
+                    }
+                }
+                merging = false;
+                if (applied > 0) {
+                    history.clear();
+                    MERGES.add(applied);
+                    snapshotIfDue();
+                }
+                announceCrossings();
+                return applied;
+            } finally {
+                merging = false;
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private void announceCrossings() {
+            for (BudgetBook.Status status : crossings) {
+                for (Listener listener : listeners) {
+                    listener.budgetCrossed(status);
+                }
+            }
+            crossings.clear();
+        }
+
+        public void setBudget(long cents) {
+            if (cents < 0) {
+                throw new IllegalArgumentException("Budget cannot be negative");
+            }
+            long stamp = lockForChange();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                history.record(new CommandHistory.Command(CommandHistory.BUDGET, -1, null, null, budgetCents, cents));
+                applyBudget(cents);
+                BUDGETS.increment();
+                announceCrossings();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // A budget on one category (or all of them, when category is blank) for
+        // a period; a zero limit removes it. The all-category, all-time budget
+        // is the overall one and goes through setBudget, so it stays undoable.
+        public void setCategoryBudget(String category, byte period, long limitCents) {
+            String name = category == null || category.trim().isEmpty() ? null : category.trim();
+            BudgetBook.Budget budget = new BudgetBook.Budget(name, period, limitCents);
+            if (budget.isOverall()) {
+                setBudget(limitCents);
+                return;
+            }
+            long stamp = lockForChange();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                crossings.add(budgets.set(budget, expenses));
+                persist(j -> j.appendCategoryBudget(budget), 1);
+                BUDGETS.increment();
+                announceCrossings();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Current status of every budget, after moving them to this month.
+        public List<BudgetBook.Status> budgetStatuses() {
+            long stamp = lock.writeLock();
+            try {
+                budgets.roll(expenses.rollup(), crossings);
+                announceCrossings();
+                return budgets.statuses();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // The write lock for a change. Once the journal has failed no change is
+        // applied, so the ledger in memory never runs ahead of what replay rebuilds.
+        private long lockForChange() {
+            long stamp = lock.writeLock();
+            IOException failure = writer.failure();
+            if (failure != null) {
+                lock.unlockWrite(stamp);
+                throw new IllegalStateException("The ledger can no longer be saved: " + failure.getMessage(), failure);
+            }
+            return stamp;
+        }
+
+        // Called with the write lock held, so journal order matches apply order.
+        // A merge checks for a due snapshot once per batch rather than per row.
+        private void persist(PersistenceWriter.Task task, int records) {
+            writer.submit(task, records);
+            if (!merging) {
+                snapshotIfDue();
+            }
+        }
+
+        // Closed months are sealed just before the copy, so the snapshot that
+        // writes their segment is also the first to leave their rows out.
+        private void snapshotIfDue() {
+            if (writer.needsSnapshot()) {
+                expenses.seal((int) LocalDate.now().withDayOfMonth(1).toEpochDay());
+                writer.submitSnapshot(expenses.copy(), budgetCents, budgets.categoryBudgets());
+            }
+        }
+
+        public int size() {
+            long stamp = lock.tryOptimisticRead();
+            int size = expenses.size();
+            if (lock.validate(stamp)) {
+                return size;
+            }
+            stamp = lock.readLock();
+            try {
+                return expenses.size();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public long totalCents() {
+            long stamp = lock.tryOptimisticRead();
+            long total = expenses.totalCents();
+            if (lock.validate(stamp)) {
+                return total;
+            }
+            stamp = lock.readLock();
+            try {
+                return expenses.totalCents();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public long budgetCents() {
+            long stamp = lock.tryOptimisticRead();
+            long budget = budgetCents;
+            if (lock.validate(stamp)) {
+                return budget;
+            }
+            stamp = lock.readLock();
+            try {
+                return budgetCents;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public Expense get(int position) {
+            return read(store -> store.get(position));
+        }
+
+        // Single-cell reads for the table: by ledger position, or by physical row
+        // when the table shows a date window. Returns null for a position that a
+        // concurrent delete has already removed.
+        public Object cellAt(int position, int column) {
+            return readCell(position, true, column);
+        }
+
+        public Object cellOfRow(int row, int column) {
+            return readCell(row, false, column);
+        }
+
+        private Object readCell(int index, boolean byPosition, int column) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    Object value = cell(index, byPosition, column);
+                    if (lock.validate(stamp)) {
+                        return value;
+                    }
+                } catch (RuntimeException e) {
+                    // a concurrent write moved things underneath us; retry under the lock
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return cell(index, byPosition, column);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private Object cell(int index, boolean byPosition, int column) {
+            if (byPosition && index >= expenses.size()) {
+                return null;
+            }
+            int row = byPosition ? expenses.rowAt(index) : index;
+            switch (column) {
+                case 0:
+                    return expenses.categories().name(expenses.categoryIdOfRow(row));
+                case 1:
+                    return ExpenseStore.fromCents(expenses.amountCentsOfRow(row));
+                default:
+                    return ExpenseStore.formatDay(expenses.epochDayOfRow(row));
+            }
+        }
+
+        public int positionOfRow(int row) {
+            return read(store -> store.indexOfRow(row));
+        }
+
+        // Physical rows for a filtered and/or sorted table view; null means every
+        // row in ledger order. A narrowing filter rechecks only the rows of the
+        // previous view (within), which keeps their order. The indexes the
+        // filter or sort needs are built on first use, under the write lock.
+        public IntList select(LedgerFilter filter, IntList within, int sortColumn, boolean descending) {
+            long stamp = lock.readLock();
+            try {
+                boolean byCategory = filter.hasCategory() || (sortColumn == 0 && within == null);
+                boolean byDate = filter.hasDays() || (sortColumn == 2 && within == null);
+                if ((byCategory && !expenses.hasCategoryIndex()) || (byDate && !expenses.hasDateIndex())) {
+                    long writeStamp = lock.tryConvertToWriteLock(stamp);
+                    if (writeStamp == 0) {
+                        lock.unlockRead(stamp);
+                        writeStamp = lock.writeLock();
+                    }
+                    stamp = writeStamp;
+                    if (byCategory) {
+                        expenses.categoryIndex();
+                    }
+                    if (byDate) {
+                        expenses.dateIndex();
+                    }
+                }
+                IntList rows = filter.isAll() ? null : expenses.select(filter, within);
+                if (sortColumn < 0 || within != null) {
+                    return rows;
+                }
+                return expenses.sortRows(rows, sortColumn, descending);
+            } finally {
+                lock.unlock(stamp);
+            }
+        }
+
+        // Runs a scan or aggregate against a stable view of the store.
+        public <T> T read(Query<T> query) {
+            long stamp = lock.readLock();
+            try {
+                return query.apply(expenses);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public boolean verifyRollup() {
+            long stamp = lock.writeLock();
+            try {
+                return expenses.verifyRollup();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public void awaitDurable() throws InterruptedException, IOException {
+            writer.awaitDurable();
+        }
+
+        public void close() throws IOException, InterruptedException {
+            long stamp = lock.writeLock();
+            try {
+                writer.close();
+            } finally {
+                try {
+                    if (sync != null) {
+                        sync.close();
+                    }
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+        }
+    }
+
+    // Delta sync between devices through a shared directory: a network share, a
+    // synced folder, or a plain local directory in tests. Every local change to
+    // a row becomes an operation stamped with this replica's next sequence
+    // number and a Lamport clock, and waits in the partition's outbox until it
+    // is pushed. Each replica appends only its own operations to its own
+    // <replica>.ops file in the shared directory and remembers, per other
+    // replica, the last sequence number applied and how far it has read that
+    // file. Those pairs are the version vector, so a sync moves only the
+    // operations the other side has not seen, whatever the ledger's size.
+    //
+    // Concurrent changes to one expense resolve last-writer-wins on the stamp
+    // (clock, then replica): an edit or delete applies only if it outranks the
+    // last one applied to that expense, and an add only if the id is unknown
+    // and was never deleted. Replicas applying the same operations in any order
+    // end up with the same rows, though not necessarily in the same positions.
+    static class LedgerSync {
+        static final byte ADD = 1;
+        static final byte EDIT = 2;
+        static final byte DELETE = 3;
+
+        private static final int MAGIC = 0x45535943;
+        private static final int VERSION = 1;
+        // version 2 of sync.state adds the clock last read from each replica
+        private static final int STATE_VERSION = 2;
+        private static final int FILE_HEADER_SIZE = 20;
+        private static final int MERGE_BATCH = 65536;
+        private static final String OUTBOX_FILE = "sync.outbox";
+        private static final String STATE_FILE = "sync.state";
+
+        static final class Op {
+            final int origin;
+            final long seq;
+            final long clock;
+            final byte kind;
+            final long id;
+            final String category;
+            final long cents;
+            final int day;
+
+            Op(int origin, long seq, long clock, byte kind, long id, String category, long cents, int day) {
+                this.origin = origin;
+                this.seq = seq;
+                this.clock = clock;
+                this.kind = kind;
+                this.id = id;
+                this.category = category;
+                this.cents = cents;
+                this.day = day;
+            }
+
+            // Total order over every operation from every replica.
+            long stamp() {
+                return clock << ExpenseStore.REPLICA_BITS | origin;
+            }
+
+            Expense expense() {
+                return new Expense(id, category, cents, ExpenseStore.formatDay(day));
+            }
+
+            void write(DataOutputStream out) throws IOException {
+                out.writeLong(seq);
+                out.writeLong(clock);
+                out.writeByte(kind);
+                out.writeLong(id);
+                if (kind != DELETE) {
+                    out.writeUTF(category);
+                    out.writeLong(cents);
+                    out.writeInt(day);
+                }
+            }
+
+            static Op read(DataInputStream in, int origin) throws IOException {
+                long seq = in.readLong();
+                long clock = in.readLong();
+                byte kind = in.readByte();
+                long id = in.readLong();
+                if (kind == DELETE) {
+                    return new Op(origin, seq, clock, kind, id, null, 0, ExpenseStore.NO_DATE);
+                }
+                if (kind != ADD && kind != EDIT) {
+                    throw new IOException("Unknown sync operation " + kind);
+                }
+                return new Op(origin, seq, clock, kind, id, in.readUTF(), in.readLong(), in.readInt());
+            }
+        }
+
+        static final class Report {
+            int pushed;
+            int pulled;
+            int applied;
+            long bytesOut;
+            long bytesIn;
+            long nanos;
+
+            String format() {
+                return String.format(Locale.ROOT,
+                        "Sent %,d changes (%,d bytes), received %,d (%,d bytes), %,d applied, %,d superseded; %.1f ms",
+                        pushed, bytesOut, pulled, bytesIn, applied, pulled - applied, nanos / 1e6);
+            }
+        }
+
+        private final File outboxFile;
+        private final File stateFile;
+        private final LedgerEngine engine;
+        private final int replica;
+        private final Object syncLock = new Object();
+        // tells this installation's file apart from another device that drew the same replica number
+        private long device;
+        private long clock;
+        private long seq;
+        private long appendedSeq;
+        private long pushedSeq;
+        private long pushedBytes;
+        // replica -> {last sequence number applied, bytes of its file read, clock of
+        // the last operation read}
+        private final Map<Integer, long[]> peers = new HashMap<>();
+        // expense id -> stamp of the last edit or delete applied to it, kept until
+        // no operation that could lose to it is left to arrive
+        private final Map<Long, Long> stamps = new HashMap<>();
+        private FileOutputStream outboxOut;
+        private DataOutputStream outbox;
+
+        private LedgerSync(File dir, LedgerEngine engine) {
+            this.outboxFile = new File(dir, OUTBOX_FILE);
+            this.stateFile = new File(dir, STATE_FILE);
+            this.engine = engine;
+            this.replica = engine.replica();
+        }
+
+        // Sync is switched on for a ledger by its first open, and from then on
+        // must be attached whenever the ledger is, so no change goes unstamped.
+        static boolean isEnabled(File dir) {
+            return new File(dir, STATE_FILE).exists();
+        }
+
+        public static LedgerSync open(File dir, LedgerEngine engine) throws IOException {
+            LedgerSync sync = new LedgerSync(dir, engine);
+            boolean first = !sync.stateFile.exists();
+            if (first) {
+                sync.device = new Random().nextLong();
+                sync.outboxOut = new FileOutputStream(sync.outboxFile, false);
+            } else {
+                sync.readState();
+                sync.outboxOut = new FileOutputStream(sync.outboxFile, true);
+            }
+            sync.outbox = new DataOutputStream(new BufferedOutputStream(sync.outboxOut));
+            engine.attach(sync, first);
+            if (first) {
+                sync.flushOutbox();
+                sync.writeState();
+            }
+            return sync;
+        }
+
+        // Called by the engine under its write lock, in the order changes are applied.
+        synchronized Op stamp(byte kind, long id, String category, long cents, int day) {
+            Op op = new Op(replica, ++seq, ++clock, kind, id, category, cents, day);
+            if (kind != ADD) {
+                stamps.put(id, op.stamp());
+            }
+            return op;
+        }
+
+        // Flushed to the OS with each append so a crashed process loses nothing
+        // the journal kept; it reaches the disk with the next push or close.
+        synchronized void append(Op op) throws IOException {
+            op.write(outbox);
+            outbox.flush();
+            appendedSeq = op.seq;
+        }
+
+        // Decides whether a remote operation wins, under the engine's write lock.
+        synchronized boolean resolve(Op op, boolean live) {
+            clock = Math.max(clock, op.clock);
+            Long last = stamps.get(op.id);
+            if (op.kind == ADD) {
+                return !live && last == null;
+            }
+            if (last != null && last > op.stamp()) {
+                return false;
+            }
+            stamps.put(op.id, op.stamp());
+            return true;
+        }
+
+        // Pushes this replica's new operations to the shared directory, then
+        // pulls and merges everything the other replicas added since last time.
+        public Report syncWith(File shared) throws IOException {
+            synchronized (syncLock) {
+                if (!shared.isDirectory()) {
+                    throw new IOException("Not a directory: " + shared);
+                }
+                long start = System.nanoTime();
+                // changes made before this call may still be queued behind their journal records
+                try {
+                    engine.awaitDurable();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted before sync");
+                }
+                Report report = new Report();
+                push(shared, report);
+                pull(shared, report);
+                synchronized (this) {
+                    pruneStamps();
+                    writeState();
+                }
+                report.nanos = System.nanoTime() - start;
+
+                Metrics metrics = Metrics.getInstance();
+                metrics.histogram("sync.latency").record(report.nanos);
+                metrics.counter("sync.ops.pushed").add(report.pushed);
+                metrics.counter("sync.ops.pulled").add(report.pulled);
+                metrics.counter("sync.bytes.out").add(report.bytesOut);
+                metrics.counter("sync.bytes.in").add(report.bytesIn);
+                return report;
+            }
+        }
+
+        private synchronized void push(File shared, Report report) throws IOException {
+            flushOutbox();
+            File target = new File(shared, fileName(replica));
+            if (target.exists() && target.length() >= FILE_HEADER_SIZE && readHeader(target) != device) {
+                throw new IOException("Another device already syncs as replica " + fileName(replica)
+                        + "; this ledger cannot share " + shared);
+            }
+            long length = outboxFile.length();
+            if (length == 0 && target.exists()) {
+                return;
+            }
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+                 FileChannel in = FileChannel.open(outboxFile.toPath(), StandardOpenOption.READ)) {
+                // anything past what the last completed push recorded is a torn append
+                out.truncate(pushedBytes);
+                out.position(pushedBytes);
+                if (pushedBytes == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(replica).putLong(device).flip();
+                    while (header.hasRemaining()) {
+                        out.write(header);
+                    }
+                }
+                for (long sent = 0; sent < length; ) {
+                    sent += in.transferTo(sent, length - sent, out);
+                }
+                out.force(true);
+                report.bytesOut = out.position() - pushedBytes;
+                pushedBytes = out.position();
+            }
+            report.pushed = (int) (appendedSeq - pushedSeq);
+            pushedSeq = appendedSeq;
+            writeState();
+            outbox.close();
+            outboxOut = new FileOutputStream(outboxFile, false);
+            outbox = new DataOutputStream(new BufferedOutputStream(outboxOut));
+        }
+
+        private void pull(File shared, Report report) throws IOException {
+            File[] files = shared.listFiles((dir, name) -> name.endsWith(".ops"));
+            if (files == null) {
+                throw new IOException("Cannot list " + shared);
+            }
+            for (File file : files) {
+                if (file.length() < FILE_HEADER_SIZE) {
+                    continue;
+                }
+                int origin;
+                try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        throw new IOException("Not a sync file: " + file);
+                    }
+                    origin = in.readInt();
+                }
+                if (origin == replica) {
+                    continue;
+                }
+                long[] peer;
+                synchronized (this) {
+                    peer = peers.computeIfAbsent(origin, o -> new long[]{0, FILE_HEADER_SIZE, 0}).clone();
+                }
+                if (file.length() <= peer[1]) {
+                    continue;
+                }
+                try (FileInputStream fileIn = new FileInputStream(file)) {
+                    fileIn.getChannel().position(peer[1]);
+                    ExpenseJournal.CountingInputStream counter =
+                            new ExpenseJournal.CountingInputStream(new BufferedInputStream(fileIn));
+                    DataInputStream in = new DataInputStream(counter);
+                    long read = peer[1];
+                    List<Op> batch = new ArrayList<>();
+                    while (true) {
+                        Op op;
+                        try {
+                            op = Op.read(in, origin);
+                        } catch (EOFException e) {
+                            // the other device may be mid-append; its tail waits for the next sync
+                            break;
+                        }
+                        if (op.seq > peer[0]) {
+                            batch.add(op);
+                            peer[0] = op.seq;
+                        }
+                        peer[2] = op.clock;
+                        if (batch.size() == MERGE_BATCH) {
+                            report.applied += engine.merge(batch);
+                            report.pulled += batch.size();
+                            batch.clear();
+                        }
+                        read = peer[1] + counter.count;
+                    }
+                    report.applied += engine.merge(batch);
+                    report.pulled += batch.size();
+                    report.bytesIn += read - peer[1];
+                    synchronized (this) {
+                        peers.put(origin, new long[]{peer[0], read, peer[2]});
+                    }
+                }
+            }
+        }
+
+        // Each replica's operations reach the shared directory in clock order, and a
+        // device writes its file there on its first push, before it first pulls.
+        // So once every replica's file has been read past a stamp's clock, an
+        // operation still to come outranks the stamp and would win with or without
+        // it; the stamp is dropped and the state file only carries recent changes.
+        private void pruneStamps() {
+            long floor = Long.MAX_VALUE;
+            for (long[] peer : peers.values()) {
+                floor = Math.min(floor, peer[2]);
+            }
+            long settled = floor;
+            stamps.values().removeIf(stamp -> stamp >>> ExpenseStore.REPLICA_BITS <= settled);
+        }
+
+        synchronized int stampCount() {
+            return stamps.size();
+        }
+
+        private static String fileName(int replica) {
+            return String.format("%06x.ops", replica);
+        }
+
+        private static long readHeader(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readInt();
+                in.readInt();
+                in.readInt();
+                return in.readLong();
+            }
+        }
+
+        private void flushOutbox() throws IOException {
+            outbox.flush();
+            outboxOut.getFD().sync();
+        }
+
+        public synchronized void close() throws IOException {
+            flushOutbox();
+            outbox.close();
+            writeState();
+        }
+
+        // Written whole and renamed into place. Operations stamped after the last
+        // write are still in the outbox, which readState replays on top.
+        private void writeState() throws IOException {
+            File tmp = new File(stateFile.getPath() + ".tmp");
+            try (FileOutputStream fileOut = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                out.writeInt(MAGIC);
+                out.writeInt(STATE_VERSION);
+                out.writeLong(device);
+                out.writeLong(clock);
+                out.writeLong(seq);
+                out.writeLong(pushedSeq);
+                out.writeLong(pushedBytes);
+                out.writeInt(peers.size());
+                for (Map.Entry<Integer, long[]> peer : peers.entrySet()) {
+                    out.writeInt(peer.getKey());
+                    out.writeLong(peer.getValue()[0]);
+                    out.writeLong(peer.getValue()[1]);
+                    out.writeLong(peer.getValue()[2]);
+                }
+                out.writeInt(stamps.size());
+                for (Map.Entry<Long, Long> stamp : stamps.entrySet()) {
+                    out.writeLong(stamp.getKey());
+                    out.writeLong(stamp.getValue());
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void readState() throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+                int version = in.readInt() == MAGIC ? in.readInt() : -1;
+                if (version < 1 || version > STATE_VERSION) {
+                    throw new IOException("Unrecognised sync state: " + stateFile);
+                }
+                device = in.readLong();
+                clock = in.readLong();
+                seq = in.readLong();
+                pushedSeq = in.readLong();
+                pushedBytes = in.readLong();
+                for (int i = in.readInt(); i > 0; i--) {
+                    // without a clock a replica holds every stamp until it is read from again
+                    peers.put(in.readInt(), new long[]{in.readLong(), in.readLong(), version >= 2 ? in.readLong() : 0});
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    stamps.put(in.readLong(), in.readLong());
+                }
+            }
+            appendedSeq = pushedSeq;
+            if (!outboxFile.exists()) {
+                return;
+            }
+            long valid = 0;
+            try (ExpenseJournal.CountingInputStream counter = new ExpenseJournal.CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(outboxFile)))) {
+                DataInputStream in = new DataInputStream(counter);
+                while (true) {
+                    Op op;
+                    try {
+                        op = Op.read(in, replica);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    // an outbox left over from before the last push was already sent
+                    if (op.seq > pushedSeq) {
+                        seq = Math.max(seq, op.seq);
+                        clock = Math.max(clock, op.clock);
+                        appendedSeq = op.seq;
+                        if (op.kind != ADD) {
+                            stamps.put(op.id, op.stamp());
+                        }
+                    }
+                    valid = counter.count;
+                }
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(outboxFile, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+    }
+
+    // Streams a CSV statement in fixed-size byte chunks. The lines of each chunk
+    // are parsed straight from the bytes (amounts to cents, dates to epoch days)
+    // and validated in parallel, then handed to the sink as one batch.
+    static class CsvImporter {
+        static final int CHUNK_BYTES = 1 << 20;
+        private static final int MAX_ERRORS = 20;
+
+        static class Batch {
+            final String[] categories;
+            final long[] cents;
+            final int[] days;
+            int size;
+            long bytesRead;
+
+            Batch(int capacity) {
+                categories = new String[capacity];
+                cents = new long[capacity];
+                days = new int[capacity];
+            }
+        }
+
+        interface BatchSink {
+            void accept(Batch batch) throws InterruptedException;
+        }
+
+        private int categoryColumn = 0;
+        private int amountColumn = 1;
+        private int dateColumn = 2;
+        private long rowsImported;
+        private long rowsRejected;
+        private final List<String> errors = new ArrayList<>();
+
+        public long rowsImported() {
+            return rowsImported;
+        }
+
+        public long rowsRejected() {
+            return rowsRejected;
+        }
+
+        public List<String> errors() {
+            return errors;
+        }
+
+        public void run(File file, BatchSink sink, BooleanSupplier cancelled) throws IOException, InterruptedException {
+            byte[] buffer = new byte[CHUNK_BYTES];
+            int[] lineStarts = new int[CHUNK_BYTES / 8];
+            int[] lineEnds = new int[CHUNK_BYTES / 8];
+            int filled = 0;
+            long bytesRead = 0;
+            long lineNumber = 0;
+            boolean firstLine = true;
+            try (InputStream in = new FileInputStream(file)) {
+                boolean eof = false;
+                while (!eof && !cancelled.getAsBoolean()) {
+                    int n = in.read(buffer, filled, buffer.length - filled);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        filled += n;
+                        bytesRead += n;
+                    }
+                    int lines = 0;
+                    int start = 0;
+                    for (int i = 0; i < filled; i++) {
+                        if (buffer[i] == '\n') {
+                            if (lines == lineStarts.length) {
+                                lineStarts = Arrays.copyOf(lineStarts, lines * 2);
+                                lineEnds = Arrays.copyOf(lineEnds, lines * 2);
+                            }
+                            lineStarts[lines] = start;
+                            lineEnds[lines++] = i;
+                            start = i + 1;
+                        }
+                    }
+                    if (eof && start < filled) {
+                        if (lines == lineStarts.length) {
+                            lineStarts = Arrays.copyOf(lineStarts, lines + 1);
+                            lineEnds = Arrays.copyOf(lineEnds, lines + 1);
+                        }
+                        lineStarts[lines] = start;
+                        lineEnds[lines++] = filled;
+                        start = filled;
+                    }
+                    if (lines == 0 && filled == buffer.length) {
+                        throw new IOException("Line " + (lineNumber + 1) + " is longer than " + CHUNK_BYTES + " bytes");
+                    }
+                    int first = 0;
+                    if (firstLine && lines > 0) {
+                        firstLine = false;
+                        if (readHeader(buffer, lineStarts[0], lineEnds[0])) {
+                            first = 1;
+                        }
+                    }
+                    Batch batch = parse(buffer, lineStarts, lineEnds, first, lines, lineNumber);
+                    batch.bytesRead = bytesRead;
+                    lineNumber += lines;
+                    rowsImported += batch.size;
+                    if (batch.size > 0) {
+                        sink.accept(batch);
+                    }
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                }
+            }
+        }
+
+        private Batch parse(byte[] buffer, int[] starts, int[] ends, int first, int lines, long lineNumber) {
+            int count = lines - first;
+            String[] categories = new String[count];
+            long[] cents = new long[count];
+            int[] days = new int[count];
+            boolean[] valid = new boolean[count];
+            IntStream.range(0, count).parallel().forEach(i -> {
+                int[] bounds = fieldBounds(buffer, starts[first + i], ends[first + i]);
+                int fields = bounds.length / 2;
+                if (fields <= Math.max(categoryColumn, Math.max(amountColumn, dateColumn))) {
+                    return;
+                }
+                String category = field(buffer, bounds, categoryColumn).trim();
+                long amount = parseCents(buffer, bounds[2 * amountColumn], bounds[2 * amountColumn + 1]);
+                int day = parseDay(buffer, bounds[2 * dateColumn], bounds[2 * dateColumn + 1]);
+                if (category.isEmpty() || amount <= 0 || day == ExpenseStore.NO_DATE) {
+                    return;
+                }
+                categories[i] = category;
+                cents[i] = amount;
+                days[i] = day;
+                valid[i] = true;
+            });
+            Batch batch = new Batch(count);
+            for (int i = 0; i < count; i++) {
+                if (valid[i]) {
+                    batch.categories[batch.size] = categories[i];
+                    batch.cents[batch.size] = cents[i];
+                    batch.days[batch.size++] = days[i];
+                } else if (starts[first + i] < ends[first + i] && !blank(buffer, starts[first + i], ends[first + i])) {
+                    rowsRejected++;
+                    if (errors.size() < MAX_ERRORS) {
+                        errors.add("Line " + (lineNumber + first + i + 1) + ": "
+                                + new String(buffer, starts[first + i], ends[first + i] - starts[first + i],
+                                StandardCharsets.UTF_8).trim());
+                    }
+                }
+            }
+            return batch;
+        }
+
+        // A first line whose amount column does not parse and which names at
+        // least one known column is a header, used to locate the category,
+        // amount and date columns. Anything else is data, so a malformed first
+        // row is rejected like any other instead of silently skipped.
+        private boolean readHeader(byte[] buffer, int start, int end) {
+            int[] bounds = fieldBounds(buffer, start, end);
+            if (bounds.length / 2 > amountColumn
+                    && parseCents(buffer, bounds[2 * amountColumn], bounds[2 * amountColumn + 1]) != Long.MIN_VALUE) {
+                return false;
+            }
+            int category = categoryColumn;
+            int amount = amountColumn;
+            int date = dateColumn;
+            boolean named = false;
+            for (int i = 0; i < bounds.length / 2; i++) {
+                String name = field(buffer, bounds, i).trim().toLowerCase(Locale.ROOT);
+                if (name.equals("category") || name.equals("description") || name.equals("payee")) {
+                    category = i;
+                } else if (name.equals("amount") || name.equals("debit")) {
+                    amount = i;
+                } else if (name.equals("date") || name.equals("transaction date") || name.equals("posted")) {
+                    date = i;
+                } else {
+                    continue;
+                }
+                named = true;
+            }
+            if (!named) {
+                return false;
+            }
+            categoryColumn = category;
+            amountColumn = amount;
+            dateColumn = date;
+            return true;
+        }
+
+        private static boolean blank(byte[] buffer, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer[i] > ' ') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Start/end offsets of every field on the line, honouring double quotes.
+        private static int[] fieldBounds(byte[] buffer, int start, int end) {
+            if (end > start && buffer[end - 1] == '\r') {
+                end--;
+            }
+            int[] bounds = new int[8];
+            int fields = 0;
+            int fieldStart = start;
+            boolean quoted = false;
+            for (int i = start; i <= end; i++) {
+                if (i < end && buffer[i] == '"') {
+                    quoted = !quoted;
+                } else if (i == end || (buffer[i] == ',' && !quoted)) {
+                    if (2 * fields + 2 > bounds.length) {
+                        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    }
+                    bounds[2 * fields] = fieldStart;
+                    bounds[2 * fields + 1] = i;
+                    fields++;
+                    fieldStart = i + 1;
+                }
+            }
+            return Arrays.copyOf(bounds, 2 * fields);
+        }
+
+        private static String field(byte[] buffer, int[] bounds, int column) {
+            int start = bounds[2 * column];
+            int end = bounds[2 * column + 1];
+            if (end - start >= 2 && buffer[start] == '"' && buffer[end - 1] == '"') {
+                return new String(buffer, start + 1, end - start - 2, StandardCharsets.UTF_8).replace("\"\"", "\"");
+            }
+            return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        // Parses [-]digits[.dd] into cents, skipping quotes, spaces and thousands
+        // separators. Returns Long.MIN_VALUE when the field is not a number.
+        static long parseCents(byte[] buffer, int start, int end) {
+            long units = 0;
+            int fraction = -1;
+            boolean negative = false;
+            boolean digits = false;
+            for (int i = start; i < end; i++) {
+                byte b = buffer[i];
+                if (b >= '0' && b <= '9') {
+                    digits = true;
+                    if (fraction < 0) {
+                        units = units * 10 + (b - '0');
+                        if (units > Long.MAX_VALUE / 1000) {
+                            return Long.MIN_VALUE;
+                        }
+                    } else if (fraction < 2) {
+                        units = units * 10 + (b - '0');
+                        fraction++;
+                    } else if (fraction == 2) {
+                        if (b >= '5') {
+                            units++;
+                        }
+                        fraction++;
+                    }
+                } else if (b == '.' && fraction < 0) {
+                    fraction = 0;
+                } else if (b == '-' && !digits) {
+                    negative = true;
+                } else if (b != ',' && b != '"' && b != ' ' && b != '+') {
+                    return Long.MIN_VALUE;
+                }
+            }
+            if (!digits) {
+                return Long.MIN_VALUE;
+            }
+            for (int f = Math.max(fraction, 0); f < 2; f++) {
+                units *= 10;
+            }
+            return negative ? -units : units;
+        }
+
+        // yyyy-mm-dd, optionally quoted and padded, straight to an epoch day.
+        static int parseDay(byte[] buffer, int start, int end) {
+            while (start < end && (buffer[start] == ' ' || buffer[start] == '"')) {
+                start++;
+            }
+            while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '"')) {
+                end--;
+            }
+            if (end - start != 10 || buffer[start + 4] != '-' || buffer[start + 7] != '-') {
+                return ExpenseStore.NO_DATE;
+            }
+            int year = digits(buffer, start, 4);
+            int month = digits(buffer, start + 5, 2);
+            int day = digits(buffer, start + 8, 2);
+            if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+                return ExpenseStore.NO_DATE;
+            }
+            try {
+                return (int) LocalDate.of(year, month, day).toEpochDay();
+            } catch (DateTimeException e) {
+                return ExpenseStore.NO_DATE;
+            }
+        }
+
+        private static int digits(byte[] buffer, int start, int length) {
+            int value = 0;
+            for (int i = start; i < start + length; i++) {
+                if (buffer[i] < '0' || buffer[i] > '9') {
+                    return -1;
+                }
+                value = value * 10 + (buffer[i] - '0');
+            }
+            return value;
+        }
+    }
+
+    // Writes the ledger, or the rows a filter accepts, out as CSV or JSON. Rows
+    // are read a batch at a time under the engine's read lock and encoded
+    // straight into a small ring of direct buffers, which go to the file in one
+    // gathering write whenever the ring fills, so memory stays the same however
+    // large the ledger is. A row changed while the export runs is written as it
+    // stood when its batch was read.
+    static class LedgerExporter {
+        static final int CSV = 0;
+        static final int JSON = 1;
+        private static final int BATCH_ROWS = 1 << 16;
+        private static final int BUFFER_BYTES = 1 << 16;
+        private static final int BUFFERS = 4;
+
+        private final int format;
+        private final LedgerFilter filter;
+        private final ByteBuffer[] buffers = new ByteBuffer[BUFFERS];
+        private final ExpenseStore.RowVisitor encoder = this::encode;
+        private int current;
+        private GatheringByteChannel channel;
+        // one encoded row, and each category's name as it is written, by id
+        private byte[] line = new byte[256];
+        private byte[][] names = new byte[64][];
+        private CategoryDictionary categories;
+        private int nextRow;
+        private int physicalRows;
+        private long rowsExported;
+        private long bytesWritten;
+        private long elapsedNanos;
+
+        LedgerExporter(int format, LedgerFilter filter) {
+            this.format = format;
+            this.filter = filter;
+            for (int i = 0; i < BUFFERS; i++) {
+                buffers[i] = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            }
+        }
+
+        // JSON for a .json file, CSV for anything else.
+        static int formatOf(File file) {
+            return file.getName().toLowerCase(Locale.ROOT).endsWith(".json") ? JSON : CSV;
+        }
+
+        public long rowsExported() {
+            return rowsExported;
+        }
+
+        public long bytesWritten() {
+            return bytesWritten;
+        }
+
+        public long rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rowsExported * 1_000_000_000L / elapsedNanos;
+        }
+
+        public String format() {
+            return String.format("Exported %,d expenses (%,d KB) in %.1f s, %,d rows/s.", rowsExported,
+                    (bytesWritten + 1023) / 1024, elapsedNanos / 1e9, rowsPerSecond());
+        }
+
+        // Progress goes out as a percentage of the physical rows passed so far.
+        // A cancelled or failed export leaves no file behind.
+        public void run(LedgerEngine engine, File file, IntConsumer progress, BooleanSupplier cancelled)
+                throws IOException {
+            long start = System.nanoTime();
+            boolean complete = false;
+            try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                channel = out;
+                put(format == JSON ? "[" : "Category,Amount,Date\n");
+                int rebuilds = engine.read(ExpenseStore::rebuilds);
+                while (!cancelled.getAsBoolean()) {
+                    engine.read(store -> {
+                        if (store.rebuilds() != rebuilds) {
+                            throw new UncheckedIOException(new IOException(
+                                    "The ledger was reorganised during the export, please export it again"));
+                        }
+                        categories = store.categories();
+                        physicalRows = store.physicalRows();
+                        int from = nextRow;
+                        nextRow = Math.min(physicalRows, from + BATCH_ROWS);
+                        store.forEachRow(from, nextRow, filter, encoder);
+                        return null;
+                    });
+                    progress.accept((int) (nextRow * 100L / Math.max(1, physicalRows)));
+                    if (nextRow >= physicalRows) {
+                        put(format == JSON ? (rowsExported == 0 ? "]\n" : "\n]\n") : "");
+                        drain();
+                        complete = true;
+                        break;
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                channel = null;
+                categories = null;
+                elapsedNanos = System.nanoTime() - start;
+                if (!complete) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            Metrics.getInstance().histogram("export.run").record(elapsedNanos);
+            Metrics.getInstance().counter("export.rows").add(rowsExported);
+            Metrics.getInstance().counter("export.bytes").add(bytesWritten);
+        }
+
+        private void encode(int categoryId, long amountCents, int epochDay) {
+            byte[] name = nameOf(categoryId);
+            if (line.length < name.length + 64) {
+                line = new byte[name.length + 64];
+            }
+            int n = 0;
+            if (format == JSON) {
+                n = ascii(rowsExported == 0 ? "\n{\"category\":" : ",\n{\"category\":", n);
+                System.arraycopy(name, 0, line, n, name.length);
+                n = ascii(",\"amount\":", n + name.length);
+                n = cents(amountCents, n);
+                n = ascii(",\"date\":\"", n);
+                n = day(epochDay, n);
+                n = ascii("\"}", n);
+            } else {
+                System.arraycopy(name, 0, line, 0, name.length);
+                line[name.length] = ',';
+                n = cents(amountCents, name.length + 1);
+                line[n++] = ',';
+                n = day(epochDay, n);
+                line[n++] = '\n';
+            }
+            rowsExported++;
+            try {
+                put(line, n);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // The name as it appears in the output: a JSON string, or a CSV field
+        // quoted when it holds a comma, a quote or a line break.
+        private byte[] nameOf(int categoryId) {
+            if (categoryId >= names.length) {
+                names = Arrays.copyOf(names, Math.max(categoryId + 1, names.length * 2));
+            }
+            byte[] name = names[categoryId];
+            if (name == null) {
+                String text = categories.name(categoryId);
+                if (format == JSON) {
+                    text = LedgerServer.quote(text);
+                } else if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0
+                        || text.indexOf('\r') >= 0) {
+                    text = "\"" + text.replace("\"", "\"\"") + "\"";
+                }
+                name = text.getBytes(StandardCharsets.UTF_8);
+                names[categoryId] = name;
+            }
+            return name;
+        }
+
+        private int ascii(String text, int n) {
+            for (int i = 0; i < text.length(); i++) {
+                line[n++] = (byte) text.charAt(i);
+            }
+            return n;
+        }
+
+        // Same digits as ExpenseStore.formatCents, without the BigDecimal.
+        private int cents(long cents, int n) {
+            long units = cents / 100;
+            int fraction = (int) Math.abs(cents % 100);
+            if (cents < 0) {
+                line[n++] = '-';
+            }
+            int end = n + digitCount(units);
+            for (int i = end - 1; i >= n; i--) {
+                line[i] = (byte) ('0' + Math.abs(units % 10));
+                units /= 10;
+            }
+            n = end;
+            line[n++] = '.';
+            line[n++] = (byte) ('0' + fraction / 10);
+            line[n++] = (byte) ('0' + fraction % 10);
+            return n;
+        }
+
+        private static int digitCount(long units) {
+            int count = 1;
+            while (units <= -10 || units >= 10) {
+                units /= 10;
+                count++;
+            }
+            return count;
+        }
+
+        // yyyy-mm-dd from an epoch day with the usual civil-from-days arithmetic;
+        // an undated row is left empty, as formatDay does.
+        private int day(int epochDay, int n) {
+            if (epochDay == ExpenseStore.NO_DATE) {
+                return n;
+            }
+            long shifted = epochDay + 719468L;
+            long era = Math.floorDiv(shifted, 146097);
+            long dayOfEra = shifted - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+            int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            if (year < 0 || year > 9999) {
+                return ascii(LocalDate.ofEpochDay(epochDay).toString(), n);
+            }
+            n = pad((int) year, 4, n);
+            line[n++] = '-';
+            n = pad(month, 2, n);
+            line[n++] = '-';
+            return pad(dayOfMonth, 2, n);
+        }
+
+        private int pad(int value, int width, int n) {
+            for (int i = n + width - 1; i >= n; i--) {
+                line[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return n + width;
+        }
+
+        private void put(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            put(bytes, bytes.length);
+        }
+
+        private void put(byte[] bytes, int length) throws IOException {
+            for (int offset = 0; offset < length; ) {
+                ByteBuffer buffer = buffers[current];
+                if (!buffer.hasRemaining()) {
+                    if (++current == BUFFERS) {
+                        drain();
+                    }
+                    continue;
+                }
+                int n = Math.min(buffer.remaining(), length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        // Hands every filled buffer to the channel in one gathering write, looping
+        // only if the channel takes less than all of it.
+        private void drain() throws IOException {
+            int filled = Math.min(current + 1, BUFFERS);
+            long pending = 0;
+            for (int i = 0; i < filled; i++) {
+                buffers[i].flip();
+                pending += buffers[i].remaining();
+            }
+            while (pending > 0) {
+                long written = channel.write(buffers, 0, filled);
+                pending -= written;
+                bytesWritten += written;
+            }
+            for (ByteBuffer buffer : buffers) {
+                buffer.clear();
+            }
+            current = 0;
+        }
+    }
+
+    // Period summaries, category breakdowns, averages and trends for a date
+    // range. The live rows are cut into slices that are scanned in parallel on
+    // the common fork-join pool, each into its own partial totals; the partials
+    // are then merged and the amounts sorted with Arrays.parallelSort for the
+    // median and 90th percentile. Charts are drawn into images, so they can be
+    // rendered off the EDT as well.
+    static class LedgerReport {
+        private static final int SLICE_ROWS = 1 << 16;
+        private static final String[] WEEKDAYS = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+        private static final Color[] PALETTE = {
+                new Color(66, 133, 244), new Color(219, 68, 55), new Color(244, 180, 0),
+                new Color(15, 157, 88), new Color(171, 71, 188), new Color(0, 172, 193),
+                new Color(255, 112, 67), new Color(158, 157, 36), new Color(120, 144, 156)};
+
+        final int fromDay;
+        final int toDay;
+        final long rows;
+        final long totalCents;
+        final long largestCents;
+        final long medianCents;
+        final long p90Cents;
+        // categories with spending in the range, largest first
+        final String[] categoryNames;
+        final long[] categoryCents;
+        final long[] categoryRows;
+        final long[] categoryLargest;
+        // months with rows in the range, oldest first
+        final int firstMonth;
+        final long[] monthCents;
+        final long[] monthRows;
+        final long[] weekdayCents;
+
+        private static final class Partial {
+            final long[] categoryCents;
+            final long[] categoryRows;
+            final long[] categoryLargest;
+            final long[] monthCents;
+            final long[] monthRows;
+            final long[] weekdayCents = new long[7];
+            long[] amounts = new long[64];
+            int count;
+
+            Partial(int categories, int months) {
+                categoryCents = new long[categories];
+                categoryRows = new long[categories];
+                categoryLargest = new long[categories];
+                monthCents = new long[months];
+                monthRows = new long[months];
+            }
+        }
+
+        private LedgerReport(int fromDay, int toDay, List<Partial> partials, int categories,
+                             int firstMonth, int months, CategoryDictionary dictionary) {
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            long[] cents = new long[categories];
+            long[] counts = new long[categories];
+            long[] largest = new long[categories];
+            long[] byMonth = new long[months];
+            long[] rowsByMonth = new long[months];
+            weekdayCents = new long[7];
+            int total = 0;
+            for (Partial partial : partials) {
+                total += partial.count;
+            }
+            long[] amounts = new long[total];
+            int offset = 0;
+            for (Partial partial : partials) {
+                for (int c = 0; c < categories; c++) {
+                    cents[c] += partial.categoryCents[c];
+                    counts[c] += partial.categoryRows[c];
+                    largest[c] = Math.max(largest[c], partial.categoryLargest[c]);
+                }
+                for (int m = 0; m < months; m++) {
+                    byMonth[m] += partial.monthCents[m];
+                    rowsByMonth[m] += partial.monthRows[m];
+                }
+                for (int d = 0; d < 7; d++) {
+                    weekdayCents[d] += partial.weekdayCents[d];
+                }
+                System.arraycopy(partial.amounts, 0, amounts, offset, partial.count);
+                offset += partial.count;
+            }
+            Arrays.parallelSort(amounts);
+            rows = total;
+            long sum = 0;
+            for (long c : cents) {
+                sum += c;
+            }
+            totalCents = sum;
+            largestCents = total == 0 ? 0 : amounts[total - 1];
+            medianCents = total == 0 ? 0 : amounts[(total - 1) / 2];
+            p90Cents = total == 0 ? 0 : amounts[(int) ((total - 1) * 9L / 10)];
+
+            Integer[] order = IntStream.range(0, categories).filter(c -> counts[c] > 0).boxed().toArray(Integer[]::new);
+            Arrays.sort(order, (a, b) -> Long.compare(cents[b], cents[a]));
+            categoryNames = new String[order.length];
+            categoryCents = new long[order.length];
+            categoryRows = new long[order.length];
+            categoryLargest = new long[order.length];
+            for (int i = 0; i < order.length; i++) {
+                categoryNames[i] = dictionary.name(order[i]);
+                categoryCents[i] = cents[order[i]];
+                categoryRows[i] = counts[order[i]];
+                categoryLargest[i] = largest[order[i]];
+            }
+
+            int first = 0;
+            int last = months - 1;
+            while (first <= last && rowsByMonth[first] == 0) {
+                first++;
+            }
+            while (last >= first && rowsByMonth[last] == 0) {
+                last--;
+            }
+            this.firstMonth = firstMonth + first;
+            monthCents = Arrays.copyOfRange(byMonth, first, last + 1);
+            monthRows = Arrays.copyOfRange(rowsByMonth, first, last + 1);
+        }
+
+        // Rows dated within [fromDay, toDay]; with the full int range, undated
+        // rows count towards the totals and categories as well.
+        static LedgerReport of(ExpenseStore store, int fromDay, int toDay) {
+            long start = System.nanoTime();
+            RollupCube rollup = store.rollup();
+            int firstMonth = rollup.firstMonth();
+            int months = rollup.monthSpan();
+            if (fromDay != Integer.MIN_VALUE) {
+                int from = RollupCube.monthOf(fromDay);
+                if (from > firstMonth) {
+                    months = Math.max(0, months - (from - firstMonth));
+                    firstMonth = from;
+                }
+            }
+            if (toDay != Integer.MAX_VALUE) {
+                months = Math.max(0, Math.min(months, RollupCube.monthOf(toDay) - firstMonth + 1));
+            }
+            int categories = store.categories().size();
+            int size = store.size();
+            int slices = (size + SLICE_ROWS - 1) / SLICE_ROWS;
+            int first = firstMonth;
+            int span = months;
+            List<Partial> partials = IntStream.range(0, slices).parallel()
+                    .mapToObj(slice -> scan(store, slice * SLICE_ROWS, Math.min(size, (slice + 1) * SLICE_ROWS),
+                            fromDay, toDay, categories, first, span))
+                    .collect(Collectors.toList());
+            LedgerReport report = new LedgerReport(fromDay, toDay, partials, categories, firstMonth, months,
+                    store.categories());
+            Metrics.getInstance().histogram("report.build").record(System.nanoTime() - start);
+            return report;
+        }
+
+        private static Partial scan(ExpenseStore store, int from, int to, int fromDay, int toDay,
+                                    int categories, int firstMonth, int months) {
+            Partial partial = new Partial(categories, months);
+            boolean dated = fromDay != Integer.MIN_VALUE || toDay != Integer.MAX_VALUE;
+            int checked = 0;
+            for (int i = from; i < to; i++) {
+                int row = store.rowAt(i);
+                if (dated && row >= checked) {
+                    // once per chunk: cold blocks outside the range are passed over unread
+                    int next = store.nextRowToScan(row, fromDay, toDay);
+                    if (next > row) {
+                        i = store.positionAtOrAfter(next) - 1;
+                        continue;
+                    }
+                    checked = ExpenseStore.chunkEnd(row);
+                }
+                int day = store.epochDayOfRow(row);
+                if (dated && (day == ExpenseStore.NO_DATE || day < fromDay || day > toDay)) {
+                    continue;
+                }
+                int category = store.categoryIdOfRow(row);
+                long cents = store.amountCentsOfRow(row);
+                partial.categoryCents[category] += cents;
+                partial.categoryRows[category]++;
+                partial.categoryLargest[category] = Math.max(partial.categoryLargest[category], cents);
+                if (day != ExpenseStore.NO_DATE) {
+                    int month = RollupCube.monthOf(day) - firstMonth;
+                    if (month >= 0 && month < months) {
+                        partial.monthCents[month] += cents;
+                        partial.monthRows[month]++;
+                    }
+                    partial.weekdayCents[Math.floorMod(day + 3, 7)] += cents;
+                }
+                if (partial.count == partial.amounts.length) {
+                    partial.amounts = Arrays.copyOf(partial.amounts, partial.count * 2);
+                }
+                partial.amounts[partial.count++] = cents;
+            }
+            return partial;
+        }
+
+        public long averageCents() {
+            return rows == 0 ? 0 : Math.round((double) totalCents / rows);
+        }
+
+        public long monthlyAverageCents() {
+            return monthCents.length == 0 ? 0 : Math.round((double) sum(monthCents) / monthCents.length);
+        }
+
+        // Least-squares slope of the monthly totals, in cents per month.
+        public long trendCentsPerMonth() {
+            int n = monthCents.length;
+            if (n < 2) {
+                return 0;
+            }
+            double meanX = (n - 1) / 2.0;
+            double meanY = (double) sum(monthCents) / n;
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < n; i++) {
+                covariance += (i - meanX) * (monthCents[i] - meanY);
+                variance += (i - meanX) * (i - meanX);
+            }
+            return Math.round(covariance / variance);
+        }
+
+        private static long sum(long[] values) {
+            long sum = 0;
+            for (long value : values) {
+                sum += value;
+            }
+            return sum;
+        }
+
+        private static String monthName(int month) {
+            return String.format("%04d-%02d", Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1);
+        }
+
+        public String format() {
+            StringBuilder out = new StringBuilder();
+            out.append("Period: ").append(fromDay == Integer.MIN_VALUE ? "all time"
+                    : ExpenseStore.formatDay(fromDay) + " to " + ExpenseStore.formatDay(toDay)).append('\n');
+            out.append(String.format("Expenses: %d   Total: %s   Average: %s%n", rows,
+                    ExpenseStore.formatCents(totalCents), ExpenseStore.formatCents(averageCents())));
+            out.append(String.format("Median: %s   90th percentile: %s   Largest: %s%n",
+                    ExpenseStore.formatCents(medianCents), ExpenseStore.formatCents(p90Cents),
+                    ExpenseStore.formatCents(largestCents)));
+            out.append(String.format("Monthly average: %s   Trend: %s per month%n",
+                    ExpenseStore.formatCents(monthlyAverageCents()), ExpenseStore.formatCents(trendCentsPerMonth())));
+
+            out.append("\nCategories\n");
+            for (int i = 0; i < categoryNames.length; i++) {
+                out.append(String.format("  %-20s %14s %6.1f%% %8d expenses, average %s, largest %s%n",
+                        categoryNames[i], ExpenseStore.formatCents(categoryCents[i]),
+                        totalCents == 0 ? 0.0 : 100.0 * categoryCents[i] / totalCents, categoryRows[i],
+                        ExpenseStore.formatCents(Math.round((double) categoryCents[i] / categoryRows[i])),
+                        ExpenseStore.formatCents(categoryLargest[i])));
+            }
+
+            out.append("\nYears\n");
+            for (int i = 0; i < monthCents.length; ) {
+                int year = Math.floorDiv(firstMonth + i, 12);
+                long cents = 0;
+                long count = 0;
+                for (; i < monthCents.length && Math.floorDiv(firstMonth + i, 12) == year; i++) {
+                    cents += monthCents[i];
+                    count += monthRows[i];
+                }
+                out.append(String.format("  %d %14s %8d expenses%n", year, ExpenseStore.formatCents(cents), count));
+            }
+
+            out.append("\nMonths\n");
+            for (int i = 0; i < monthCents.length; i++) {
+                String change = i == 0 || monthCents[i - 1] == 0 ? ""
+                        : String.format("%+7.1f%%", 100.0 * (monthCents[i] - monthCents[i - 1]) / monthCents[i - 1]);
+                out.append(String.format("  %s %14s %8d expenses %s%n", monthName(firstMonth + i),
+                        ExpenseStore.formatCents(monthCents[i]), monthRows[i], change));
+            }
+
+            out.append("\nWeekdays\n");
+            for (int d = 0; d < 7; d++) {
+                out.append(String.format("  %s %14s%n", WEEKDAYS[d], ExpenseStore.formatCents(weekdayCents[d])));
+            }
+            return out.toString();
+        }
+
+        // Category shares; everything past the eighth category is drawn as "Other".
+        public BufferedImage pieChart(int width, int height) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            int diameter = Math.min(width / 2, height) - 40;
+            int slices = Math.min(categoryNames.length, PALETTE.length);
+            double angle = 90;
+            for (int i = 0; i < slices && totalCents > 0; i++) {
+                long cents = categoryCents[i];
+                String label = categoryNames[i];
+                if (i == PALETTE.length - 1 && categoryNames.length > PALETTE.length) {
+                    cents = totalCents - sum(Arrays.copyOf(categoryCents, i));
+                    label = "Other";
+                }
+                double extent = 360.0 * cents / totalCents;
+                g.setColor(PALETTE[i]);
+                g.fill(new Arc2D.Double(20, 20, diameter, diameter, angle, -extent, Arc2D.PIE));
+                angle -= extent;
+                g.fillRect(diameter + 60, 30 + i * 22, 14, 14);
+                g.setColor(Color.BLACK);
+                g.drawString(String.format("%s  %.1f%%", label, 100.0 * cents / totalCents), diameter + 82, 42 + i * 22);
+            }
+            g.dispose();
+            return image;
+        }
+
+        // Monthly totals as bars, oldest on the left.
+        public BufferedImage monthlyChart(int width, int height) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            long max = 0;
+            for (long cents : monthCents) {
+                max = Math.max(max, cents);
+            }
+            long scale = Math.max(1, max);
+            int left = 20;
+            int bottom = height - 30;
+            double barWidth = monthCents.length == 0 ? 0 : (double) (width - 2 * left) / monthCents.length;
+            for (int i = 0; i < monthCents.length; i++) {
+                int barHeight = (int) ((bottom - 30) * (double) monthCents[i] / scale);
+                int x = left + (int) (i * barWidth);
+                g.setColor(PALETTE[0]);
+                g.fillRect(x, bottom - barHeight, Math.max(1, (int) barWidth - 2), barHeight);
+                if (Math.floorMod(firstMonth + i, 12) == 0 || i == 0) {
+                    g.setColor(Color.BLACK);
+                    g.drawString(monthName(firstMonth + i), x, height - 10);
+                }
+            }
+            g.setColor(Color.BLACK);
+            g.drawLine(left, bottom, width - left, bottom);
+            g.drawString("Largest month: " + ExpenseStore.formatCents(max), left, 18);
+            g.dispose();
+            return image;
+        }
+    }
+
+    // In-process counters and latency histograms, plus the JFR events that
+    // mirror them. A snapshot can be written to a file on a timer
+    // (-Dexpensetracker.metrics.file=...) or watched in the diagnostics panel.
+    static class Metrics {
+        static final Logger LOG = Logger.getLogger("expensetracker");
+        private static Metrics instance;
+
+        private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+        private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+        public static synchronized Metrics getInstance() {
+            if (instance == null) {
+                instance = new Metrics();
+            }
+            return instance;
+        }
+
+        public Counter counter(String name) {
+            return counters.computeIfAbsent(name, n -> new Counter());
+        }
+
+        public Histogram histogram(String name) {
+            return histograms.computeIfAbsent(name, n -> new Histogram());
+        }
+
+        // Every error the tracker handles ends up here: counted under
+        // errors.<kind>, recorded as a JFR event and logged once.
+        static void reportError(String kind, Throwable error) {
+            getInstance().counter("errors." + kind).increment();
+            ErrorEvent event = new ErrorEvent();
+            event.kind = kind;
+            event.message = String.valueOf(error.getMessage());
+            event.commit();
+            LOG.log(Level.WARNING, kind + " failed", error);
+        }
+
+        static class Counter {
+            private final LongAdder value = new LongAdder();
+
+            public void increment() {
+                value.increment();
+            }
+
+            public void add(long amount) {
+                value.add(amount);
+            }
+
+            public long get() {
+                return value.sum();
+            }
+        }
+
+        // Log-linear buckets: exact below 8ns, then 8 buckets per power of two,
+        // so any percentile is reported within 12.5% of the recorded value.
+        static class Histogram {
+            private static final int BUCKETS = 61 << 3;
+
+            private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+            private final LongAdder count = new LongAdder();
+            private final LongAdder total = new LongAdder();
+            private final AtomicLong max = new AtomicLong();
+
+            public void record(long nanos) {
+                long value = Math.max(0, nanos);
+                buckets.incrementAndGet(bucketOf(value));
+                count.increment();
+                total.add(value);
+                long seen = max.get();
+                while (value > seen && !max.compareAndSet(seen, value)) {
+                    seen = max.get();
+                }
+            }
+
+            static int bucketOf(long value) {
+                if (value < 8) {
+                    return (int) value;
+                }
+                int exponent = 63 - Long.numberOfLeadingZeros(value);
+                int sub = (int) (value >>> (exponent - 3)) & 7;
+                return ((exponent - 2) << 3) | sub;
+            }
+
+            static long upperBoundOf(int bucket) {
+                if (bucket < 8) {
+                    return bucket;
+                }
+                int exponent = (bucket >>> 3) + 2;
+                long top = 8 | (bucket & 7);
+                return ((top + 1) << (exponent - 3)) - 1;
+            }
+
+            public long count() {
+                return count.sum();
+            }
+
+            public long max() {
+                return max.get();
+            }
+
+            public long mean() {
+                long n = count.sum();
+                return n == 0 ? 0 : total.sum() / n;
+            }
+
+            public long percentile(double p) {
+                long n = count.sum();
+                if (n == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(p * n));
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += buckets.get(i);
+                    if (seen >= rank) {
+                        return Math.min(upperBoundOf(i), max.get());
+                    }
+                }
+                return max.get();
+            }
+        }
+
+        static class Snapshot {
+            final long takenAt = System.nanoTime();
+            final Map<String, Long> counters = new TreeMap<>();
+            // count, mean, p50, p99, max (nanoseconds)
+            final Map<String, long[]> histograms = new TreeMap<>();
+
+            // Renders the snapshot; counter rates are per second since the previous one.
+            String format(Snapshot previous) {
+                StringBuilder out = new StringBuilder();
+                out.append(String.format("%-36s %14s %10s%n", "counter", "total", "per sec"));
+                double seconds = previous == null ? 0 : (takenAt - previous.takenAt) / 1e9;
+                for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                    Long before = previous == null ? null : previous.counters.get(entry.getKey());
+                    String rate = seconds > 0
+                            ? String.format("%.1f", (entry.getValue() - (before == null ? 0 : before)) / seconds)
+                            : "-";
+                    out.append(String.format("%-36s %14d %10s%n", entry.getKey(), entry.getValue(), rate));
+                }
+                out.append(String.format("%n%-36s %10s %10s %10s %10s %10s%n",
+                        "latency (ms)", "count", "mean", "p50", "p99", "max"));
+                for (Map.Entry<String, long[]> entry : histograms.entrySet()) {
+                    long[] h = entry.getValue();
+                    out.append(String.format("%-36s %10d %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(),
+                            h[0], h[1] / 1e6, h[2] / 1e6, h[3] / 1e6, h[4] / 1e6));
+                }
+                return out.toString();
+            }
+        }
+
+        public Snapshot snapshot() {
+            Snapshot snapshot = new Snapshot();
+            counters.forEach((name, counter) -> snapshot.counters.put(name, counter.get()));
+            histograms.forEach((name, histogram) -> snapshot.histograms.put(name, new long[]{
+                    histogram.count(), histogram.mean(), histogram.percentile(0.50),
+                    histogram.percentile(0.99), histogram.max()}));
+            return snapshot;
+        }
+
+        // Rewrites the file every interval (and once more at exit) with the
+        // current snapshot. Does nothing unless expensetracker.metrics.file is set.
+        public void startExporter() {
+            String path = System.getProperty("expensetracker.metrics.file");
+            if (path == null) {
+                return;
+            }
+            File file = new File(path);
+            long interval = Long.getLong("expensetracker.metrics.interval", 60);
+            Snapshot[] previous = {null};
+            Runnable export = () -> {
+                synchronized (previous) {
+                    Snapshot current = snapshot();
+                    try {
+                        File tmp = new File(file.getPath() + ".tmp");
+                        Files.write(tmp.toPath(), current.format(previous[0]).getBytes(StandardCharsets.UTF_8));
+                        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        reportError("metrics", e);
+                    }
+                    previous[0] = current;
+                }
+            };
+            ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "expense-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            exporter.scheduleAtFixedRate(export, interval, interval, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(export));
+        }
+
+        // Measures how long events wait before the EDT gets to them. Unlike the
+        // per-action timings this catches stalls from any source.
+        public void startEdtWatchdog() {
+            Histogram latency = histogram("edt.latency");
+            Thread watchdog = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(100);
+                        EdtStallEvent event = new EdtStallEvent();
+                        event.begin();
+                        long posted = System.nanoTime();
+                        SwingUtilities.invokeAndWait(() -> {
+                            latency.record(System.nanoTime() - posted);
+                            event.commit();
+                        });
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (java.lang.reflect.InvocationTargetException e) {
+                        reportError("watchdog", e.getCause());
+                    }
+                }
+            }, "expense-edt-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+
+        // Wraps an action listener so the time it holds the EDT is recorded under
+        // edt.action.<name>. Modal dialogs opened by the action count too.
+        static ActionListener timed(String action, ActionListener listener) {
+            Histogram histogram = getInstance().histogram("edt.action." + action);
+            return e -> {
+                EdtActionEvent event = new EdtActionEvent();
+                event.action = action;
+                event.begin();
+                long start = System.nanoTime();
+                try {
+                    listener.actionPerformed(e);
+                } finally {
+                    histogram.record(System.nanoTime() - start);
+                    event.commit();
+                }
+            };
+        }
+
+        @Name("expensetracker.Error")
+        @Label("Error")
+        @Category("Expense Tracker")
+        static class ErrorEvent extends Event {
+            @Label("Kind")
+            String kind;
+
+            @Label("Message")
+            String message;
+        }
+
+        @Name("expensetracker.LedgerSave")
+        @Label("Ledger Save")
+        @Category("Expense Tracker")
+        static class SaveEvent extends Event {
+            @Label("Kind")
+            String kind;
+
+            @Label("Records")
+            int records;
+
+            @Label("Bytes")
+            @DataAmount
+            long bytes;
+        }
+
+        @Name("expensetracker.LedgerLoad")
+        @Label("Ledger Load")
+        @Category("Expense Tracker")
+        static class LoadEvent extends Event {
+            @Label("Rows")
+            int rows;
+
+            @Label("Bytes")
+            @DataAmount
+            long bytes;
+        }
+
+        @Name("expensetracker.TableRefresh")
+        @Label("Table Refresh")
+        @Category("Expense Tracker")
+        static class TableRefreshEvent extends Event {
+            @Label("Rows")
+            int rows;
+        }
+
+        @Name("expensetracker.EdtAction")
+        @Label("EDT Action")
+        @Category("Expense Tracker")
+        static class EdtActionEvent extends Event {
+            @Label("Action")
+            String action;
+        }
+
+        @Name("expensetracker.EdtStall")
+        @Label("EDT Stall")
+        @Description("Time an event waited in the Swing queue")
+        @Category("Expense Tracker")
+        @Threshold("20 ms")
+        static class EdtStallEvent extends Event {
+        }
+
+        @Name("expensetracker.Authentication")
+        @Label("Authentication")
+        @Category("Expense Tracker")
+        static class AuthenticationEvent extends Event {
+            @Label("Operation")
+            String operation;
+
+            @Label("Success")
+            boolean success;
+        }
+    }
+
+    // Headless mode: serves the ledger operations and UserManager logins as
+    // JSON over HTTP on the loopback interface. Each user's ledger is opened
+    // once and shared by every client through its LedgerEngine, and closed
+    // again when the last of the user's sessions logs out or sits idle for
+    // longer than expensetracker.session.idleSeconds.
+    static class LedgerServer {
+        private final UserManager userManager;
+        private final LedgerPartitions partitions;
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        // guarded by itself; ledgers are opened and closed under that lock, so
+        // a user's journal never has two engines on it
+        private final Map<String, OpenLedger> ledgers = new HashMap<>();
+        private final long idleNanos = TimeUnit.SECONDS.toNanos(Long.getLong("expensetracker.session.idleSeconds", 1800));
+        private final ExecutorService executor = newRequestExecutor();
+        private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "expense-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final HttpServer server;
+
+        private static final class Session {
+            final String username;
+            volatile long lastUsed = System.nanoTime();
+
+            Session(String username) {
+                this.username = username;
+            }
+        }
+
+        // A user's ledger, kept open while they have a session or a request
+        // still holds it.
+        private static final class OpenLedger {
+            LedgerEngine engine;
+            // attached whenever the ledger has sync switched on; closed with the engine
+            LedgerSync sync;
+            int sessions;
+            int requests;
+        }
+
+        static class HttpError extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+            final int status;
+
+            HttpError(int status, String message) {
+                super(message);
+                this.status = status;
+            }
+        }
+
+        public LedgerServer(int port, UserManager userManager, LedgerPartitions partitions) throws IOException {
+            this.userManager = userManager;
+            this.partitions = partitions;
+            // Responses are tiny; without TCP_NODELAY they wait on delayed ACKs.
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/register", this::handle);
+            server.createContext("/login", this::handle);
+            server.createContext("/logout", this::handle);
+            server.createContext("/summary", this::handle);
+            server.createContext("/budget", this::handle);
+            server.createContext("/undo", this::handle);
+            server.createContext("/redo", this::handle);
+            server.createContext("/expenses", this::handle);
+            server.setExecutor(executor);
+        }
+
+        // One virtual thread per request where the runtime has them (JDK 21+),
+        // otherwise a cached pool of platform threads.
+        static ExecutorService newRequestExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool();
+            }
+        }
+
+        public void start() {
+            server.start();
+            long period = Math.max(1, Math.min(TimeUnit.NANOSECONDS.toSeconds(idleNanos), 60));
+            sweeper.scheduleAtFixedRate(this::expireSessions, period, period, TimeUnit.SECONDS);
+        }
+
+        public int port() {
+            return server.getAddress().getPort();
+        }
+
+        public void stop() {
+            server.stop(1);
+            executor.shutdown();
+            sweeper.shutdown();
+            synchronized (ledgers) {
+                for (OpenLedger ledger : ledgers.values()) {
+                    close(ledger);
+                }
+                ledgers.clear();
+            }
+            sessions.clear();
+        }
+
+        public int openLedgers() {
+            synchronized (ledgers) {
+                return ledgers.size();
+            }
+        }
+
+        void expireSessions() {
+            long now = System.nanoTime();
+            for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                if (now - entry.getValue().lastUsed > idleNanos && sessions.remove(entry.getKey(), entry.getValue())) {
+                    endSession(entry.getValue().username);
+                }
+            }
+        }
+
+        private void startSession(String username) {
+            synchronized (ledgers) {
+                ledgers.computeIfAbsent(username, user -> new OpenLedger()).sessions++;
+            }
+        }
+
+        private void endSession(String username) {
+            synchronized (ledgers) {
+                OpenLedger ledger = ledgers.get(username);
+                ledger.sessions--;
+                closeIfUnused(username, ledger);
+            }
+        }
+
+        private LedgerEngine acquire(String username) throws IOException {
+            synchronized (ledgers) {
+                OpenLedger ledger = ledgers.computeIfAbsent(username, user -> new OpenLedger());
+                if (ledger.engine == null) {
+                    try {
+                        ExpenseJournal journal = partitions.openJournal(username);
+                        ledger.engine = LedgerEngine.open(journal, e -> Metrics.reportError("save", e));
+                        if (LedgerSync.isEnabled(journal.directory())) {
+                            ledger.sync = LedgerSync.open(journal.directory(), ledger.engine);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // never left open unsynced: the next request tries again
+                        close(ledger);
+                        ledger.engine = null;
+                        ledger.sync = null;
+                        closeIfUnused(username, ledger);
+                        throw e;
+                    }
+                }
+                ledger.requests++;
+                return ledger.engine;
+            }
+        }
+
+        private void release(String username) {
+            synchronized (ledgers) {
+                OpenLedger ledger = ledgers.get(username);
+                ledger.requests--;
+                closeIfUnused(username, ledger);
+            }
+        }
+
+        private void closeIfUnused(String username, OpenLedger ledger) {
+            if (ledger.sessions == 0 && ledger.requests == 0) {
+                ledgers.remove(username);
+                close(ledger);
+            }
+        }
+
+        private static void close(OpenLedger ledger) {
+            if (ledger.engine == null) {
+                return;
+            }
+            try {
+                ledger.engine.close();
+            } catch (IOException | InterruptedException e) {
+                Metrics.reportError("server", e);
+            }
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                body = route(exchange);
+            } catch (HttpError e) {
+                status = e.status;
+                body = error(e.getMessage());
+            } catch (IllegalArgumentException | DateTimeException e) {
+                status = 400;
+                body = error(e.getMessage());
+            } catch (IndexOutOfBoundsException e) {
+                status = 404;
+                body = error("No such expense");
+            } catch (IOException | RuntimeException e) {
+                Metrics.reportError("server", e);
+                status = 500;
+                body = error(e.getMessage());
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        private String route(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> request = parseJson(readBody(exchange));
+
+            if (path.equals("/register") && method.equals("POST")) {
+                if (!userManager.registerUser(required(request, "username"), required(request, "password"))) {
+                    throw new HttpError(409, "Username already exists");
+                }
+                return "{}";
+            }
+            if (path.equals("/login") && method.equals("POST")) {
+                String username = required(request, "username");
+                if (!userManager.authenticateUser(username, required(request, "password"))) {
+                    throw new HttpError(401, "Invalid username or password");
+                }
+                String token = UUID.randomUUID().toString();
+                startSession(username);
+                sessions.put(token, new Session(username));
+                return "{\"token\":" + quote(token) + "}";
+            }
+
+            String token = tokenOf(exchange);
+            Session session = token == null ? null : sessions.get(token);
+            if (session == null) {
+                throw new HttpError(401, "Login required");
+            }
+            session.lastUsed = System.nanoTime();
+            if (path.equals("/logout") && method.equals("POST")) {
+                if (sessions.remove(token, session)) {
+                    endSession(session.username);
+                }
+                return "{}";
+            }
+            LedgerEngine engine = acquire(session.username);
+            try {
+                return route(exchange, method, path, request, engine);
+            } finally {
+                release(session.username);
+            }
+        }
+
+        private static String tokenOf(HttpExchange exchange) {
+            String header = exchange.getRequestHeaders().getFirst("Authorization");
+            return header != null && header.startsWith("Bearer ") ? header.substring("Bearer ".length()) : null;
+        }
+
+        private String route(HttpExchange exchange, String method, String path, Map<String, String> request,
+                             LedgerEngine engine) {
+            if (path.equals("/summary") && method.equals("GET")) {
+                return "{\"count\":" + engine.size()
+                        + ",\"total\":" + ExpenseStore.formatCents(engine.totalCents())
+                        + ",\"budget\":" + ExpenseStore.formatCents(engine.budgetCents()) + "}";
+            }
+            if (path.equals("/budget") && method.equals("PUT")) {
+                engine.setBudget(ExpenseStore.parseCents(required(request, "amount")));
+                return "{}";
+            }
+            if (path.equals("/undo") && method.equals("POST")) {
+                String undone = engine.undo();
+                if (undone == null) {
+                    throw new HttpError(404, "Nothing to undo");
+                }
+                return "{\"undone\":" + quote(undone) + "}";
+            }
+            if (path.equals("/redo") && method.equals("POST")) {
+                String redone = engine.redo();
+                if (redone == null) {
+                    throw new HttpError(404, "Nothing to redo");
+                }
+                return "{\"redone\":" + quote(redone) + "}";
+            }
+            if (path.equals("/expenses")) {
+                if (method.equals("GET")) {
+                    return listExpenses(engine, exchange.getRequestURI().getQuery());
+                }
+                if (method.equals("POST")) {
+                    return "{\"position\":" + engine.add(expenseOf(request)) + "}";
+                }
+            } else if (path.startsWith("/expenses/")) {
+                int position = Integer.parseInt(path.substring("/expenses/".length()));
+                switch (method) {
+                    case "GET":
+                        return toJson(engine.get(position));
+                    case "PUT":
+                        return toJson(engine.edit(position, expenseOf(request)));
+                    case "DELETE":
+                        return toJson(engine.delete(position));
+                    default:
+                        break;
+                }
+            }
+            throw new HttpError(405, method + " " + path + " is not supported");
+        }
+
+        private static String listExpenses(LedgerEngine engine, String query) {
+            int offset = 0;
+            int limit = 100;
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    int eq = pair.indexOf('=');
+                    if (eq < 0) {
+                        continue;
+                    }
+                    String key = pair.substring(0, eq);
+                    int value = Integer.parseInt(pair.substring(eq + 1));
+                    if (key.equals("offset")) {
+                        offset = Math.max(0, value);
+                    } else if (key.equals("limit")) {
+                        limit = Math.max(0, Math.min(value, 10_000));
+                    }
+                }
+            }
+            int from = offset;
+            int count = limit;
+            return engine.read(store -> {
+                StringBuilder json = new StringBuilder("[");
+                int to = Math.min(store.size(), from + count);
+                for (int i = from; i < to; i++) {
+                    if (i > from) {
+                        json.append(',');
+                    }
+                    json.append(toJson(store.get(i)));
+                }
+                return json.append(']').toString();
+            });
+        }
+
+        private static Expense expenseOf(Map<String, String> request) {
+            return new Expense(required(request, "category"),
+                    ExpenseStore.parseCents(required(request, "amount")), required(request, "date"));
+        }
+
+        private static String required(Map<String, String> request, String key) {
+            String value = request.get(key);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing field: " + key);
+            }
+            return value;
+        }
+
+        private static String readBody(HttpExchange exchange) throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        static String toJson(Expense expense) {
+            return "{\"category\":" + quote(expense.getCategory())
+                    + ",\"amount\":" + ExpenseStore.formatCents(expense.getAmountCents())
+                    + ",\"date\":" + quote(expense.getDate()) + "}";
+        }
+
+        private static String error(String message) {
+            return "{\"error\":" + quote(message == null ? "" : message) + "}";
+        }
+
+        static String quote(String value) {
+            StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.append('"').toString();
+        }
+
+        // Parses a flat JSON object of string, number and boolean fields, which
+        // is all the API accepts. Values come back as their text.
+        static Map<String, String> parseJson(String text) {
+            Map<String, String> fields = new HashMap<>();
+            int[] pos = {skipSpace(text, 0)};
+            if (pos[0] == text.length()) {
+                return fields;
+            }
+            expect(text, pos, '{');
+            if (peek(text, pos) == '}') {
+                pos[0]++;
+                return fields;
+            }
+            while (true) {
+                pos[0] = skipSpace(text, pos[0]);
+                String key = readString(text, pos);
+                expect(text, pos, ':');
+                pos[0] = skipSpace(text, pos[0]);
+                String value;
+                if (pos[0] < text.length() && text.charAt(pos[0]) == '"') {
+                    value = readString(text, pos);
+                } else {
+                    int start = pos[0];
+                    while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+                        pos[0]++;
+                    }
+                    value = text.substring(start, pos[0]);
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException("Malformed JSON");
+                    }
+                    if (value.equals("null")) {
+                        value = null;
+                    }
+                }
+                fields.put(key, value);
+                char next = peek(text, pos);
+                pos[0]++;
+                if (next == '}') {
+                    return fields;
+                }
+                if (next != ',') {
+                    throw new IllegalArgumentException("Malformed JSON");
+                }
+            }
+        }
+
+        private static int skipSpace(String text, int pos) {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+
+        private static char peek(String text, int[] pos) {
+            pos[0] = skipSpace(text, pos[0]);
+            if (pos[0] >= text.length()) {
+                throw new IllegalArgumentException("Malformed JSON");
+            }
+            return text.charAt(pos[0]);
+        }
+
+        private static void expect(String text, int[] pos, char c) {
+            if (peek(text, pos) != c) {
+                throw new IllegalArgumentException("Malformed JSON");
+            }
+            pos[0]++;
+        }
+
+        private static String readString(String text, int[] pos) {
+            expect(text, pos, '"');
+            StringBuilder out = new StringBuilder();
+            while (pos[0] < text.length()) {
+                char c = text.charAt(pos[0]++);
+                if (c == '"') {
+                    return out.toString();
+                }
+                if (c == '\\' && pos[0] < text.length()) {
+                    char e = text.charAt(pos[0]++);
+                    switch (e) {
+                        case 'n': out.append('\n'); break;
+                        case 't': out.append('\t'); break;
+                        case 'r': out.append('\r'); break;
+                        case 'b': out.append('\b'); break;
+                        case 'f': out.append('\f'); break;
+                        case 'u':
+                            if (pos[0] + 4 > text.length()) {
+                                throw new IllegalArgumentException("Malformed JSON");
+                            }
+                            out.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                            pos[0] += 4;
+                            break;
+                        default: out.append(e);
+                    }
+                } else {
+                    out.append(c);
+                }
+            }
+            throw new IllegalArgumentException("Malformed JSON");
+        }
+    }
+
+    // Drives a running server with a mix of adds and summary reads from a
+    // number of client threads, then prints throughput and latency percentiles.
+    static class LoadGenerator {
+        private final String baseUrl;
+        private final int clients;
+        private final int seconds;
+
+        public LoadGenerator(int port, int clients, int seconds) {
+            this.baseUrl = "http://127.0.0.1:" + port;
+            this.clients = clients;
+            this.seconds = seconds;
+        }
+
+        public void run() throws Exception {
+            String username = "loadgen-" + System.currentTimeMillis();
+            call("POST", "/register", null, "{\"username\":" + LedgerServer.quote(username) + ",\"password\":\"loadgen\"}");
+            String login = call("POST", "/login", null,
+                    "{\"username\":" + LedgerServer.quote(username) + ",\"password\":\"loadgen\"}");
+            String token = LedgerServer.parseJson(login).get("token");
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            List<Future<long[]>> results = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                results.add(pool.submit(() -> {
+                    long[] latencies = new long[1024];
+                    int n = 0;
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        if (n % 4 == 3) {
+                            call("GET", "/summary", token, null);
+                        } else {
+                            call("POST", "/expenses", token, "{\"category\":\"load" + (client % 8)
+                                    + "\",\"amount\":" + (1 + n % 100) + ".25,\"date\":\"2024-01-"
+                                    + (10 + n % 18) + "\"}");
+                        }
+                        if (n == latencies.length) {
+                            latencies = Arrays.copyOf(latencies, n * 2);
+                        }
+                        latencies[n++] = System.nanoTime() - start;
+                    }
+                    return Arrays.copyOf(latencies, n);
+                }));
+            }
+            long[] all = new long[0];
+            for (Future<long[]> result : results) {
+                long[] latencies = result.get();
+                int offset = all.length;
+                all = Arrays.copyOf(all, offset + latencies.length);
+                System.arraycopy(latencies, 0, all, offset, latencies.length);
+            }
+            pool.shutdown();
+            call("POST", "/logout", token, null);
+            Arrays.sort(all);
+            System.out.printf("%d requests in %ds from %d clients: %.0f req/s%n",
+                    all.length, seconds, clients, all.length / (double) seconds);
+            System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6,
+                    all.length == 0 ? 0.0 : all[all.length - 1] / 1e6);
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
         }
 
-        public boolean checkPassword(String inputPassword) {
-            return this.password.equals(inputPassword);
+        private String call(String method, String path, String token, String body) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            if (token != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + token);
+            }
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream stream = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            String response;
+            try (InputStream in = stream) {
+                response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (status >= 400) {
+                throw new IOException(method + " " + path + " failed with " + status + ": " + response);
+            }
+            return response;
         }
     }
 
-    static class UserManager {
-        private static final String USER_FILE = "users.ser";
-        private Map<String, User> users;
+    // Table model that reads cells straight from the ledger engine, so a single
+    // row change only fires an event for that row. With a date window set it
+    // shows just the rows the date index returns for that range. The row count
+    // is only advanced by the engine's events as they reach the EDT, so the
+    // table never sees rows it has not been told about.
+    static class ExpenseTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        private static final String[] COLUMNS = {"Category", "Amount", "Date"};
+        private LedgerEngine engine;
+        private int rowCount;
+        // physical rows on show; null while the whole ledger is shown unsorted
+        private IntList window;
+        private LedgerFilter filter = LedgerFilter.ALL;
+        private int sortColumn = -1;
+        private boolean sortDescending;
 
-        public UserManager() {
-            users = loadUsers();
+        public void setEngine(LedgerEngine engine) {
+            this.engine = engine;
+            rowCount = engine.size();
+            reselect();
         }
 
-        private Map<String, User> loadUsers() {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USER_FILE))) {
-                return (Map<String, User>) ois.readObject();
-            } catch (IOException | ClassNotFoundException e) {
-                return new HashMap<>();
-            }
+        public void showAll() {
+            setFilter(filter.withoutDays());
         }
 
-        private void saveUsers() {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USER_FILE))) {
-                oos.writeObject(users);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        public void showWindow(int fromDay, int toDay) {
+            setFilter(filter.withDays(fromDay, toDay));
         }
 
-        public boolean registerUser(String username, String password) {
-            if (users.containsKey(username)) {
-                return false;
+        public LedgerFilter getFilter() {
+            return filter;
+        }
+
+        // Each keystroke of a type-ahead search usually narrows the filter, and
+        // then only the rows already on show are rechecked.
+        public void setFilter(LedgerFilter next) {
+            boolean narrowing = window != null && next.narrows(filter);
+            IntList within = narrowing ? window : null;
+            filter = next;
+            if (narrowing) {
+                refresh(() -> window = engine.select(next, within, -1, false));
+            } else {
+                reselect();
             }
-            users.put(username, new User(username, password));
-            saveUsers();
-            return true;
         }
 
-        public boolean authenticateUser(String username, String password) {
-            User user = users.get(username);
-            return user != null && user.checkPassword(password);
+        // Clicking the same column again flips the direction.
+        public void sortBy(int column) {
+            sortDescending = column == sortColumn && !sortDescending;
+            sortColumn = column;
+            reselect();
         }
-    }
 
-    static class Expense implements Serializable {
-        private String category;
-        private double amount;
-        private String date;
+        public int getSortColumn() {
+            return sortColumn;
+        }
 
-        public Expense(String category, double amount, String date) {
-            this.category = category;
-            this.amount = amount;
-            this.date = date;
+        public boolean isSortDescending() {
+            return sortDescending;
         }
 
-        public String getCategory() {
-            return category;
+        private void reselect() {
+            refresh(() -> {
+                if (engine == null) {
+                    window = filter.isAll() && sortColumn < 0 ? null : new IntList();
+                } else {
+                    window = engine.select(filter, null, sortColumn, sortDescending);
+                }
+            });
         }
 
-        public double getAmount() {
-            return amount;
+        private void refresh(Runnable update) {
+            Metrics.TableRefreshEvent event = new Metrics.TableRefreshEvent();
+            event.begin();
+            long start = System.nanoTime();
+            update.run();
+            fireTableDataChanged();
+            Metrics.getInstance().histogram("table.refresh").record(System.nanoTime() - start);
+            event.rows = getRowCount();
+            event.commit();
         }
 
-        public String getDate() {
-            return date;
+        // Ledger position of a table row, as used by edits and deletes.
+        public int positionAt(int viewRow) {
+            return window == null ? viewRow : engine.positionOfRow(window.get(viewRow));
         }
 
         @Override
-        public String toString() {
-            return category + " | " + amount + " | " + date;
+        public int getRowCount() {
+            return window == null ? rowCount : window.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == 1 ? Double.class : String.class;
+        }
+
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+
+        @Override
+        public Object getValueAt(int viewRow, int column) {
+            return window == null ? engine.cellAt(viewRow, column) : engine.cellOfRow(window.get(viewRow), column);
+        }
+
+        public void rowsInserted(int first, int last) {
+            rowCount += last - first + 1;
+            if (window == null) {
+                fireTableRowsInserted(first, last);
+            } else {
+                reselect();
+            }
+        }
+
+        public void rowUpdated(int position) {
+            if (window == null) {
+                fireTableRowsUpdated(position, position);
+            } else {
+                reselect();
+            }
+        }
+
+        public void rowDeleted(int position) {
+            rowCount--;
+            if (window == null) {
+                fireTableRowsDeleted(position, position);
+            } else {
+                reselect();
+            }
         }
     }
 
     public static class ExpenseManager {
-        private ArrayList<Expense> expenses;
-        private double totalAmount;
-        private double overallBudget;
-        private Map<String, Double> categorySpending;
+        private LedgerEngine engine;
+        private long totalCents;
+        private final String username;
+        private ExpenseJournal journal;
+        private LedgerSync sync;
+        private File syncDirectory;
         
         private JFrame frame;
         private JTextField categoryInput;
         private JTextField amountInput;
         private JTextField dateInput;
         private JTable expensesTable;
+        private JTextField searchInput;
+        private JTextField minAmountInput;
+        private JTextField maxAmountInput;
         private JLabel totalAmountLabel;
         private JLabel overallBudgetStatusLabel;
-        private DefaultTableModel expenseTableModel;
+        private JLabel budgetAlertLabel;
+        // refreshes the budgets dialog while it is open
+        private Runnable budgetsRefresh;
+        private ExpenseTableModel expenseTableModel;
         private JDialog editDialog;
         private JTextField editCategoryField;
         private JTextField editAmountField;
         private JTextField editDateField;
         private JButton logoutButton;
+        private final ArrayList<JButton> ledgerButtons = new ArrayList<>();
         private LoginWindow loginWindow;
+        // startup.interactive runs from here until the ledger buttons come on
+        private final long createdAt = System.nanoTime();
 
         private static final Color MAIN_BACKGROUND = new Color(255, 253, 248); // Soft cream
         private static final Color INPUT_PANEL_BACKGROUND = new Color(255, 240, 220); // Soft peach
@@ -121,15 +6549,13 @@ public class ExpenseTracker {
         private static final Color TABLE_BACKGROUND = new Color(255, 255, 240); // Pale yellow
         private static final Color TABLE_HEADER_BACKGROUND = new Color(255, 218, 185); // Peach
 
-        public ExpenseManager(LoginWindow loginWindow) {
+        public ExpenseManager(LoginWindow loginWindow, String username) {
             this.loginWindow = loginWindow;
+            this.username = username;
             
-            expenses = new ArrayList<>();
-            totalAmount = 0.0;
-            overallBudget = 0.0;
-            categorySpending = new HashMap<>();
+            totalCents = 0;
             
-            frame = new JFrame("Expense Tracker");
+            frame = new JFrame("Expense Tracker - " + username);
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             frame.setSize(800, 600);
             frame.setLayout(new BorderLayout());
@@ -140,8 +6566,25 @@ public class ExpenseTracker {
 
             JPanel topPanel = new JPanel(new BorderLayout());
             logoutButton = new JButton("Logout");
-            logoutButton.addActionListener(e -> logout());
-            topPanel.add(logoutButton, BorderLayout.EAST);
+            logoutButton.addActionListener(Metrics.timed("logout", e -> logout()));
+            JButton diagnosticsButton = new JButton("Diagnostics");
+            diagnosticsButton.addActionListener(e -> showDiagnostics());
+            JButton reportButton = new JButton("Reports");
+            reportButton.addActionListener(Metrics.timed("report", e -> showReport(reportButton)));
+            ledgerButtons.add(reportButton);
+            JButton syncButton = new JButton("Sync...");
+            syncButton.addActionListener(Metrics.timed("sync", e -> syncLedger()));
+            ledgerButtons.add(syncButton);
+            JButton exportButton = new JButton("Export...");
+            exportButton.addActionListener(Metrics.timed("export", e -> exportLedger(exportButton)));
+            ledgerButtons.add(exportButton);
+            JPanel sessionPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            sessionPanel.add(syncButton);
+            sessionPanel.add(exportButton);
+            sessionPanel.add(reportButton);
+            sessionPanel.add(diagnosticsButton);
+            sessionPanel.add(logoutButton);
+            topPanel.add(sessionPanel, BorderLayout.EAST);
 
             JPanel budgetPanel = createBudgetPanel();
             topPanel.add(budgetPanel, BorderLayout.CENTER);
@@ -154,13 +6597,21 @@ public class ExpenseTracker {
             frame.setVisible(true);
 
             loadData();
-            updateBudgetStatus();
-            refreshExpenseTable();
         }
 
         private void logout() {
      
-            saveData();
+            try {
+                if (engine != null) {
+                    engine.close();
+                } else if (journal != null) {
+                    journal.close();
+                }
+            } catch (IOException | InterruptedException e) {
+                Metrics.reportError("save", e);
+                JOptionPane.showMessageDialog(frame, "Error saving data: " + e.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            }
 
             frame.dispose();
 
@@ -176,29 +6627,34 @@ public class ExpenseTracker {
             JLabel overallBudgetLabel = new JLabel("Set Budget: ");
             JTextField overallBudgetInput = new JTextField(10);
             JButton setOverallBudgetBtn = new JButton("Set Budget");
+            ledgerButtons.add(setOverallBudgetBtn);
+
+            JButton budgetsBtn = new JButton("Budgets...");
+            ledgerButtons.add(budgetsBtn);
 
             panel.add(overallBudgetLabel);
             panel.add(overallBudgetInput);
             panel.add(setOverallBudgetBtn);
+            panel.add(budgetsBtn);
+
+            budgetsBtn.addActionListener(Metrics.timed("budgets", e -> showBudgets()));
 
-            setOverallBudgetBtn.addActionListener(e -> {
+            setOverallBudgetBtn.addActionListener(Metrics.timed("setBudget", e -> {
                 try {
-                    double amount = Double.parseDouble(overallBudgetInput.getText());
+                    long amount = ExpenseStore.parseCents(overallBudgetInput.getText());
                     if (amount < 0) {
                         JOptionPane.showMessageDialog(frame, "Budget cannot be negative.",
                                 "Error", JOptionPane.ERROR_MESSAGE);
                         return;
                     }
-                    overallBudget = amount;
-                    updateBudgetStatus();
+                    engine.setBudget(amount);
                     overallBudgetInput.setText("");
-                    JOptionPane.showMessageDialog(frame, "Budget set to: " + amount);
-                    saveData();
+                    JOptionPane.showMessageDialog(frame, "Budget set to: " + ExpenseStore.formatCents(amount));
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(frame, "Please enter a valid amount.",
                             "Error", JOptionPane.ERROR_MESSAGE);
                 }
-            });
+            }));
 
             return panel;
         }
@@ -241,47 +6697,109 @@ public class ExpenseTracker {
             JButton addBtn = new JButton("Add Expense");
             JButton editBtn = new JButton("Edit Selected");
             JButton deleteBtn = new JButton("Delete Selected");
-            JButton undoBtn = new JButton("Undo Last");
+            JButton undoBtn = new JButton("Undo");
+            JButton redoBtn = new JButton("Redo");
+            JButton importBtn = new JButton("Import CSV...");
+            ledgerButtons.add(addBtn);
+            ledgerButtons.add(editBtn);
+            ledgerButtons.add(deleteBtn);
+            ledgerButtons.add(undoBtn);
+            ledgerButtons.add(redoBtn);
+            ledgerButtons.add(importBtn);
 
             buttonPanel.add(addBtn);
             buttonPanel.add(editBtn);
             buttonPanel.add(deleteBtn);
             buttonPanel.add(undoBtn);
+            buttonPanel.add(redoBtn);
+            buttonPanel.add(importBtn);
 
-            JPanel topPanel = new JPanel(new BorderLayout());
-            topPanel.setBackground(MAIN_BACKGROUND);
-            topPanel.add(inputPanel, BorderLayout.CENTER);
-            topPanel.add(buttonPanel, BorderLayout.SOUTH);
+            JComboBox<String> periodFilter = new JComboBox<>(
+                    new String[]{"All", "This Month", "Last 90 Days", "Custom Range..."});
+            periodFilter.addActionListener(Metrics.timed("periodFilter",
+                    e -> applyPeriodFilter((String) periodFilter.getSelectedItem())));
+            buttonPanel.add(new JLabel("Show:"));
+            buttonPanel.add(periodFilter);
 
-            expenseTableModel = new DefaultTableModel(
-                    new String[]{"Category", "Amount", "Date"}, 0) {
+            JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+            searchPanel.setBackground(INPUT_PANEL_BACKGROUND);
+            searchInput = new JTextField(12);
+            minAmountInput = new JTextField(6);
+            maxAmountInput = new JTextField(6);
+            ActionListener search = Metrics.timed("search", e -> applySearch());
+            DocumentListener typeAhead = new DocumentListener() {
                 @Override
-                public boolean isCellEditable(int row, int column) {
-                    return false;
+                public void insertUpdate(DocumentEvent e) {
+                    search.actionPerformed(null);
+                }
+
+                @Override
+                public void removeUpdate(DocumentEvent e) {
+                    search.actionPerformed(null);
+                }
+
+                @Override
+                public void changedUpdate(DocumentEvent e) {
+                    search.actionPerformed(null);
                 }
             };
+            searchInput.getDocument().addDocumentListener(typeAhead);
+            minAmountInput.getDocument().addDocumentListener(typeAhead);
+            maxAmountInput.getDocument().addDocumentListener(typeAhead);
+            searchPanel.add(new JLabel("Category starts with:"));
+            searchPanel.add(searchInput);
+            searchPanel.add(new JLabel("Amount from:"));
+            searchPanel.add(minAmountInput);
+            searchPanel.add(new JLabel("to:"));
+            searchPanel.add(maxAmountInput);
+
+            JPanel controlsPanel = new JPanel(new GridLayout(2, 1));
+            controlsPanel.add(buttonPanel);
+            controlsPanel.add(searchPanel);
+
+            JPanel topPanel = new JPanel(new BorderLayout());
+            topPanel.setBackground(MAIN_BACKGROUND);
+            topPanel.add(inputPanel, BorderLayout.CENTER);
+            topPanel.add(controlsPanel, BorderLayout.SOUTH);
+
+            expenseTableModel = new ExpenseTableModel();
             
             expensesTable = new JTable(expenseTableModel);
             expensesTable.setBackground(TABLE_BACKGROUND);
             expensesTable.getTableHeader().setBackground(TABLE_HEADER_BACKGROUND);
+            ActionListener sort = Metrics.timed("sort", e -> sortBy(Integer.parseInt(e.getActionCommand())));
+            expensesTable.getTableHeader().addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    int column = expensesTable.columnAtPoint(e.getPoint());
+                    if (column >= 0) {
+                        sort.actionPerformed(new ActionEvent(expensesTable, ActionEvent.ACTION_PERFORMED,
+                                String.valueOf(expensesTable.convertColumnIndexToModel(column))));
+                    }
+                }
+            });
             JScrollPane scrollPane = new JScrollPane(expensesTable);
             scrollPane.getViewport().setBackground(TABLE_BACKGROUND);
 
-            JPanel statusPanel = new JPanel(new GridLayout(2, 1));
+            JPanel statusPanel = new JPanel(new GridLayout(3, 1));
             statusPanel.setBackground(STATUS_PANEL_BACKGROUND);
             totalAmountLabel = new JLabel("Total Amount: 0.0");
             overallBudgetStatusLabel = new JLabel("Budget Status: No Budget Set");
+            budgetAlertLabel = new JLabel(" ");
             statusPanel.add(totalAmountLabel);
             statusPanel.add(overallBudgetStatusLabel);
+            statusPanel.add(budgetAlertLabel);
 
             panel.add(topPanel, BorderLayout.NORTH);
             panel.add(scrollPane, BorderLayout.CENTER);
             panel.add(statusPanel, BorderLayout.SOUTH);
 
-            addBtn.addActionListener(e -> addExpense());
-            editBtn.addActionListener(e -> editSelectedExpense());
-            deleteBtn.addActionListener(e -> deleteSelectedExpense());
-            undoBtn.addActionListener(e -> undoLastExpense());
+            addBtn.addActionListener(Metrics.timed("add", e -> addExpense()));
+            editBtn.addActionListener(Metrics.timed("edit", e -> editSelectedExpense()));
+            deleteBtn.addActionListener(Metrics.timed("delete", e -> deleteSelectedExpense()));
+            undoBtn.addActionListener(Metrics.timed("undo", e -> undo()));
+            redoBtn.addActionListener(Metrics.timed("redo", e -> redo()));
+            importBtn.addActionListener(Metrics.timed("import", e -> importCsv()));
 
             return panel;
         }
@@ -296,43 +6814,40 @@ public class ExpenseTracker {
                             "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
-                double amount = Double.parseDouble(amountText);
+                long amount = ExpenseStore.parseCents(amountText);
                 if (date.isEmpty() || amount <= 0) {
                     JOptionPane.showMessageDialog(frame, "Please enter valid details.",
                             "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
-                Expense newExpense = new Expense(category, amount, date);
-                expenses.add(newExpense);
-                categorySpending.put(category, categorySpending.getOrDefault(category, 0.0) + amount);
-                totalAmount += amount;
-                totalAmountLabel.setText("Total Amount: " + totalAmount);
-                
-                addExpenseToTable(newExpense);
-                updateBudgetStatus();
-                saveData();
+                ExpenseStore.parseDay(date);
+                engine.add(new Expense(category, amount, date));
                 categoryInput.setText("");
                 amountInput.setText("");
                 dateInput.setText("yyyy-mm-dd");
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(frame, "Please enter a valid amount.",
                         "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(frame, "Please enter a valid date (yyyy-mm-dd).",
+                        "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
 
         private void editSelectedExpense() {
-            int selectedRow = expensesTable.getSelectedRow();
-            if (selectedRow == -1) {
+            int selectedViewRow = expensesTable.getSelectedRow();
+            if (selectedViewRow == -1) {
                 JOptionPane.showMessageDialog(frame, "Please select an expense to edit.",
                         "No Selection", JOptionPane.WARNING_MESSAGE);
                 return;
             }
-            Expense selectedExpense = expenses.get(selectedRow);
+            int selectedRow = expenseTableModel.positionAt(selectedViewRow);
+            Expense selectedExpense = engine.get(selectedRow);
             editDialog = new JDialog(frame, "Edit Expense", true);
             editDialog.setLayout(new GridLayout(4, 2, 5, 5));
 
             editCategoryField = new JTextField(selectedExpense.getCategory());
-            editAmountField = new JTextField(String.valueOf(selectedExpense.getAmount()));
+            editAmountField = new JTextField(ExpenseStore.formatCents(selectedExpense.getAmountCents()));
             editDateField = new JTextField(selectedExpense.getDate());
 
             editDialog.add(new JLabel("Category:"));
@@ -344,7 +6859,7 @@ public class ExpenseTracker {
 
             JButton saveBtn = new JButton("Save");
             JButton cancelBtn = new JButton("Cancel");
-            saveBtn.addActionListener(e -> saveEditedExpense(selectedRow, selectedExpense));
+            saveBtn.addActionListener(Metrics.timed("saveEdit", e -> saveEditedExpense(selectedRow)));
             cancelBtn.addActionListener(e -> editDialog.dispose());
 
             editDialog.add(saveBtn);
@@ -355,10 +6870,10 @@ public class ExpenseTracker {
             editDialog.setVisible(true);
         }
 
-        private void saveEditedExpense(int selectedRow, Expense oldExpense) {
+        private void saveEditedExpense(int selectedRow) {
             try {
                 String newCategory = editCategoryField.getText().trim();
-                double newAmount = Double.parseDouble(editAmountField.getText().trim());
+                long newAmount = ExpenseStore.parseCents(editAmountField.getText());
                 String newDate = editDateField.getText().trim();
 
                 if (newCategory.isEmpty() || newDate.isEmpty() || newAmount <= 0) {
@@ -366,125 +6881,570 @@ public class ExpenseTracker {
                             "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
+                ExpenseStore.parseDay(newDate);
 
-                categorySpending.put(oldExpense.getCategory(),
-                        categorySpending.getOrDefault(oldExpense.getCategory(), 0.0) - oldExpense.getAmount());
-                categorySpending.put(newCategory,
-                        categorySpending.getOrDefault(newCategory, 0.0) + newAmount);
-
-                totalAmount = totalAmount - oldExpense.getAmount() + newAmount;
-                totalAmountLabel.setText("Total Amount: " + totalAmount);
-
-                Expense newExpense = new Expense(newCategory, newAmount, newDate);
-                expenses.set(selectedRow, newExpense);
-
-                refreshExpenseTable();
-                updateBudgetStatus();
-                saveData();
+                engine.edit(selectedRow, new Expense(newCategory, newAmount, newDate));
                 editDialog.dispose();
                 JOptionPane.showMessageDialog(frame, "Expense updated successfully!");
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(editDialog, "Please enter a valid amount.",
                         "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(editDialog, "Please enter a valid date (yyyy-mm-dd).",
+                        "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
 
-        private void addExpenseToTable(Expense expense) {
-            expenseTableModel.addRow(new Object[]{
-                    expense.getCategory(),
-                    expense.getAmount(),
-                    expense.getDate()
-            });
-        }
-
         private void deleteSelectedExpense() {
-            int selectedRow = expensesTable.getSelectedRow();
-            if (selectedRow == -1) {
+            int selectedViewRow = expensesTable.getSelectedRow();
+            if (selectedViewRow == -1) {
                 JOptionPane.showMessageDialog(frame, "Please select an expense to delete.",
                         "No Selection", JOptionPane.WARNING_MESSAGE);
                 return;
             }
-            Expense expense = expenses.get(selectedRow);
-            expenses.remove(expense);
-            totalAmount -= expense.getAmount();
-            totalAmountLabel.setText("Total Amount: " + totalAmount);
-            categorySpending.put(expense.getCategory(),
-                    categorySpending.getOrDefault(expense.getCategory(), 0.0) - expense.getAmount());
-            refreshExpenseTable();
-            updateBudgetStatus();
-            saveData();
+            int selectedRow = expenseTableModel.positionAt(selectedViewRow);
+            engine.delete(selectedRow);
             JOptionPane.showMessageDialog(frame, "Expense deleted successfully!");
         }
 
-        private void updateBudgetStatus() {
-            if (overallBudget == 0) {
-                overallBudgetStatusLabel.setText("Budget Status: No Budget Set");
-            } else {
-                double remaining = overallBudget - totalAmount;
-                String status;
-                if (remaining < 0) {
-                    status = "OVER BUDGET by " + String.format("%.2f", -remaining);
-                } else if (remaining < (overallBudget * 0.1)) {
-                    status = "NEAR LIMIT (Remaining: " + String.format("%.2f", remaining) + ")";
+        private void updateTotals() {
+            totalCents = engine.totalCents();
+            totalAmountLabel.setText("Total Amount: " + ExpenseStore.formatCents(totalCents));
+        }
+
+        // Budget labels change only when the engine reports a crossing, not on
+        // every edit; the running total is on the line above.
+        private void showBudgetStatus(BudgetBook.Status status) {
+            if (status.budget.isOverall()) {
+                if (status.budget.limitCents == 0) {
+                    overallBudgetStatusLabel.setText("Budget Status: No Budget Set");
                 } else {
-                    status = "Within Budget (Remaining: " + String.format("%.2f", remaining) + ")";
+                    overallBudgetStatusLabel.setText("Budget Status: " + status.stateName()
+                            + " (Budget: " + ExpenseStore.formatCents(status.budget.limitCents) + ")");
                 }
-                overallBudgetStatusLabel.setText("Budget Status: " + status);
+            } else if (status.budget.limitCents > 0) {
+                budgetAlertLabel.setText(status.budget.describe() + ": " + status.stateName() + " ("
+                        + ExpenseStore.formatCents(status.spentCents) + " of "
+                        + ExpenseStore.formatCents(status.budget.limitCents) + ")");
+            }
+            if (budgetsRefresh != null) {
+                budgetsRefresh.run();
             }
         }
 
-        private void refreshExpenseTable() {
-            expenseTableModel.setRowCount(0);
-            for (Expense exp : expenses) {
-                addExpenseToTable(exp);
+        private void showBudgets() {
+            DefaultTableModel rows = new DefaultTableModel(
+                    new String[]{"Budget", "Period", "Limit", "Spent", "Remaining", "Status"}, 0) {
+                @Override
+                public boolean isCellEditable(int row, int column) {
+                    return false;
+                }
+            };
+            List<BudgetBook.Status> shown = new ArrayList<>();
+            Runnable refresh = () -> {
+                shown.clear();
+                shown.addAll(engine.budgetStatuses());
+                rows.setRowCount(0);
+                for (BudgetBook.Status status : shown) {
+                    BudgetBook.Budget budget = status.budget;
+                    rows.addRow(new Object[]{budget.category == null ? "All categories" : budget.category,
+                            budget.period == BudgetBook.MONTHLY ? "This month"
+                                    : budget.period == BudgetBook.YEARLY ? "This year" : "All time",
+                            ExpenseStore.formatCents(budget.limitCents), ExpenseStore.formatCents(status.spentCents),
+                            ExpenseStore.formatCents(status.remainingCents()), status.stateName()});
+                }
+            };
+            refresh.run();
+
+            JTable table = new JTable(rows);
+            JTextField categoryField = new JTextField(12);
+            JComboBox<String> periodBox = new JComboBox<>(new String[]{"Monthly", "Yearly", "All time"});
+            JTextField limitField = new JTextField(8);
+            JButton setBtn = new JButton("Set");
+            JButton removeBtn = new JButton("Remove Selected");
+            JPanel form = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            form.add(new JLabel("Category (blank for all):"));
+            form.add(categoryField);
+            form.add(periodBox);
+            form.add(new JLabel("Limit:"));
+            form.add(limitField);
+            form.add(setBtn);
+            form.add(removeBtn);
+
+            setBtn.addActionListener(Metrics.timed("setCategoryBudget", e -> {
+                try {
+                    long limit = ExpenseStore.parseCents(limitField.getText());
+                    byte period = (byte) (periodBox.getSelectedIndex() + 1);
+                    engine.setCategoryBudget(categoryField.getText(), period, limit);
+                    limitField.setText("");
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(frame, "Please enter a valid amount.",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(frame, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }));
+            removeBtn.addActionListener(Metrics.timed("removeCategoryBudget", e -> {
+                int selected = table.getSelectedRow();
+                if (selected < 0) {
+                    JOptionPane.showMessageDialog(frame, "Please select a budget to remove.",
+                            "No Selection", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                BudgetBook.Budget budget = shown.get(selected).budget;
+                engine.setCategoryBudget(budget.category, budget.period, 0);
+            }));
+
+            JDialog dialog = new JDialog(frame, "Budgets", false);
+            dialog.setLayout(new BorderLayout());
+            dialog.add(new JScrollPane(table), BorderLayout.CENTER);
+            dialog.add(form, BorderLayout.SOUTH);
+            dialog.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) {
+                    budgetsRefresh = null;
+                }
+            });
+            dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+            dialog.setSize(700, 300);
+            dialog.setLocationRelativeTo(frame);
+            budgetsRefresh = refresh;
+            dialog.setVisible(true);
+        }
+
+        // Exchanges changes with the user's other devices through a shared folder.
+        // The first sync of a ledger also queues every existing row for them.
+        // Every ledger button is disabled while it runs: merging moves rows and
+        // clears the undo history under whatever the user does meanwhile.
+        private void syncLedger() {
+            JFileChooser chooser = new JFileChooser(syncDirectory);
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            chooser.setDialogTitle("Shared sync folder");
+            if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            syncDirectory = chooser.getSelectedFile();
+            File shared = syncDirectory;
+            for (JButton button : ledgerButtons) {
+                button.setEnabled(false);
             }
+            frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            new SwingWorker<LedgerSync.Report, Void>() {
+                @Override
+                protected LedgerSync.Report doInBackground() throws IOException {
+                    if (sync == null) {
+                        sync = LedgerSync.open(journal.directory(), engine);
+                    }
+                    return sync.syncWith(shared);
+                }
+
+                @Override
+                protected void done() {
+                    for (JButton button : ledgerButtons) {
+                        button.setEnabled(true);
+                    }
+                    frame.setCursor(Cursor.getDefaultCursor());
+                    try {
+                        JOptionPane.showMessageDialog(frame, get().format(), "Sync", JOptionPane.INFORMATION_MESSAGE);
+                    } catch (InterruptedException | ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        Metrics.reportError("sync", cause);
+                        JOptionPane.showMessageDialog(frame, "Error syncing: " + cause.getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }.execute();
         }
 
-        private void saveData() {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("expense_data.ser"))) {
-                oos.writeObject(expenses);
-                oos.writeDouble(overallBudget);
-                oos.writeObject(categorySpending);
-            } catch (IOException e) {
-                e.printStackTrace();
-                JOptionPane.showMessageDialog(frame, "Error saving data: " + e.getMessage(),
-                        "Error", JOptionPane.ERROR_MESSAGE);
+        // Writes the rows the table currently shows (its search and period filter)
+        // to a CSV or JSON file on a worker thread. Only the export button is
+        // disabled: the engine keeps taking changes between batches.
+        private void exportLedger(JButton exportButton) {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setDialogTitle("Export to .csv or .json");
+            if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = chooser.getSelectedFile();
+            if (file.exists() && JOptionPane.showConfirmDialog(frame, file.getName() + " already exists. Replace it?",
+                    "Export", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                return;
             }
+
+            JDialog progressDialog = new JDialog(frame, "Exporting to " + file.getName(), false);
+            JProgressBar progressBar = new JProgressBar(0, 100);
+            progressBar.setStringPainted(true);
+            JButton cancelBtn = new JButton("Cancel");
+            progressDialog.setLayout(new BorderLayout(5, 5));
+            progressDialog.add(progressBar, BorderLayout.CENTER);
+            progressDialog.add(cancelBtn, BorderLayout.SOUTH);
+            progressDialog.setSize(350, 90);
+            progressDialog.setLocationRelativeTo(frame);
+
+            exportButton.setEnabled(false);
+            LedgerExporter exporter = new LedgerExporter(LedgerExporter.formatOf(file), expenseTableModel.getFilter());
+            SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws IOException {
+                    exporter.run(engine, file, this::setProgress, this::isCancelled);
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    progressDialog.dispose();
+                    exportButton.setEnabled(true);
+                    if (isCancelled()) {
+                        JOptionPane.showMessageDialog(frame, "Export cancelled.");
+                        return;
+                    }
+                    try {
+                        get();
+                        JOptionPane.showMessageDialog(frame, exporter.format(), "Export", JOptionPane.INFORMATION_MESSAGE);
+                    } catch (InterruptedException | ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        Metrics.reportError("export", cause);
+                        JOptionPane.showMessageDialog(frame, "Error exporting: " + cause.getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            };
+            worker.addPropertyChangeListener(e -> {
+                if ("progress".equals(e.getPropertyName())) {
+                    progressBar.setValue((Integer) e.getNewValue());
+                }
+            });
+            cancelBtn.addActionListener(e -> worker.cancel(true));
+            progressDialog.setVisible(true);
+            worker.execute();
         }
 
-        private void loadData() {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("expense_data.ser"))) {
-                expenses = (ArrayList<Expense>) ois.readObject();
-                overallBudget = ois.readDouble();
-                categorySpending = (Map<String, Double>) ois.readObject();
-                
-                for (Expense exp : expenses) {
-                    totalAmount += exp.getAmount();
+        // Streams a statement in on a worker thread. Each parsed chunk goes to the
+        // engine as one batch: one journal record, one table event and one totals
+        // update, delivered back to the EDT through the engine listener.
+        private void importCsv() {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = chooser.getSelectedFile();
+            long fileLength = Math.max(1, file.length());
+
+            JDialog progressDialog = new JDialog(frame, "Importing " + file.getName(), false);
+            JProgressBar progressBar = new JProgressBar(0, 100);
+            progressBar.setStringPainted(true);
+            JButton cancelBtn = new JButton("Cancel");
+            progressDialog.setLayout(new BorderLayout(5, 5));
+            progressDialog.add(progressBar, BorderLayout.CENTER);
+            progressDialog.add(cancelBtn, BorderLayout.SOUTH);
+            progressDialog.setSize(350, 90);
+            progressDialog.setLocationRelativeTo(frame);
+
+            for (JButton button : ledgerButtons) {
+                button.setEnabled(false);
+            }
+            CsvImporter importer = new CsvImporter();
+            SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws IOException, InterruptedException {
+                    importer.run(file, batch -> {
+                        engine.addRows(batch.categories, batch.cents, batch.days, batch.size);
+                        setProgress((int) Math.min(100, batch.bytesRead * 100 / fileLength));
+                    }, this::isCancelled);
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    progressDialog.dispose();
+                    for (JButton button : ledgerButtons) {
+                        button.setEnabled(true);
+                    }
+                    if (isCancelled()) {
+                        JOptionPane.showMessageDialog(frame, "Import cancelled.");
+                        return;
+                    }
+                    try {
+                        get();
+                        StringBuilder message = new StringBuilder("Imported " + importer.rowsImported() + " expenses.");
+                        if (importer.rowsRejected() > 0) {
+                            message.append("\nSkipped ").append(importer.rowsRejected())
+                                    .append(" invalid rows, for example:");
+                            for (String error : importer.errors()) {
+                                message.append("\n").append(error);
+                            }
+                        }
+                        JOptionPane.showMessageDialog(frame, message.toString());
+                    } catch (InterruptedException | ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        Metrics.reportError("import", cause);
+                        JOptionPane.showMessageDialog(frame, "Error importing file: " + cause.getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
                 }
-                totalAmountLabel.setText("Total Amount: " + totalAmount);
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("No previous data found.");
+            };
+            worker.addPropertyChangeListener(e -> {
+                if ("progress".equals(e.getPropertyName())) {
+                    progressBar.setValue((Integer) e.getNewValue());
+                }
+            });
+            cancelBtn.addActionListener(e -> worker.cancel(true));
+            progressDialog.setVisible(true);
+            worker.execute();
+        }
+
+        private void applySearch() {
+            LedgerFilter filter = expenseTableModel.getFilter().withCategoryPrefix(searchInput.getText())
+                    .withAmounts(amountBound(minAmountInput, Long.MIN_VALUE), amountBound(maxAmountInput, Long.MAX_VALUE));
+            expenseTableModel.setFilter(filter);
+        }
+
+        // A half-typed amount leaves that side of the range open rather than
+        // interrupting the search with an error.
+        private long amountBound(JTextField input, long none) {
+            String text = input.getText().trim();
+            input.setBackground(Color.WHITE);
+            if (text.isEmpty()) {
+                return none;
+            }
+            try {
+                return ExpenseStore.parseCents(text);
+            } catch (NumberFormatException e) {
+                input.setBackground(Color.PINK);
+                return none;
             }
         }
 
-        private void undoLastExpense() {
-            if (expenses.isEmpty()) {
-                JOptionPane.showMessageDialog(frame, "No expenses to undo.",
-                        "Error", JOptionPane.ERROR_MESSAGE);
-                return;
+        private void sortBy(int column) {
+            expenseTableModel.sortBy(column);
+            for (int i = 0; i < expensesTable.getColumnCount(); i++) {
+                TableColumn tableColumn = expensesTable.getColumnModel().getColumn(i);
+                int modelColumn = tableColumn.getModelIndex();
+                String arrow = modelColumn != column ? "" : expenseTableModel.isSortDescending() ? " \u25BC" : " \u25B2";
+                tableColumn.setHeaderValue(expenseTableModel.getColumnName(modelColumn) + arrow);
+            }
+            expensesTable.getTableHeader().repaint();
+        }
+
+        private void applyPeriodFilter(String period) {
+            LocalDate today = LocalDate.now();
+            switch (period) {
+                case "This Month":
+                    expenseTableModel.showWindow((int) today.withDayOfMonth(1).toEpochDay(),
+                            (int) today.withDayOfMonth(today.lengthOfMonth()).toEpochDay());
+                    break;
+                case "Last 90 Days":
+                    expenseTableModel.showWindow((int) today.minusDays(89).toEpochDay(), (int) today.toEpochDay());
+                    break;
+                case "Custom Range...":
+                    String from = JOptionPane.showInputDialog(frame, "From date (yyyy-mm-dd):");
+                    if (from == null) {
+                        return;
+                    }
+                    String to = JOptionPane.showInputDialog(frame, "To date (yyyy-mm-dd):");
+                    if (to == null) {
+                        return;
+                    }
+                    try {
+                        expenseTableModel.showWindow(ExpenseStore.parseDay(from), ExpenseStore.parseDay(to));
+                    } catch (DateTimeParseException ex) {
+                        JOptionPane.showMessageDialog(frame, "Please enter a valid date (yyyy-mm-dd).",
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                    break;
+                default:
+                    expenseTableModel.showAll();
+            }
+        }
+
+        // Engine events can come from any thread (the import worker, for one), so
+        // they are always replayed on the EDT in the order the engine applied them.
+        private final LedgerEngine.Listener ledgerListener = new LedgerEngine.Listener() {
+            @Override
+            public void rowsInserted(int first, int last) {
+                SwingUtilities.invokeLater(() -> {
+                    expenseTableModel.rowsInserted(first, last);
+                    updateTotals();
+                });
+            }
+
+            @Override
+            public void rowUpdated(int position) {
+                SwingUtilities.invokeLater(() -> {
+                    expenseTableModel.rowUpdated(position);
+                    updateTotals();
+                });
+            }
+
+            @Override
+            public void rowDeleted(int position) {
+                SwingUtilities.invokeLater(() -> {
+                    expenseTableModel.rowDeleted(position);
+                    updateTotals();
+                });
+            }
+
+            @Override
+            public void budgetChanged(long cents) {
+                // the overall budget's new status follows as a crossing
+            }
+
+            @Override
+            public void budgetCrossed(BudgetBook.Status status) {
+                SwingUtilities.invokeLater(() -> showBudgetStatus(status));
+            }
+        };
+
+        private void reportSaveError(IOException e) {
+            Metrics.reportError("save", e);
+            SwingUtilities.invokeLater(() ->
+                    JOptionPane.showMessageDialog(frame, "Error saving data: " + e.getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE));
+        }
+
+        // Reads the snapshot and journal on a worker thread; the ledger buttons
+        // stay disabled until the state has been handed back to the EDT. Opening
+        // costs the snapshot header, rollup and journal tail, never the row count:
+        // the totals come straight from the rollup, the table opens on the newest
+        // page, and older chunks are decoded as scrolling reaches them.
+        private void loadData() {
+            for (JButton button : ledgerButtons) {
+                button.setEnabled(false);
             }
+            totalAmountLabel.setText("Total Amount: loading...");
+            new SwingWorker<LedgerEngine, Void>() {
+                @Override
+                protected LedgerEngine doInBackground() throws IOException {
+                    journal = new LedgerPartitions(new File("ledgers")).openJournal(username);
+                    LedgerEngine opened = LedgerEngine.open(journal, ExpenseManager.this::reportSaveError);
+                    if (Boolean.getBoolean("expensetracker.verifyRollup") && !opened.verifyRollup()) {
+                        Metrics.LOG.warning("Rollup totals had drifted from the ledger and were rebuilt.");
+                    }
+                    if (LedgerSync.isEnabled(journal.directory())) {
+                        sync = LedgerSync.open(journal.directory(), opened);
+                    }
+                    return opened;
+                }
+
+                @Override
+                protected void done() {
+                    try {
+                        engine = get();
+                        expenseTableModel.setEngine(engine);
+                        engine.addListener(ledgerListener);
+
+                        updateTotals();
+                        for (BudgetBook.Status status : engine.budgetStatuses()) {
+                            if (status.budget.isOverall() || status.state != BudgetBook.WITHIN) {
+                                showBudgetStatus(status);
+                            }
+                        }
+
+                        int newest = expenseTableModel.getRowCount() - 1;
+                        if (newest >= 0) {
+                            expensesTable.scrollRectToVisible(expensesTable.getCellRect(newest, 0, true));
+                        }
 
-            Expense lastExpense = expenses.remove(expenses.size() - 1);
-            totalAmount -= lastExpense.getAmount();
-            totalAmountLabel.setText("Total Amount: " + totalAmount);
+                        for (JButton button : ledgerButtons) {
+                            button.setEnabled(true);
+                        }
+                        Metrics.getInstance().histogram("startup.interactive").record(System.nanoTime() - createdAt);
+                    } catch (InterruptedException | ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        Metrics.reportError("load", cause);
+                        JOptionPane.showMessageDialog(frame, "Error loading data: " + cause.getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }.execute();
+        }
+
+        // Live view of the metrics registry, refreshed every second while open.
+        private void showDiagnostics() {
+            JDialog dialog = new JDialog(frame, "Diagnostics", false);
+            JTextArea text = new JTextArea(30, 100);
+            text.setEditable(false);
+            text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            dialog.add(new JScrollPane(text));
+
+            Metrics.Snapshot[] previous = {Metrics.getInstance().snapshot()};
+            text.setText(previous[0].format(null));
+            Timer timer = new Timer(1000, e -> {
+                Metrics.Snapshot current = Metrics.getInstance().snapshot();
+                text.setText(current.format(previous[0]));
+                previous[0] = current;
+            });
+            dialog.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) {
+                    timer.stop();
+                }
+            });
+            dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+            dialog.pack();
+            dialog.setLocationRelativeTo(frame);
+            dialog.setVisible(true);
+            timer.start();
+        }
+
+        // Builds the report for the period on show in the table. The scan, the
+        // sort and the chart drawing all happen on the worker; the EDT only
+        // lays out the finished text and images.
+        private void showReport(JButton reportButton) {
+            LedgerFilter filter = expenseTableModel.getFilter();
+            BufferedImage[] charts = new BufferedImage[2];
+            reportButton.setEnabled(false);
+            frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            new SwingWorker<LedgerReport, Void>() {
+                @Override
+                protected LedgerReport doInBackground() {
+                    LedgerReport report = engine.read(store -> LedgerReport.of(store, filter.fromDay, filter.toDay));
+                    charts[0] = report.pieChart(640, 360);
+                    charts[1] = report.monthlyChart(640, 360);
+                    return report;
+                }
+
+                @Override
+                protected void done() {
+                    reportButton.setEnabled(true);
+                    frame.setCursor(Cursor.getDefaultCursor());
+                    try {
+                        LedgerReport report = get();
+                        JTextArea text = new JTextArea(report.format(), 30, 90);
+                        text.setEditable(false);
+                        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+                        JTabbedPane tabs = new JTabbedPane();
+                        tabs.addTab("Summary", new JScrollPane(text));
+                        tabs.addTab("Categories", new JLabel(new ImageIcon(charts[0])));
+                        tabs.addTab("Months", new JLabel(new ImageIcon(charts[1])));
+                        JDialog dialog = new JDialog(frame, "Report", false);
+                        dialog.add(tabs);
+                        dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+                        dialog.pack();
+                        dialog.setLocationRelativeTo(frame);
+                        dialog.setVisible(true);
+                    } catch (InterruptedException | ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        Metrics.reportError("report", cause);
+                        JOptionPane.showMessageDialog(frame, "Error building report: " + cause.getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }.execute();
+        }
 
-            categorySpending.put(lastExpense.getCategory(),
-                    categorySpending.getOrDefault(lastExpense.getCategory(), 0.0) - lastExpense.getAmount());
+        private void undo() {
+            if (engine.undo() == null) {
+                JOptionPane.showMessageDialog(frame, "Nothing to undo.",
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
 
-            refreshExpenseTable();
-            updateBudgetStatus();
-            saveData();
-            JOptionPane.showMessageDialog(frame, "Last expense undone successfully!");
+        private void redo() {
+            if (engine.redo() == null) {
+                JOptionPane.showMessageDialog(frame, "Nothing to redo.",
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            }
         }
     }
 
@@ -494,7 +7454,7 @@ public class ExpenseTracker {
         private UserManager userManager;
 
         public LoginWindow() {
-            userManager = new UserManager();
+            userManager = UserManager.getInstance();
             initLoginWindow();
         }
 
@@ -541,22 +7501,22 @@ public class ExpenseTracker {
             loginPanel.add(registerButton, gbc);
 
                   
-            loginButton.addActionListener(e -> {
+            loginButton.addActionListener(Metrics.timed("login", e -> {
                 String username = usernameField.getText().trim();
                 String password = new String(passwordField.getPassword());
 
                 if (userManager.authenticateUser(username, password)) {
                     loginFrame.dispose();
-                    SwingUtilities.invokeLater(() -> new ExpenseManager(this));
+                    SwingUtilities.invokeLater(() -> new ExpenseManager(this, username));
                 } else {
                     JOptionPane.showMessageDialog(loginFrame, 
                         "Invalid username or password", 
                         "Login Failed", 
                         JOptionPane.ERROR_MESSAGE);
                 }
-            });
+            }));
 
-            registerButton.addActionListener(e -> {
+            registerButton.addActionListener(Metrics.timed("register", e -> {
                 String username = usernameField.getText().trim();
                 String password = new String(passwordField.getPassword());
 
@@ -568,18 +7528,26 @@ public class ExpenseTracker {
                     return;
                 }
 
-                if (userManager.registerUser(username, password)) {
-                    JOptionPane.showMessageDialog(loginFrame, 
-                        "User registered successfully", 
-                        "Registration", 
-                        JOptionPane.INFORMATION_MESSAGE);
-                } else {
+                try {
+                    if (userManager.registerUser(username, password)) {
+                        JOptionPane.showMessageDialog(loginFrame, 
+                            "User registered successfully", 
+                            "Registration", 
+                            JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(loginFrame, 
+                            "Username already exists", 
+                            "Registration Failed", 
+                            JOptionPane.ERROR_MESSAGE);
+                    }
+                } catch (IOException ex) {
+                    Metrics.reportError("register", ex);
                     JOptionPane.showMessageDialog(loginFrame, 
-                        "Username already exists", 
+                        "Error saving the new user: " + ex.getMessage(), 
                         "Registration Failed", 
                         JOptionPane.ERROR_MESSAGE);
                 }
-            });
+            }));
 
             loginFrame.add(loginPanel, BorderLayout.CENTER);
             loginFrame.setLocationRelativeTo(null);
@@ -587,7 +7555,26 @@ public class ExpenseTracker {
         }
     }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(LoginWindow::new);
+    // With no arguments the Swing client starts. "--server [port]" runs the
+    // headless JSON server instead, and "--loadgen [port] [clients] [seconds]"
+    // benchmarks a running one. In every mode -Dexpensetracker.metrics.file=path
+    // writes a metrics snapshot every expensetracker.metrics.interval seconds.
+    public static void main(String[] args) throws Exception {
+        Metrics.getInstance().startExporter();
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            LedgerServer server = new LedgerServer(port, UserManager.getInstance(), new LedgerPartitions(new File("ledgers")));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            server.start();
+            System.out.println("Expense Tracker server listening on 127.0.0.1:" + server.port());
+        } else if (args.length > 0 && args[0].equals("--loadgen")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+            int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+            new LoadGenerator(port, clients, seconds).run();
+        } else {
+            Metrics.getInstance().startEdtWatchdog();
+            SwingUtilities.invokeLater(LoginWindow::new);
+        }
     }
 }
\ No newline at end of file
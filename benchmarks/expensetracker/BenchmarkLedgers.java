@@ -0,0 +1,75 @@
+package expensetracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Synthetic ledgers shared by the benchmarks: a fixed set of categories,
+// amounts between 1.00 and 500.00 and dates spread over three years.
+final class BenchmarkLedgers {
+    static final String[] CATEGORIES = {
+            "Groceries", "Rent", "Utilities", "Transport", "Dining", "Coffee", "Books",
+            "Health", "Insurance", "Gym", "Travel", "Gifts", "Clothing", "Phone",
+            "Internet", "Streaming", "Pets", "Garden", "Repairs", "Charity"};
+    static final int FIRST_DAY = (int) LocalDate.of(2022, 1, 1).toEpochDay();
+    static final int DAYS = 3 * 365;
+
+    private BenchmarkLedgers() {
+    }
+
+    static ExpenseTracker.ExpenseStore store(int rows) {
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        ExpenseTracker.CategoryDictionary categories = store.categories();
+        int[] ids = new int[CATEGORIES.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = categories.intern(CATEGORIES[i]);
+        }
+        for (int i = 0; i < rows; i++) {
+            store.append(ids[i % ids.length], centsOf(i), dayOf(i));
+        }
+        return store;
+    }
+
+    static ExpenseTracker.Expense expense(int i) {
+        return new ExpenseTracker.Expense(CATEGORIES[i % CATEGORIES.length], centsOf(i),
+                LocalDate.ofEpochDay(dayOf(i)).toString());
+    }
+
+    static long centsOf(int i) {
+        return 100 + (i * 7919L) % 49_900;
+    }
+
+    static int dayOf(int i) {
+        return FIRST_DAY + (int) ((i * 104_729L) % DAYS);
+    }
+
+    // An opened, empty journal in a fresh directory, ready to take appends.
+    static ExpenseTracker.ExpenseJournal journal(File dir) throws IOException {
+        ExpenseTracker.ExpenseJournal journal = new ExpenseTracker.ExpenseJournal(
+                new File(dir, "expense_data.ledger").getPath(),
+                new File(dir, "expense_data.ser").getPath(),
+                new File(dir, "expense_data.journal").getPath());
+        journal.load();
+        return journal;
+    }
+
+    static ExpenseTracker.LedgerEngine engine(File dir, int rows) throws IOException {
+        ExpenseTracker.ExpenseJournal journal = journal(dir);
+        ExpenseTracker.ExpenseJournal.LedgerState state = new ExpenseTracker.ExpenseJournal.LedgerState();
+        state.expenses = store(rows);
+        return new ExpenseTracker.LedgerEngine(journal, state, Throwable::printStackTrace);
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(File dir) throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// A full export of a ledger of the given size to CSV and to JSON, and one of
+// a single month of it. Time should grow with the rows written and nothing
+// else; the heap used does not grow at all.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class ExportBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    private File dir;
+    private ExpenseTracker.LedgerEngine engine;
+    private ExpenseTracker.LedgerFilter oneMonth;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkLedgers.tempDir("expense-export");
+        engine = BenchmarkLedgers.engine(dir, rows);
+        oneMonth = ExpenseTracker.LedgerFilter.ALL.withDays(BenchmarkLedgers.FIRST_DAY,
+                BenchmarkLedgers.FIRST_DAY + 30);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        engine.close();
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public long exportCsv() throws IOException {
+        return export(ExpenseTracker.LedgerExporter.CSV, ExpenseTracker.LedgerFilter.ALL, "ledger.csv");
+    }
+
+    @Benchmark
+    public long exportJson() throws IOException {
+        return export(ExpenseTracker.LedgerExporter.JSON, ExpenseTracker.LedgerFilter.ALL, "ledger.json");
+    }
+
+    @Benchmark
+    public long exportOneMonthCsv() throws IOException {
+        return export(ExpenseTracker.LedgerExporter.CSV, oneMonth, "month.csv");
+    }
+
+    private long export(int format, ExpenseTracker.LedgerFilter filter, String name) throws IOException {
+        ExpenseTracker.LedgerExporter exporter = new ExpenseTracker.LedgerExporter(format, filter);
+        exporter.run(engine, new File(dir, name), progress -> { }, () -> false);
+        return exporter.rowsExported();
+    }
+}
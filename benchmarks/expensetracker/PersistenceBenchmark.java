@@ -0,0 +1,95 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// saveData/loadData: a full snapshot write, a cold load of that snapshot
+// (header, dictionary and rollup only), a load that also decodes every row,
+// and the per-change cost of one durable journal append.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class PersistenceBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    private File dir;
+    private ExpenseTracker.ExpenseStore store;
+    private ExpenseTracker.ExpenseJournal saveJournal;
+    private ExpenseTracker.ExpenseJournal loadJournal;
+    private ExpenseTracker.ExpenseJournal appendJournal;
+    private ExpenseTracker.Expense expense;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkLedgers.tempDir("expense-persistence");
+        store = BenchmarkLedgers.store(rows);
+        File saveDir = new File(dir, "save");
+        File loadDir = new File(dir, "load");
+        File appendDir = new File(dir, "append");
+        saveDir.mkdirs();
+        loadDir.mkdirs();
+        appendDir.mkdirs();
+        saveJournal = BenchmarkLedgers.journal(saveDir);
+        loadJournal = BenchmarkLedgers.journal(loadDir);
+        loadJournal.compact(store, 100_000, Collections.emptyList());
+        loadJournal.close();
+        appendJournal = BenchmarkLedgers.journal(appendDir);
+        expense = BenchmarkLedgers.expense(rows);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        saveJournal.close();
+        appendJournal.close();
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        saveJournal.compact(store, 100_000, Collections.emptyList());
+    }
+
+    @Benchmark
+    public Object load() throws IOException {
+        ExpenseTracker.ExpenseJournal.LedgerState state = loadJournal.load();
+        loadJournal.close();
+        return state;
+    }
+
+    @Benchmark
+    public long loadAndScan(Blackhole blackhole) throws IOException {
+        ExpenseTracker.ExpenseJournal.LedgerState state = loadJournal.load();
+        loadJournal.close();
+        long[] sum = new long[1];
+        state.expenses.forEach((categoryId, amountCents, epochDay) -> sum[0] += amountCents);
+        blackhole.consume(state);
+        return sum[0];
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void appendAndFlush() throws IOException {
+        appendJournal.appendAdd(expense);
+        appendJournal.flush();
+    }
+}
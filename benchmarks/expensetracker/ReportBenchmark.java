@@ -0,0 +1,51 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// LedgerReport over the whole ledger and over its last year, plus drawing
+// the pie chart, which the UI does on a SwingWorker.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Djava.awt.headless=true"})
+public class ReportBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    int rows;
+
+    private ExpenseTracker.ExpenseStore store;
+
+    @Setup
+    public void setUp() {
+        store = BenchmarkLedgers.store(rows);
+    }
+
+    @Benchmark
+    public Object allTime() {
+        return ExpenseTracker.LedgerReport.of(store, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public Object lastYear() {
+        int lastDay = BenchmarkLedgers.FIRST_DAY + BenchmarkLedgers.DAYS - 1;
+        return ExpenseTracker.LedgerReport.of(store, lastDay - 364, lastDay);
+    }
+
+    @Benchmark
+    public Object pieChart() {
+        return ExpenseTracker.LedgerReport.of(store, Integer.MIN_VALUE, Integer.MAX_VALUE).pieChart(640, 360);
+    }
+}
@@ -0,0 +1,61 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// categorySpending: the incremental rollup update done per change, the
+// per-category totals read by the UI, and a full rebuild from the rows
+// (what the old per-change recalculation cost).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class RollupBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    private ExpenseTracker.ExpenseStore store;
+    private ExpenseTracker.RollupCube rollup;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        store = BenchmarkLedgers.store(rows);
+        rollup = store.rollup();
+    }
+
+    @Benchmark
+    public long addAndRemove() {
+        int i = next++;
+        int categoryId = i % BenchmarkLedgers.CATEGORIES.length;
+        long cents = BenchmarkLedgers.centsOf(i);
+        int day = BenchmarkLedgers.dayOf(i);
+        rollup.add(categoryId, cents, day);
+        rollup.remove(categoryId, cents, day);
+        return rollup.totalCents();
+    }
+
+    @Benchmark
+    public long[] categoryTotals() {
+        return rollup.categoryTotals();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ExpenseTracker.RollupCube rebuild() {
+        return ExpenseTracker.RollupCube.of(store);
+    }
+}
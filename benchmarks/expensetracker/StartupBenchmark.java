@@ -0,0 +1,75 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// Time to interactive: opening a snapshot with a journal tail of adds, edits
+// and scattered deletes, then reading the totals, the budget statuses and the
+// newest page of the table. Should be flat across ledger sizes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class StartupBenchmark {
+    private static final int PAGE = 40;
+    private static final int TAIL = 200;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    private File dir;
+    private ExpenseTracker.ExpenseJournal journal;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        dir = BenchmarkLedgers.tempDir("expense-startup");
+        journal = BenchmarkLedgers.journal(dir);
+        journal.compact(BenchmarkLedgers.store(rows), 100_000, Collections.emptyList());
+        journal.close();
+        ExpenseTracker.LedgerEngine engine = new ExpenseTracker.LedgerEngine(journal, journal.load(),
+                Throwable::printStackTrace);
+        for (int i = 0; i < TAIL; i++) {
+            engine.add(BenchmarkLedgers.expense(rows + i));
+            engine.edit(i * (rows / TAIL), BenchmarkLedgers.expense(i));
+            engine.delete((i * 7919) % (engine.size() - 1));
+        }
+        engine.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public void openToFirstPage(Blackhole blackhole) throws IOException, InterruptedException {
+        ExpenseTracker.LedgerEngine engine = ExpenseTracker.LedgerEngine.open(journal, Throwable::printStackTrace);
+        blackhole.consume(engine.totalCents());
+        blackhole.consume(engine.budgetStatuses());
+        int size = engine.size();
+        for (int position = Math.max(0, size - PAGE); position < size; position++) {
+            for (int column = 0; column < 3; column++) {
+                blackhole.consume(engine.cellAt(position, column));
+            }
+        }
+        engine.close();
+    }
+}
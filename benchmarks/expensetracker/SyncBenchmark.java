@@ -0,0 +1,76 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// One round trip of delta sync between two devices that already share a
+// ledger of the given size: ten adds and ten edits on one side, pushed to the
+// shared directory and pulled by the other. Should not grow with the ledger.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class SyncBenchmark {
+    private static final int CHANGES = 10;
+
+    @Param({"1000", "100000", "1000000"})
+    int rows;
+
+    private File dir;
+    private File shared;
+    private ExpenseTracker.LedgerEngine laptop;
+    private ExpenseTracker.LedgerEngine phone;
+    private ExpenseTracker.LedgerSync laptopSync;
+    private ExpenseTracker.LedgerSync phoneSync;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkLedgers.tempDir("expense-sync");
+        shared = new File(dir, "shared");
+        File laptopDir = new File(dir, "laptop");
+        File phoneDir = new File(dir, "phone");
+        shared.mkdirs();
+        laptopDir.mkdirs();
+        phoneDir.mkdirs();
+        laptop = BenchmarkLedgers.engine(laptopDir, rows);
+        phone = BenchmarkLedgers.engine(phoneDir, 0);
+        laptopSync = ExpenseTracker.LedgerSync.open(laptopDir, laptop);
+        phoneSync = ExpenseTracker.LedgerSync.open(phoneDir, phone);
+        laptopSync.syncWith(shared);
+        phoneSync.syncWith(shared);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        laptop.close();
+        phone.close();
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public ExpenseTracker.LedgerSync.Report roundTrip() throws IOException {
+        for (int i = 0; i < CHANGES; i++) {
+            laptop.add(BenchmarkLedgers.expense(next++));
+            laptop.edit((next * 7919) % laptop.size(), BenchmarkLedgers.expense(next));
+        }
+        laptopSync.syncWith(shared);
+        return phoneSync.syncWith(shared);
+    }
+}
@@ -0,0 +1,105 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// refreshExpenseTable: rebinding the table model to the ledger and painting
+// one screen of rows, at the top, at the bottom and for a 90-day window,
+// plus type-ahead category search and column sorts.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class TableRefreshBenchmark {
+    private static final int VISIBLE_ROWS = 40;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    private File dir;
+    private ExpenseTracker.LedgerEngine engine;
+    private ExpenseTracker.ExpenseTableModel model;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkLedgers.tempDir("expense-table");
+        engine = BenchmarkLedgers.engine(dir, rows);
+        model = new ExpenseTracker.ExpenseTableModel();
+        model.setEngine(engine);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        engine.close();
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public void refreshTop(Blackhole blackhole) {
+        model.setEngine(engine);
+        paint(0, blackhole);
+    }
+
+    @Benchmark
+    public void refreshBottom(Blackhole blackhole) {
+        model.setEngine(engine);
+        paint(Math.max(0, model.getRowCount() - VISIBLE_ROWS), blackhole);
+    }
+
+    @Benchmark
+    public void showLast90Days(Blackhole blackhole) {
+        int lastDay = BenchmarkLedgers.FIRST_DAY + BenchmarkLedgers.DAYS - 1;
+        model.showWindow(lastDay - 89, lastDay);
+        paint(0, blackhole);
+        model.showAll();
+    }
+
+    // One keystroke at a time, as the search field delivers them.
+    @Benchmark
+    public void typeAhead(Blackhole blackhole) {
+        String query = "Groceries";
+        for (int i = 1; i <= query.length(); i++) {
+            model.setFilter(model.getFilter().withCategoryPrefix(query.substring(0, i)));
+            paint(0, blackhole);
+        }
+        model.setFilter(model.getFilter().withCategoryPrefix(""));
+    }
+
+    @Benchmark
+    public void sortByAmount(Blackhole blackhole) {
+        model.sortBy(1);
+        paint(0, blackhole);
+    }
+
+    @Benchmark
+    public void sortByDate(Blackhole blackhole) {
+        model.sortBy(2);
+        paint(0, blackhole);
+    }
+
+    private void paint(int firstRow, Blackhole blackhole) {
+        int end = Math.min(model.getRowCount(), firstRow + VISIBLE_ROWS);
+        for (int row = firstRow; row < end; row++) {
+            for (int column = 0; column < model.getColumnCount(); column++) {
+                blackhole.consume(model.getValueAt(row, column));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// A ledger whose history of the given size is all in closed months and sealed
+// into cold segments, reopened, with this month's rows added on top: the
+// snapshot the engine takes and a report on this month. Both should follow
+// the recent rows, not the size of the history.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class TieringBenchmark {
+    private static final int RECENT = 1000;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    private File dir;
+    private ExpenseTracker.ExpenseJournal journal;
+    private ExpenseTracker.ExpenseStore store;
+    private int monthStart;
+    private int today;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkLedgers.tempDir("expense-tiering");
+        journal = BenchmarkLedgers.journal(dir);
+        monthStart = (int) LocalDate.now().withDayOfMonth(1).toEpochDay();
+        today = (int) LocalDate.now().toEpochDay();
+        ExpenseTracker.ExpenseStore history = BenchmarkLedgers.store(rows);
+        history.seal(monthStart);
+        journal.compact(history, 100_000, Collections.emptyList());
+        journal.close();
+        store = journal.load().expenses;
+        ExpenseTracker.CategoryDictionary categories = store.categories();
+        for (int i = 0; i < RECENT; i++) {
+            store.append(categories.intern(BenchmarkLedgers.CATEGORIES[i % BenchmarkLedgers.CATEGORIES.length]),
+                    BenchmarkLedgers.centsOf(i), monthStart + i % (today - monthStart + 1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public void snapshot() throws IOException {
+        journal.compact(store.copy(), 100_000, Collections.emptyList());
+    }
+
+    @Benchmark
+    public ExpenseTracker.LedgerReport reportThisMonth() {
+        return ExpenseTracker.LedgerReport.of(store, monthStart, today);
+    }
+}
@@ -0,0 +1,62 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// The undo/redo paths through the engine, including the journal records and
+// the periodic snapshots that they trigger. undoRedoDelete restores and
+// re-removes a row in the middle of the ledger.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class UndoBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    private File dir;
+    private ExpenseTracker.LedgerEngine engine;
+    private ExpenseTracker.Expense expense;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkLedgers.tempDir("expense-undo");
+        engine = BenchmarkLedgers.engine(dir, rows);
+        expense = BenchmarkLedgers.expense(rows);
+        engine.delete(rows / 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        engine.close();
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public Object addThenUndo() {
+        engine.add(expense);
+        return engine.undo();
+    }
+
+    @Benchmark
+    public Object undoRedoDelete() {
+        engine.undo();
+        return engine.redo();
+    }
+}
@@ -0,0 +1,74 @@
+package expensetracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// authenticateUser/registerUser against a user store of the given size,
+// plus the cost of reading the whole user log at startup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class UserManagerBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int users;
+
+    private File dir;
+    private File logFile;
+    private ExpenseTracker.UserManager userManager;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkLedgers.tempDir("expense-users");
+        logFile = new File(dir, "users.log");
+        userManager = new ExpenseTracker.UserManager(logFile, new File(dir, "users.ser"));
+        for (int i = 0; i < users; i++) {
+            userManager.registerUser("user" + i, "password" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkLedgers.delete(dir);
+    }
+
+    @Benchmark
+    public boolean authenticate() {
+        int i = next++ % users;
+        return userManager.authenticateUser("user" + i, "password" + i);
+    }
+
+    @Benchmark
+    public boolean authenticateUnknown() {
+        return userManager.authenticateUser("nobody" + next++, "password");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean register() throws IOException {
+        return userManager.registerUser("new" + next++, "password");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ExpenseTracker.UserManager loadUserLog() {
+        return new ExpenseTracker.UserManager(logFile, new File(dir, "users.ser"));
+    }
+}
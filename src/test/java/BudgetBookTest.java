@@ -0,0 +1,172 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BudgetBookTest {
+    private static final byte MONTHLY = ExpenseTracker.BudgetBook.MONTHLY;
+    private static final byte YEARLY = ExpenseTracker.BudgetBook.YEARLY;
+    private static final byte TOTAL = ExpenseTracker.BudgetBook.TOTAL;
+
+    @TempDir
+    File dir;
+
+    private final int[] today = {day("2024-02-15")};
+
+    private static int day(String date) {
+        return ExpenseTracker.ExpenseStore.parseDay(date);
+    }
+
+    private static ExpenseTracker.BudgetBook.Budget budget(String category, byte period, long limitCents) {
+        return new ExpenseTracker.BudgetBook.Budget(category, period, limitCents);
+    }
+
+    private static ExpenseTracker.ExpenseStore sample() {
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        store.add(TestLedgers.expense("Food", 1000, "2023-12-20"));
+        store.add(TestLedgers.expense("Food", 2000, "2024-01-10"));
+        store.add(TestLedgers.expense("Food", 4000, "2024-02-01"));
+        store.add(TestLedgers.expense("Rent", 90000, "2024-02-01"));
+        store.add(TestLedgers.expense("Food", 500, ""));
+        return store;
+    }
+
+    @Test
+    void eachBudgetCountsItsOwnPeriod() {
+        ExpenseTracker.ExpenseStore store = sample();
+        ExpenseTracker.BudgetBook book = new ExpenseTracker.BudgetBook(() -> today[0]);
+        assertEquals(4000, book.set(budget("Food", MONTHLY, 10000), store).spentCents);
+        assertEquals(6000, book.set(budget("Food", YEARLY, 10000), store).spentCents);
+        assertEquals(7500, book.set(budget("Food", TOTAL, 10000), store).spentCents);
+        assertEquals(94000, book.set(budget(null, MONTHLY, 100000), store).spentCents);
+        assertEquals(0, book.set(budget("Travel", MONTHLY, 10000), store).spentCents);
+        assertEquals(5, book.statuses().size());
+
+        // setting the same category and period again replaces the budget, and a
+        // zero limit removes it
+        assertEquals(ExpenseTracker.BudgetBook.OVER, book.set(budget("Food", TOTAL, 5000), store).state);
+        book.set(budget("Travel", MONTHLY, 0), store);
+        assertEquals(4, book.statuses().size());
+        assertEquals(4, book.categoryBudgets().size());
+    }
+
+    @Test
+    void crossingsAreReportedOnceEach() {
+        ExpenseTracker.ExpenseStore store = sample();
+        ExpenseTracker.BudgetBook book = new ExpenseTracker.BudgetBook(() -> today[0]);
+        assertEquals(ExpenseTracker.BudgetBook.WITHIN, book.set(budget("Food", MONTHLY, 10000), store).state);
+        int food = store.categories().lookup("Food");
+        List<ExpenseTracker.BudgetBook.Status> crossings = new ArrayList<>();
+
+        book.apply(food, day("2024-02-03"), 4000, crossings);
+        assertEquals(0, crossings.size());
+        book.apply(food, day("2024-02-04"), 1500, crossings);
+        book.apply(food, day("2024-02-05"), 100, crossings);
+        assertEquals(1, crossings.size());
+        assertEquals(ExpenseTracker.BudgetBook.NEAR, crossings.get(0).state);
+        assertEquals(500, crossings.get(0).remainingCents());
+
+        // last month's spending and other categories leave it alone
+        book.apply(food, day("2024-01-31"), 5000, crossings);
+        book.apply(store.categories().lookup("Rent"), day("2024-02-05"), 5000, crossings);
+        assertEquals(1, crossings.size());
+
+        book.apply(food, day("2024-02-06"), 500, crossings);
+        assertEquals(ExpenseTracker.BudgetBook.OVER, crossings.get(1).state);
+        book.apply(food, day("2024-02-06"), -5000, crossings);
+        assertEquals(ExpenseTracker.BudgetBook.WITHIN, crossings.get(2).state);
+        assertEquals(3, crossings.size());
+    }
+
+    @Test
+    void periodsRollWithTheCalendar() {
+        ExpenseTracker.ExpenseStore store = sample();
+        ExpenseTracker.BudgetBook book = new ExpenseTracker.BudgetBook(() -> today[0]);
+        book.set(budget("Food", MONTHLY, 4400), store);
+        book.set(budget("Food", YEARLY, 100000), store);
+        book.set(budget("Food", TOTAL, 100000), store);
+        List<ExpenseTracker.BudgetBook.Status> crossings = new ArrayList<>();
+
+        book.roll(store.rollup(), crossings);
+        assertEquals(0, crossings.size());
+
+        today[0] = day("2024-03-01");
+        book.roll(store.rollup(), crossings);
+        List<ExpenseTracker.BudgetBook.Status> statuses = book.statuses();
+        assertEquals(0, statuses.get(0).spentCents);
+        assertEquals(6000, statuses.get(1).spentCents);
+        assertEquals(7500, statuses.get(2).spentCents);
+        // the monthly one was near its limit in February
+        assertEquals(1, crossings.size());
+
+        today[0] = day("2025-01-02");
+        book.roll(store.rollup(), crossings);
+        assertEquals(0, book.statuses().get(1).spentCents);
+    }
+
+    @Test
+    void invalidBudgetsAreRefused() {
+        assertThrows(IllegalArgumentException.class, () -> budget("Food", (byte) 9, 100));
+        assertThrows(IllegalArgumentException.class, () -> budget("Food", MONTHLY, -1));
+    }
+
+    @Test
+    void categoryBudgetDoesNotInternItsCategory() throws Exception {
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        try {
+            String now = LocalDate.now().toString();
+            engine.setCategoryBudget("Travel", MONTHLY, 10000);
+            assertTrue(engine.read(store -> store.categories().lookup("Travel")) < 0);
+
+            engine.add(TestLedgers.expense("Travel", 4300, now));
+            engine.add(TestLedgers.expense("Travel", 2000, now));
+            List<ExpenseTracker.BudgetBook.Status> statuses = engine.budgetStatuses();
+            assertEquals(1, statuses.size());
+            assertEquals(6300, statuses.get(0).spentCents);
+            assertEquals(3700, statuses.get(0).remainingCents());
+        } finally {
+            engine.close();
+        }
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void budgetsOutliveARestart() throws Exception {
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        String now = LocalDate.now().toString();
+        engine.add(TestLedgers.expense("Food", 1250, now));
+        engine.setCategoryBudget("Food", MONTHLY, 5000);
+        engine.setCategoryBudget(" ", YEARLY, 200000);
+        // the all-time budget on everything is the overall one, and undoable
+        engine.setCategoryBudget(null, TOTAL, 7500);
+        assertEquals(7500, engine.budgetCents());
+        assertEquals("budget 75.00", engine.undo());
+        assertEquals(0, engine.budgetCents());
+        engine.awaitDurable();
+        engine.close();
+
+        engine = TestLedgers.open(dir, errors);
+        try {
+            List<ExpenseTracker.BudgetBook.Status> statuses = engine.budgetStatuses();
+            assertEquals(2, statuses.size());
+            assertEquals("Food (monthly)", statuses.get(0).budget.describe());
+            assertEquals(1250, statuses.get(0).spentCents);
+            assertEquals("All categories (yearly)", statuses.get(1).budget.describe());
+            assertEquals(1250, statuses.get(1).spentCents);
+        } finally {
+            engine.close();
+        }
+        assertEquals(List.of(), errors);
+    }
+}
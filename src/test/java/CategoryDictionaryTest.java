@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+class CategoryDictionaryTest {
+    @Test
+    void namesGetStableIds() {
+        ExpenseTracker.CategoryDictionary categories = new ExpenseTracker.CategoryDictionary();
+        assertEquals(0, categories.intern("Food"));
+        assertEquals(1, categories.intern("Rent"));
+        assertEquals(0, categories.intern("Food"));
+        assertEquals(2, categories.intern("food"));
+        assertEquals(3, categories.size());
+        assertEquals("food", categories.name(2));
+        assertEquals(1, categories.lookup("Rent"));
+        assertEquals(-1, categories.lookup("Fuel"));
+
+        ExpenseTracker.CategoryDictionary copy = categories.copy();
+        categories.intern("Fuel");
+        assertEquals(3, copy.size());
+        assertEquals(2, copy.lookup("food"));
+    }
+
+    @Test
+    void prefixesAndRanksIgnoreCase() {
+        ExpenseTracker.CategoryDictionary categories = new ExpenseTracker.CategoryDictionary();
+        for (String name : new String[] {"Rent", "food", "Fuel", "Food", "Books", "FOOD court"}) {
+            categories.intern(name);
+        }
+        assertArrayEquals(new int[] {3, 1, 5}, categories.idsWithPrefix("FOO"));
+        assertArrayEquals(new int[] {3, 1, 5, 2}, categories.idsWithPrefix("f"));
+        assertArrayEquals(new int[0], categories.idsWithPrefix("x"));
+        // Books, Food, food, FOOD court, Fuel, Rent
+        assertArrayEquals(new int[] {5, 2, 4, 1, 0, 3}, categories.ranks());
+
+        categories.intern("Apples");
+        assertEquals(0, categories.ranks()[6]);
+        assertEquals(7, categories.idsWithPrefix("").length);
+    }
+
+    @Test
+    void readersSeeEveryNameTheyGetAnIdFor() throws Exception {
+        ExpenseTracker.CategoryDictionary categories = new ExpenseTracker.CategoryDictionary();
+        int count = 20_000;
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        int size = categories.size();
+                        if (size > 0) {
+                            String name = categories.name(size - 1);
+                            assertEquals(size - 1, categories.lookup(name));
+                        }
+                        for (int id : categories.idsWithPrefix("category 1")) {
+                            assertTrue(categories.name(id).startsWith("Category 1"));
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 0; i < count; i++) {
+            categories.intern("Category " + i);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(List.of(), failures);
+        assertEquals(count, categories.size());
+    }
+}
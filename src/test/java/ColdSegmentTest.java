@@ -0,0 +1,167 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ColdSegmentTest {
+    private static final int CHUNK = ExpenseTracker.ExpenseStore.CHUNK_SIZE;
+    private static final int FIRST_DAY = day("2023-01-01");
+
+    @TempDir
+    File dir;
+
+    private static int day(String date) {
+        return ExpenseTracker.ExpenseStore.parseDay(date);
+    }
+
+    // Five whole chunks of 2023, a few hundred rows a day, then a part chunk of June 2024.
+    private static ExpenseTracker.ExpenseStore history() {
+        String[] categories = {"Food", "Fuel", "Rent", "Travel", "Books"};
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        for (int i = 0; i < 5 * CHUNK; i++) {
+            store.add(TestLedgers.expense(categories[i % categories.length], 1 + i % 997,
+                    i % 300 == 0 ? "" : ExpenseTracker.ExpenseStore.formatDay(FIRST_DAY + i / 200)));
+        }
+        for (int i = 0; i < 100; i++) {
+            store.add(TestLedgers.expense("Food", 100 + i, "2024-06-01"));
+        }
+        return store;
+    }
+
+    private static List<String> rows(ExpenseTracker.ExpenseStore store) {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            rows.add(TestLedgers.describe(store.get(i)));
+        }
+        return rows;
+    }
+
+    // Writes store as the ledger's snapshot, with its unwritten segments.
+    private void save(ExpenseTracker.ExpenseStore store) throws IOException {
+        ExpenseTracker.ExpenseJournal journal = TestLedgers.journal(dir);
+        journal.load();
+        journal.compact(store, 0, List.of());
+        journal.close();
+    }
+
+    private ExpenseTracker.ExpenseStore reload() throws IOException {
+        ExpenseTracker.ExpenseJournal journal = TestLedgers.journal(dir);
+        try {
+            return journal.load().expenses;
+        } finally {
+            journal.close();
+        }
+    }
+
+    private File segmentFile(ExpenseTracker.ExpenseStore store) {
+        return new File(dir, store.segments().get(0).name);
+    }
+
+    @Test
+    void onlyRunsOfWholeClosedChunksAreSealed() {
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        for (int i = 0; i < 6 * CHUNK; i++) {
+            String date = i == 4 * CHUNK + 7 ? "2024-02-01" : i == 3 ? "" : "2023-06-01";
+            store.add(TestLedgers.expense("Food", 100, date));
+        }
+        assertFalse(store.seal(day("2023-06-01")));
+        assertEquals(0, store.coldRows());
+
+        // the undated row does not hold its chunk back; the February one does
+        assertTrue(store.seal(day("2024-01-01")));
+        assertEquals(4 * CHUNK, store.coldRows());
+        assertEquals(1, store.segments().size());
+        assertFalse(store.segments().get(0).isWritten());
+        assertFalse(store.seal(day("2024-01-01")));
+
+        // what remains is too short a run for a segment of its own
+        assertFalse(store.seal(day("2025-01-01")));
+        assertEquals(4 * CHUNK, store.coldRows());
+    }
+
+    @Test
+    void sealedRowsOutliveAReopen() throws Exception {
+        ExpenseTracker.ExpenseStore store = history();
+        List<String> expected = rows(store);
+        assertTrue(store.seal(day("2024-01-01")));
+        save(store);
+        assertTrue(store.segments().get(0).isWritten());
+        assertTrue(segmentFile(store).exists());
+
+        ExpenseTracker.ExpenseStore loaded = reload();
+        assertEquals(5 * CHUNK, loaded.coldRows());
+        assertEquals(store.segments().get(0).name, loaded.segments().get(0).name);
+        assertEquals(expected, rows(loaded));
+        assertEquals(store.totalCents(), loaded.totalCents());
+        assertTrue(loaded.verifyRollup());
+
+        // blocks with no day in the window are passed over without inflating them
+        int june = day("2024-06-01");
+        assertEquals(5 * CHUNK, loaded.nextRowToScan(0, june, june));
+        assertEquals(2 * CHUNK, loaded.nextRowToScan(0, FIRST_DAY + 41, FIRST_DAY + 41));
+        assertEquals(2 * CHUNK + 5, loaded.nextRowToScan(2 * CHUNK + 5, FIRST_DAY + 41, FIRST_DAY + 41));
+        assertEquals(5 * CHUNK, loaded.nextRowToScan(CHUNK + 5, FIRST_DAY, FIRST_DAY));
+    }
+
+    @Test
+    void changedColdRowsAreSavedWithoutRewritingTheSegment() throws Exception {
+        ExpenseTracker.ExpenseStore store = history();
+        store.seal(day("2024-01-01"));
+        save(store);
+        long written = segmentFile(store).lastModified();
+        long length = segmentFile(store).length();
+
+        ExpenseTracker.ExpenseStore loaded = reload();
+        loaded.set(10, TestLedgers.expense("Groceries", 4321, "2023-01-01"));
+        loaded.remove(3 * CHUNK + 17);
+        loaded.remove(0);
+        List<String> expected = rows(loaded);
+        save(loaded);
+
+        ExpenseTracker.ExpenseStore again = reload();
+        assertEquals(expected, rows(again));
+        assertEquals("Groceries 4321 2023-01-01", TestLedgers.describe(again.get(9)));
+        assertEquals(loaded.totalCents(), again.totalCents());
+        assertTrue(again.verifyRollup());
+        assertEquals(1, again.segments().size());
+        assertEquals(written, segmentFile(again).lastModified());
+        assertEquals(length, segmentFile(again).length());
+    }
+
+    @Test
+    void damagedSegmentsAreReported() throws Exception {
+        ExpenseTracker.ExpenseStore store = history();
+        store.seal(day("2024-01-01"));
+        save(store);
+        File segment = segmentFile(store);
+
+        // a flipped run of bytes in the second block, past the header and index
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(16);
+            raf.seek(raf.readLong() + raf.readInt() + 64);
+            for (int i = 0; i < 32; i++) {
+                raf.writeByte(0x5A);
+            }
+        }
+        ExpenseTracker.ExpenseStore loaded = reload();
+        assertEquals(TestLedgers.describe(store.get(0)), TestLedgers.describe(loaded.get(0)));
+        assertThrows(UncheckedIOException.class, () -> loaded.get(CHUNK + 1));
+
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(4);
+            raf.writeInt(ExpenseTracker.ColdSegment.VERSION + 1);
+        }
+        IOException error = assertThrows(IOException.class, this::reload);
+        assertTrue(error.getMessage().startsWith("Unsupported cold segment version"), error.getMessage());
+    }
+}
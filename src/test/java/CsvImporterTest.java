@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CsvImporterTest {
+    @TempDir
+    File dir;
+
+    private ExpenseTracker.CsvImporter importer;
+
+    // Imported rows as "category cents date".
+    private List<String> load(String csv) throws Exception {
+        File file = new File(dir, "statement.csv");
+        Files.write(file.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+        importer = new ExpenseTracker.CsvImporter();
+        List<String> rows = new ArrayList<>();
+        importer.run(file, batch -> {
+            for (int i = 0; i < batch.size; i++) {
+                rows.add(batch.categories[i] + " " + batch.cents[i] + " "
+                        + ExpenseTracker.ExpenseStore.formatDay(batch.days[i]));
+            }
+        }, () -> false);
+        return rows;
+    }
+
+    @Test
+    void headerLocatesTheColumns() throws Exception {
+        List<String> rows = load("Date,Memo,Debit,Payee\r\n"
+                + "2024-03-01,lunch,12.50,Food\r\n"
+                + "\"2024-03-02\",\"rent, march\",\"1,200.005\",\"Rent \"\"flat\"\"\"\r\n"
+                + "\r\n"
+                + "2024-03-03,,7,Fuel");
+        assertEquals(List.of("Food 1250 2024-03-01", "Rent \"flat\" 120001 2024-03-02", "Fuel 700 2024-03-03"),
+                rows);
+        assertEquals(3, importer.rowsImported());
+        assertEquals(0, importer.rowsRejected());
+    }
+
+    @Test
+    void withoutAHeaderTheColumnsAreCategoryAmountDate() throws Exception {
+        assertEquals(List.of("Food 1250 2024-03-01", "Rent 90000 2024-03-02"),
+                load("Food,12.50,2024-03-01\nRent,900,2024-03-02\n"));
+    }
+
+    @Test
+    void malformedFirstRowIsRejectedNotSkipped() throws Exception {
+        List<String> rows = load("Food,twelve,2024-03-01\nRent,900,2024-03-02\n");
+        assertEquals(List.of("Rent 90000 2024-03-02"), rows);
+        assertEquals(1, importer.rowsRejected());
+        assertEquals(List.of("Line 1: Food,twelve,2024-03-01"), importer.errors());
+    }
+
+    @Test
+    void invalidRowsAreCountedAndTheFirstFewReported() throws Exception {
+        StringBuilder csv = new StringBuilder("category,amount,date\n");
+        for (int i = 0; i < 30; i++) {
+            csv.append("Food,-5,2024-03-01\n").append("Food,5,2024-02-30\n").append("Books,3.99,2024-03-04\n");
+        }
+        csv.append(",5,2024-03-01\nFood,5\n");
+        List<String> rows = load(csv.toString());
+        assertEquals(30, rows.size());
+        assertEquals(62, importer.rowsRejected());
+        assertEquals(20, importer.errors().size());
+        assertEquals("Line 2: Food,-5,2024-03-01", importer.errors().get(0));
+    }
+
+    @Test
+    void rowsAcrossChunkBoundariesAreKept() throws Exception {
+        StringBuilder csv = new StringBuilder("Category,Amount,Date\n");
+        int count = 0;
+        long total = 0;
+        while (csv.length() < 3 * ExpenseTracker.CsvImporter.CHUNK_BYTES) {
+            csv.append("Category ").append(count).append(',').append(count % 997 + 1).append(".25,2024-01-15\n");
+            total += (count % 997 + 1) * 100 + 25;
+            count++;
+        }
+        List<String> rows = load(csv.toString());
+        assertEquals(count, rows.size());
+        assertEquals(0, importer.rowsRejected());
+        long imported = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            String[] parts = rows.get(i).split(" ");
+            assertEquals(String.valueOf(i), parts[1]);
+            imported += Long.parseLong(parts[2]);
+        }
+        assertEquals(total, imported);
+    }
+
+    @Test
+    void fieldsParseStraightFromBytes() {
+        assertEquals(123456, cents("1,234.56"));
+        assertEquals(-50, cents(" -0.5 "));
+        assertEquals(1000, cents("+10"));
+        assertEquals(100, cents("0.995"));
+        assertEquals(Long.MIN_VALUE, cents("12a"));
+        assertEquals(Long.MIN_VALUE, cents(""));
+        assertEquals(ExpenseTracker.ExpenseStore.parseDay("2024-02-29"), day(" \"2024-02-29\" "));
+        assertEquals(ExpenseTracker.ExpenseStore.NO_DATE, day("2023-02-29"));
+        assertEquals(ExpenseTracker.ExpenseStore.NO_DATE, day("2024/02/01"));
+        assertEquals(0, day("1970-01-01"));
+    }
+
+    private static long cents(String field) {
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        return ExpenseTracker.CsvImporter.parseCents(bytes, 0, bytes.length);
+    }
+
+    private static int day(String field) {
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        return ExpenseTracker.CsvImporter.parseDay(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class DateIndexTest {
+    private static final int NO_DATE = ExpenseTracker.ExpenseStore.NO_DATE;
+
+    private static int day(String date) {
+        return ExpenseTracker.ExpenseStore.parseDay(date);
+    }
+
+    // Live physical rows dated within [fromDay, toDay], by date then row.
+    private static int[] expectedBetween(ExpenseTracker.ExpenseStore store, int fromDay, int toDay) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            int day = store.epochDayAt(i);
+            if (day != NO_DATE && day >= fromDay && day <= toDay) {
+                rows.add(store.rowAt(i));
+            }
+        }
+        rows.sort(Comparator.comparingInt((Integer row) -> store.epochDayOfRow(row)).thenComparingInt(row -> row));
+        return rows.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Test
+    void rowsComeBackByDate() {
+        ExpenseTracker.DateIndex index = new ExpenseTracker.DateIndex();
+        index.add(day("2024-03-05"), 4);
+        index.add(day("2024-03-01"), 7);
+        index.add(day("2024-03-05"), 1);
+        index.add(NO_DATE, 2);
+        index.add(day("2024-04-01"), 3);
+
+        assertArrayEquals(new int[] {7, 1, 4}, index.rowsBetween(day("2024-03-01"), day("2024-03-31")).toArray());
+        assertArrayEquals(new int[] {1, 4}, index.rowsBetween(day("2024-03-05"), day("2024-03-05")).toArray());
+        assertEquals(0, index.rowsBetween(day("2024-03-06"), day("2024-03-01")).size());
+        assertArrayEquals(new int[] {2, 7, 1, 4, 3}, index.rowsInOrder(false, 5).toArray());
+        assertArrayEquals(new int[] {3, 1, 4, 7, 2}, index.rowsInOrder(true, 5).toArray());
+
+        index.remove(day("2024-03-05"), 1);
+        index.remove(day("2024-03-05"), 9);
+        assertArrayEquals(new int[] {7, 4}, index.rowsBetween(day("2024-03-01"), day("2024-03-31")).toArray());
+    }
+
+    @Test
+    void storeIndexMatchesAScan() {
+        ExpenseTracker.ExpenseStore store = TestLedgers.randomStore(7, 2 * ExpenseTracker.ExpenseStore.CHUNK_SIZE);
+        assertFalse(store.hasDateIndex());
+        int from = day("2023-06-01");
+        int to = day("2023-08-15");
+        assertArrayEquals(expectedBetween(store, from, to), store.dateIndex().rowsBetween(from, to).toArray());
+        assertTrue(store.hasDateIndex());
+
+        // kept up to date from here on
+        store.add(TestLedgers.expense("Food", 100, "2023-07-01"));
+        store.set(3, TestLedgers.expense("Rent", 90000, "2023-06-02"));
+        store.set(5, TestLedgers.expense("Rent", 90000, ""));
+        store.remove(10);
+        ExpenseTracker.Expense removed = store.remove(20);
+        store.insert(20, removed);
+        assertArrayEquals(expectedBetween(store, from, to), store.dateIndex().rowsBetween(from, to).toArray());
+        assertArrayEquals(expectedBetween(store, Integer.MIN_VALUE + 1, Integer.MAX_VALUE),
+                store.dateIndex().rowsBetween(Integer.MIN_VALUE + 1, Integer.MAX_VALUE).toArray());
+    }
+}
@@ -0,0 +1,137 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExpenseJournalTest {
+    @TempDir
+    File dir;
+
+    private final List<IOException> errors = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void noWriterErrors() {
+        assertEquals(List.of(), errors);
+    }
+
+    private File journalFile() {
+        return new File(dir, "expense_data.journal");
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - bytes);
+        }
+    }
+
+    private void write(ExpenseTracker.Expense... expenses) throws Exception {
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        for (ExpenseTracker.Expense expense : expenses) {
+            engine.add(expense);
+        }
+        engine.awaitDurable();
+        engine.close();
+    }
+
+    @Test
+    void replayStopsAtTornTail() throws Exception {
+        write(TestLedgers.expense("Food", 1250, "2024-03-01"),
+                TestLedgers.expense("Rent", 90000, "2024-03-02"),
+                TestLedgers.expense("Travel", 4300, "2024-03-03"));
+
+        // a crash part way through the last append
+        truncate(journalFile(), 3);
+
+        ExpenseTracker.ExpenseJournal.LedgerState state = TestLedgers.journal(dir).load();
+        assertEquals(2, state.expenses.size());
+        assertEquals("Food", state.expenses.get(0).getCategory());
+        assertEquals(90000, state.expenses.get(1).getAmountCents());
+    }
+
+    @Test
+    void appendAfterTornTailReplaysCleanly() throws Exception {
+        write(TestLedgers.expense("Food", 1250, "2024-03-01"),
+                TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        truncate(journalFile(), 5);
+
+        // the torn bytes have to go before anything is appended after them
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        assertEquals(1, engine.size());
+        engine.add(TestLedgers.expense("Books", 2999, "2024-03-04"));
+        engine.awaitDurable();
+        engine.close();
+
+        engine = TestLedgers.open(dir, errors);
+        try {
+            assertEquals(List.of("Food 1250 2024-03-01", "Books 2999 2024-03-04"), TestLedgers.rows(engine));
+            assertEquals(1250 + 2999, engine.totalCents());
+            assertTrue(engine.verifyRollup());
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    void replayRestoresEditsDeletesAndBudget() throws Exception {
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        engine.add(TestLedgers.expense("Travel", 4300, "2024-03-03"));
+        engine.edit(0, TestLedgers.expense("Groceries", 1500, "2024-03-01"));
+        engine.delete(1);
+        engine.setBudget(150000);
+        engine.awaitDurable();
+        engine.close();
+
+        ExpenseTracker.ExpenseJournal.LedgerState state = TestLedgers.journal(dir).load();
+        assertEquals(2, state.expenses.size());
+        assertEquals("Groceries", state.expenses.get(0).getCategory());
+        assertEquals(1500, state.expenses.get(0).getAmountCents());
+        assertEquals("Travel", state.expenses.get(1).getCategory());
+        assertEquals(150000, state.budgetCents);
+    }
+
+    @Test
+    void replayAfterCompactionKeepsEveryRow() throws Exception {
+        int rows = ExpenseTracker.ExpenseJournal.COMPACT_THRESHOLD * 3 / 2;
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        long total = 0;
+        for (int i = 0; i < rows; i++) {
+            engine.add(TestLedgers.expense("Cat" + i % 7, i + 1, "2024-03-01"));
+            total += i + 1;
+        }
+        engine.awaitDurable();
+        engine.close();
+
+        // the snapshot holds most rows; the journal only what came after it
+        assertTrue(journalFile().length() < rows * 20L);
+        engine = TestLedgers.open(dir, errors);
+        try {
+            assertEquals(rows, engine.size());
+            assertEquals(total, engine.totalCents());
+            assertEquals("Cat" + (rows - 1) % 7 + " " + rows + " 2024-03-01",
+                    TestLedgers.describe(engine.get(rows - 1)));
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    void unknownJournalFormatIsRejected() throws Exception {
+        write(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        try (FileOutputStream out = new FileOutputStream(journalFile())) {
+            out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        assertThrows(IOException.class, () -> TestLedgers.journal(dir).load());
+    }
+}
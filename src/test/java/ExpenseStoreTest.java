@@ -0,0 +1,147 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ExpenseStoreTest {
+    private static final int CHUNK = ExpenseTracker.ExpenseStore.CHUNK_SIZE;
+
+    private static ExpenseTracker.ExpenseStore storeOf(int rows) {
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        for (int i = 0; i < rows; i++) {
+            store.add(TestLedgers.expense("Cat" + i % 5, i + 1, "2024-01-01"));
+        }
+        return store;
+    }
+
+    private static List<Long> amounts(ExpenseTracker.ExpenseStore store) {
+        List<Long> amounts = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            amounts.add(store.get(i).getAmountCents());
+        }
+        return amounts;
+    }
+
+    @Test
+    void rowsSpanChunks() {
+        int rows = 2 * CHUNK + 10;
+        ExpenseTracker.ExpenseStore store = storeOf(rows);
+        assertEquals(rows, store.size());
+        assertEquals(rows, store.physicalRows());
+        for (int i : new int[] {0, CHUNK - 1, CHUNK, 2 * CHUNK, rows - 1}) {
+            ExpenseTracker.Expense expense = store.get(i);
+            assertEquals(i + 1, expense.getAmountCents());
+            assertEquals("Cat" + i % 5, expense.getCategory());
+            assertEquals("2024-01-01", expense.getDate());
+        }
+        assertEquals((long) rows * (rows + 1) / 2, store.totalCents());
+        assertTrue(store.verifyRollup());
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(rows));
+    }
+
+    @Test
+    void removingTheNewestRowFreesItsSlot() {
+        ExpenseTracker.ExpenseStore store = storeOf(10);
+        assertEquals(10, store.remove(9).getAmountCents());
+        assertEquals(9, store.size());
+        assertEquals(9, store.physicalRows());
+
+        store.add(TestLedgers.expense("Food", 100, "2024-01-02"));
+        assertEquals(10, store.physicalRows());
+        assertEquals(100, store.get(9).getAmountCents());
+    }
+
+    @Test
+    void removingMidLedgerLeavesADeadRow() {
+        ExpenseTracker.ExpenseStore store = storeOf(CHUNK + 5);
+        store.remove(3);
+        store.remove(CHUNK);
+        assertEquals(CHUNK + 3, store.size());
+        assertEquals(CHUNK + 5, store.physicalRows());
+
+        // live positions step around the dead rows in both directions
+        assertEquals(2, store.rowAt(2));
+        assertEquals(4, store.rowAt(3));
+        assertEquals(CHUNK + 2, store.rowAt(CHUNK));
+        assertEquals(-1, store.indexOfRow(3));
+        assertEquals(3, store.indexOfRow(4));
+        assertEquals(5, store.get(3).getAmountCents());
+        assertEquals(CHUNK + 3, store.get(CHUNK).getAmountCents());
+        assertTrue(store.verifyRollup());
+    }
+
+    @Test
+    void insertIntoADeadRowKeepsTheColumns() {
+        ExpenseTracker.ExpenseStore store = storeOf(20);
+        ExpenseTracker.Expense removed = store.remove(7);
+        store.insert(7, removed);
+
+        assertEquals(20, store.physicalRows());
+        assertEquals(0, store.rebuilds());
+        assertEquals(8, store.get(7).getAmountCents());
+        assertEquals(removed.getId(), store.get(7).getId());
+        assertEquals(7, store.positionOfId(removed.getId()));
+        assertTrue(store.verifyRollup());
+    }
+
+    @Test
+    void insertWithNoGapRebuildsDensely() {
+        ExpenseTracker.ExpenseStore store = storeOf(5);
+        store.insert(2, TestLedgers.expense("Food", 100, "2024-01-02"));
+
+        assertEquals(1, store.rebuilds());
+        assertEquals(6, store.physicalRows());
+        assertEquals(List.of(1L, 2L, 100L, 3L, 4L, 5L), amounts(store));
+        assertEquals(15 + 100, store.totalCents());
+        assertTrue(store.verifyRollup());
+    }
+
+    @Test
+    void insertAtTheEndAppends() {
+        ExpenseTracker.ExpenseStore store = storeOf(5);
+        store.insert(5, TestLedgers.expense("Food", 100, "2024-01-02"));
+        assertEquals(0, store.rebuilds());
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 100L), amounts(store));
+        assertThrows(IndexOutOfBoundsException.class,
+                () -> store.insert(7, TestLedgers.expense("Food", 1, "2024-01-02")));
+    }
+
+    @Test
+    void setReplacesEveryColumn() {
+        ExpenseTracker.ExpenseStore store = storeOf(CHUNK + 1);
+        long id = store.get(CHUNK).getId();
+        ExpenseTracker.Expense old = store.set(CHUNK, TestLedgers.expense("Rent", 90000, "2024-02-01"));
+
+        assertEquals(CHUNK + 1, old.getAmountCents());
+        ExpenseTracker.Expense now = store.get(CHUNK);
+        assertEquals("Rent 90000 2024-02-01", TestLedgers.describe(now));
+        assertEquals(id, now.getId());
+        assertTrue(store.verifyRollup());
+    }
+
+    @Test
+    void copyIsIndependent() {
+        ExpenseTracker.ExpenseStore store = storeOf(CHUNK + 3);
+        ExpenseTracker.ExpenseStore copy = store.copy();
+        store.set(0, TestLedgers.expense("Rent", 90000, "2024-02-01"));
+        store.remove(CHUNK);
+
+        assertEquals(CHUNK + 3, copy.size());
+        assertEquals(1, copy.get(0).getAmountCents());
+        assertEquals(CHUNK + 1, copy.get(CHUNK).getAmountCents());
+        assertTrue(copy.verifyRollup());
+    }
+
+    @Test
+    void undatedRowsKeepAnEmptyDate() {
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        store.add(TestLedgers.expense("Food", 100, "someday"));
+        assertEquals("", store.get(0).getDate());
+        assertEquals(ExpenseTracker.ExpenseStore.NO_DATE, store.epochDayAt(0));
+        assertEquals(100, store.totalCents());
+    }
+}
@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LedgerEngineTest {
+    @TempDir
+    File dir;
+
+    private final List<IOException> errors = new CopyOnWriteArrayList<>();
+    private ExpenseTracker.LedgerEngine engine;
+
+    @BeforeEach
+    void open() throws IOException {
+        engine = TestLedgers.open(dir, errors);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        engine.close();
+        assertEquals(List.of(), errors);
+    }
+
+    private void reopen() throws Exception {
+        engine.awaitDurable();
+        engine.close();
+        open();
+    }
+
+    private List<String> rows() {
+        return TestLedgers.rows(engine);
+    }
+
+    @Test
+    void undoAndRedoAcrossEditAndDelete() throws Exception {
+        engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        engine.add(TestLedgers.expense("Travel", 4300, "2024-03-03"));
+        engine.edit(0, TestLedgers.expense("Groceries", 1500, "2024-03-01"));
+        engine.delete(1);
+        assertEquals(List.of("Groceries 1500 2024-03-01", "Travel 4300 2024-03-03"), rows());
+
+        assertEquals("delete Rent 900.00", engine.undo());
+        assertEquals(List.of("Groceries 1500 2024-03-01", "Rent 90000 2024-03-02", "Travel 4300 2024-03-03"),
+                rows());
+        assertEquals("edit of Food 12.50", engine.undo());
+        assertEquals(List.of("Food 1250 2024-03-01", "Rent 90000 2024-03-02", "Travel 4300 2024-03-03"), rows());
+        assertEquals(1250 + 90000 + 4300, engine.totalCents());
+
+        assertTrue(engine.canRedo());
+        assertEquals("edit of Food 12.50", engine.redo());
+        assertEquals("delete Rent 900.00", engine.redo());
+        assertFalse(engine.canRedo());
+        assertNull(engine.redo());
+        assertEquals(List.of("Groceries 1500 2024-03-01", "Travel 4300 2024-03-03"), rows());
+        assertEquals(1500 + 4300, engine.totalCents());
+        assertTrue(engine.verifyRollup());
+    }
+
+    @Test
+    void newChangeDiscardsRedo() {
+        engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        engine.delete(0);
+        engine.undo();
+        assertTrue(engine.canRedo());
+
+        engine.edit(0, TestLedgers.expense("Food", 1300, "2024-03-01"));
+        assertFalse(engine.canRedo());
+        assertEquals("edit of Food 12.50", engine.undo());
+        assertEquals("add Food 12.50", engine.undo());
+        assertEquals(0, engine.size());
+        assertFalse(engine.canUndo());
+        assertNull(engine.undo());
+    }
+
+    @Test
+    void importedRowsDiscardRedo() {
+        engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        engine.undo();
+        assertTrue(engine.canRedo());
+
+        // redoing the add now would put Rent back in front of the imported rows
+        int day = ExpenseTracker.ExpenseStore.parseDay("2024-03-05");
+        engine.addRows(new String[] {"Books", "Fuel"}, new long[] {2999, 4500}, new int[] {day, day}, 2);
+        assertFalse(engine.canRedo());
+        assertNull(engine.redo());
+        assertEquals(List.of("Food 1250 2024-03-01", "Books 2999 2024-03-05", "Fuel 4500 2024-03-05"), rows());
+        assertEquals(0, engine.read(ExpenseTracker.ExpenseStore::rebuilds));
+
+        // what came before the import can still be undone
+        assertEquals("add Food 12.50", engine.undo());
+        assertEquals(List.of("Books 2999 2024-03-05", "Fuel 4500 2024-03-05"), rows());
+    }
+
+    @Test
+    void undoneChangesAreJournalled() throws Exception {
+        engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        engine.edit(1, TestLedgers.expense("Rent", 95000, "2024-03-02"));
+        engine.delete(0);
+        engine.undo();
+        engine.undo();
+        List<String> expected = rows();
+
+        reopen();
+        assertEquals(expected, rows());
+        assertEquals(1250 + 90000, engine.totalCents());
+        assertTrue(engine.verifyRollup());
+    }
+}
@@ -0,0 +1,128 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LedgerExporterTest {
+    private static final ExpenseTracker.LedgerFilter ALL = ExpenseTracker.LedgerFilter.ALL;
+
+    @TempDir
+    File dir;
+
+    private final List<IOException> errors = new CopyOnWriteArrayList<>();
+    private final List<Integer> progress = new ArrayList<>();
+    private ExpenseTracker.LedgerEngine engine;
+
+    @BeforeEach
+    void open() throws IOException {
+        engine = TestLedgers.open(dir, errors);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        engine.close();
+        assertEquals(List.of(), errors);
+    }
+
+    private String export(int format, ExpenseTracker.LedgerFilter filter) throws IOException {
+        File file = new File(dir, format == ExpenseTracker.LedgerExporter.JSON ? "out.json" : "out.csv");
+        ExpenseTracker.LedgerExporter exporter = new ExpenseTracker.LedgerExporter(format, filter);
+        exporter.run(engine, file, progress::add, () -> false);
+        assertEquals(file.length(), exporter.bytesWritten());
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private void addSample() {
+        engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        engine.add(TestLedgers.expense("Rent, flat", 90000, "2024-03-02"));
+        engine.add(TestLedgers.expense("Gone", 100, "2024-03-02"));
+        engine.delete(2);
+        // only an import brings in undated rows
+        engine.addRows(new String[] {"Say \"hi\""}, new long[] {5}, new int[] {ExpenseTracker.ExpenseStore.NO_DATE},
+                1);
+    }
+
+    @Test
+    void csvQuotesNamesThatNeedIt() throws Exception {
+        addSample();
+        assertEquals("Category,Amount,Date\n"
+                + "Food,12.50,2024-03-01\n"
+                + "\"Rent, flat\",900.00,2024-03-02\n"
+                + "\"Say \"\"hi\"\"\",0.05,\n", export(ExpenseTracker.LedgerExporter.CSV, ALL));
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+    }
+
+    @Test
+    void jsonIsOneArrayOfRows() throws Exception {
+        assertEquals("[]\n", export(ExpenseTracker.LedgerExporter.JSON, ALL));
+
+        addSample();
+        assertEquals("[\n"
+                + "{\"category\":\"Food\",\"amount\":12.50,\"date\":\"2024-03-01\"},\n"
+                + "{\"category\":\"Rent, flat\",\"amount\":900.00,\"date\":\"2024-03-02\"},\n"
+                + "{\"category\":\"Say \\\"hi\\\"\",\"amount\":0.05,\"date\":\"\"}\n"
+                + "]\n", export(ExpenseTracker.LedgerExporter.JSON, ALL));
+    }
+
+    @Test
+    void filteredExportMatchesAScan() throws Exception {
+        // several batches, and far more than the ring of buffers holds
+        String[] categories = {"Food", "food court", "Fuel", "Rent"};
+        int rows = 150_000;
+        String[] names = new String[rows];
+        long[] cents = new long[rows];
+        int[] days = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            names[i] = categories[i % categories.length];
+            cents[i] = -500 + i % 100_003;
+            days[i] = i % 97 == 0 ? ExpenseTracker.ExpenseStore.NO_DATE : 19358 + i % 730;
+        }
+        engine.addRows(names, cents, days, rows);
+        ExpenseTracker.LedgerFilter filter = ALL.withCategoryPrefix("foo").withAmounts(0, 50_000);
+
+        StringBuilder expected = new StringBuilder("Category,Amount,Date\n");
+        for (int i = 0; i < rows; i++) {
+            if (names[i].toLowerCase(Locale.ROOT).startsWith("foo") && cents[i] >= 0 && cents[i] <= 50_000) {
+                expected.append(names[i]).append(',').append(ExpenseTracker.ExpenseStore.formatCents(cents[i]))
+                        .append(',').append(ExpenseTracker.ExpenseStore.formatDay(days[i])).append('\n');
+            }
+        }
+        assertEquals(expected.toString(), export(ExpenseTracker.LedgerExporter.CSV, filter));
+        assertEquals(List.of(43, 87, 100), progress);
+    }
+
+    @Test
+    void cancelledExportLeavesNoFile() throws Exception {
+        int rows = 100_000;
+        String[] names = new String[rows];
+        Arrays.fill(names, "Food");
+        engine.addRows(names, new long[rows], new int[rows], rows);
+        File file = new File(dir, "out.csv");
+        ExpenseTracker.LedgerExporter exporter = new ExpenseTracker.LedgerExporter(ExpenseTracker.LedgerExporter.CSV,
+                ALL);
+        // stopped once the first batch is on its way out
+        exporter.run(engine, file, progress::add, () -> !progress.isEmpty());
+        assertEquals(List.of(65), progress);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void formatFollowsTheFileName() {
+        assertEquals(ExpenseTracker.LedgerExporter.JSON, ExpenseTracker.LedgerExporter.formatOf(new File("a.JSON")));
+        assertEquals(ExpenseTracker.LedgerExporter.CSV, ExpenseTracker.LedgerExporter.formatOf(new File("a.csv")));
+        assertEquals(ExpenseTracker.LedgerExporter.CSV, ExpenseTracker.LedgerExporter.formatOf(new File("json")));
+    }
+}
@@ -0,0 +1,223 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LedgerFileTest {
+    @TempDir
+    File dir;
+
+    private final List<IOException> errors = new CopyOnWriteArrayList<>();
+
+    private static ExpenseTracker.ExpenseStore sample() {
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        store.add(TestLedgers.expense("Food", 1250, "2024-01-05"));
+        store.add(TestLedgers.expense("Rent", 90000, "2024-02-01"));
+        store.add(TestLedgers.expense("Food", 830, "2024-02-11"));
+        store.add(TestLedgers.expense("Travel", 4300, ""));
+        return store;
+    }
+
+    private static List<String> rows(ExpenseTracker.ExpenseStore store) {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            rows.add(TestLedgers.describe(store.get(i)));
+        }
+        return rows;
+    }
+
+    private static int versionOf(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(4);
+            return raf.readInt();
+        }
+    }
+
+    // A ledger file as an older release wrote it: 16-byte records without ids
+    // before version 5, the budget as a double before version 3, per-category
+    // spending in the dictionary and no rollup in version 1.
+    private static void writeLegacy(File file, int version, ExpenseTracker.ExpenseStore store, long budgetCents)
+            throws IOException {
+        ExpenseTracker.CategoryDictionary categories = store.categories();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream sections = new DataOutputStream(bytes);
+        for (int i = 0; i < categories.size(); i++) {
+            byte[] name = categories.name(i).getBytes(StandardCharsets.UTF_8);
+            sections.writeShort(name.length);
+            sections.write(name);
+            if (version == 1) {
+                sections.writeDouble(0);
+            }
+        }
+        long rollupOffset = ExpenseTracker.LedgerFile.HEADER_SIZE + sections.size();
+        if (version >= 2) {
+            sections.writeInt(store.rollup().cellCount());
+            store.rollup().forEachCell((categoryId, month, cents, count) -> {
+                try {
+                    sections.writeInt(categoryId);
+                    sections.writeInt(month);
+                    sections.writeLong(cents);
+                    sections.writeLong(count);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+        }
+        if (version >= 4) {
+            sections.writeInt(0);
+        }
+        if (version >= 5) {
+            sections.writeInt(store.replica());
+            sections.writeLong(store.nextSerial());
+        }
+        int recordSize = version >= 5 ? ExpenseTracker.LedgerFile.RECORD_SIZE
+                : ExpenseTracker.LedgerFile.LEGACY_RECORD_SIZE;
+        long recordsOffset = ExpenseTracker.LedgerFile.HEADER_SIZE + sections.size();
+        ByteBuffer out = ByteBuffer.allocate((int) recordsOffset + store.size() * recordSize);
+        out.putInt(ExpenseTracker.LedgerFile.MAGIC).putInt(version).putLong(7);
+        if (version >= 3) {
+            out.putLong(budgetCents);
+        } else {
+            out.putDouble(budgetCents / 100.0);
+        }
+        out.putLong(store.totalCents()).putInt(categories.size()).putInt(store.size());
+        out.putLong(ExpenseTracker.LedgerFile.HEADER_SIZE).putLong(recordsOffset).putLong(rollupOffset);
+        out.put(bytes.toByteArray());
+        for (int i = 0; i < store.size(); i++) {
+            out.putInt(store.categoryIdAt(i)).putLong(store.amountCentsAt(i)).putInt(store.epochDayAt(i));
+            if (version >= 5) {
+                out.putLong(store.idAt(i));
+            }
+        }
+        Files.write(file.toPath(), out.array());
+    }
+
+    @Test
+    void currentVersionRoundTrips() throws IOException {
+        ExpenseTracker.ExpenseStore store = sample();
+        store.remove(1);
+        List<ExpenseTracker.BudgetBook.Budget> budgets = List.of(
+                new ExpenseTracker.BudgetBook.Budget("Food", ExpenseTracker.BudgetBook.MONTHLY, 5000),
+                new ExpenseTracker.BudgetBook.Budget(null, ExpenseTracker.BudgetBook.YEARLY, 200000));
+        File file = new File(dir, "ledger");
+        ExpenseTracker.LedgerFile.write(file, store, 123456, budgets, 42);
+
+        ExpenseTracker.LedgerFile ledger = ExpenseTracker.LedgerFile.open(file);
+        assertEquals(ExpenseTracker.LedgerFile.VERSION, ledger.version);
+        assertEquals(42, ledger.generation);
+        assertEquals(123456, ledger.budgetCents);
+        assertEquals(rows(store), rows(ledger.store));
+        assertEquals(store.get(2).getId(), ledger.store.get(2).getId());
+        assertEquals(store.replica(), ledger.store.replica());
+        assertEquals(store.nextSerial(), ledger.store.nextSerial());
+        assertEquals(store.totalCents(), ledger.store.totalCents());
+        assertTrue(ledger.store.verifyRollup());
+
+        assertEquals(2, ledger.budgets.size());
+        assertEquals("Food", ledger.budgets.get(0).category);
+        assertEquals(ExpenseTracker.BudgetBook.MONTHLY, ledger.budgets.get(0).period);
+        assertEquals(5000, ledger.budgets.get(0).limitCents);
+        assertNull(ledger.budgets.get(1).category);
+        assertEquals(200000, ledger.budgets.get(1).limitCents);
+    }
+
+    @Test
+    void everyOlderVersionOpens() throws IOException {
+        ExpenseTracker.ExpenseStore store = sample();
+        for (int version = 1; version < ExpenseTracker.LedgerFile.VERSION; version++) {
+            File file = new File(dir, "v" + version);
+            writeLegacy(file, version, store, 150050);
+
+            ExpenseTracker.LedgerFile ledger = ExpenseTracker.LedgerFile.open(file);
+            assertEquals(version, ledger.version);
+            assertEquals(7, ledger.generation);
+            assertEquals(150050, ledger.budgetCents, "version " + version);
+            assertEquals(rows(store), rows(ledger.store), "version " + version);
+            assertEquals(store.totalCents(), ledger.store.totalCents());
+            assertTrue(ledger.store.verifyRollup(), "version " + version);
+        }
+    }
+
+    @Test
+    void olderVersionIsRewrittenOnLoad() throws Exception {
+        ExpenseTracker.ExpenseStore store = sample();
+        File ledgerFile = new File(dir, "expense_data.ledger");
+        writeLegacy(ledgerFile, 2, store, 150000);
+
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        try {
+            assertEquals(ExpenseTracker.LedgerFile.VERSION, versionOf(ledgerFile));
+            assertEquals(rows(store), TestLedgers.rows(engine));
+            assertEquals(150000, engine.budgetCents());
+
+            // rows written before ids existed get ids that stay put from here on
+            long id = engine.get(1).getId();
+            engine.add(TestLedgers.expense("Books", 2999, "2024-03-01"));
+            engine.awaitDurable();
+            engine.close();
+            engine = TestLedgers.open(dir, errors);
+            assertEquals(id, engine.get(1).getId());
+            assertEquals(5, engine.size());
+        } finally {
+            engine.close();
+        }
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void serializedSnapshotIsMigrated() throws Exception {
+        List<ExpenseTracker.Expense> expenses = new ArrayList<>();
+        expenses.add(TestLedgers.expense("Food", 1250, "2024-01-05"));
+        expenses.add(TestLedgers.expense("Rent", 90000, "2024-02-01"));
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new FileOutputStream(new File(dir, "expense_data.ser")))) {
+            out.writeObject(expenses);
+            out.writeDouble(1000.5);
+            out.writeObject(new HashMap<String, Double>());
+        }
+
+        ExpenseTracker.LedgerEngine engine = TestLedgers.open(dir, errors);
+        try {
+            assertEquals(List.of("Food 1250 2024-01-05", "Rent 90000 2024-02-01"), TestLedgers.rows(engine));
+            assertEquals(100050, engine.budgetCents());
+            assertEquals(ExpenseTracker.LedgerFile.VERSION, versionOf(new File(dir, "expense_data.ledger")));
+        } finally {
+            engine.close();
+        }
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void damagedFilesAreRejected() throws IOException {
+        File file = new File(dir, "ledger");
+        Files.write(file.toPath(), new byte[ExpenseTracker.LedgerFile.HEADER_SIZE]);
+        assertThrows(IOException.class, () -> ExpenseTracker.LedgerFile.open(file));
+
+        writeLegacy(file, ExpenseTracker.LedgerFile.VERSION + 1, sample(), 0);
+        assertThrows(IOException.class, () -> ExpenseTracker.LedgerFile.open(file));
+
+        ExpenseTracker.LedgerFile.write(file, sample(), 0, List.of(), 1);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertThrows(IOException.class, () -> ExpenseTracker.LedgerFile.open(file));
+    }
+}
@@ -0,0 +1,165 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+
+class LedgerFilterTest {
+    private static final ExpenseTracker.LedgerFilter ALL = ExpenseTracker.LedgerFilter.ALL;
+    private static final int NO_DATE = ExpenseTracker.ExpenseStore.NO_DATE;
+
+    private static int day(String date) {
+        return ExpenseTracker.ExpenseStore.parseDay(date);
+    }
+
+    private static List<ExpenseTracker.LedgerFilter> filters() {
+        return List.of(ALL,
+                ALL.withCategoryPrefix("Books"),
+                ALL.withCategoryPrefix(" fOo "),
+                ALL.withCategoryPrefix("food c"),
+                ALL.withCategoryPrefix("nothing"),
+                ALL.withAmounts(100, 200),
+                ALL.withAmounts(9000, Long.MAX_VALUE),
+                ALL.withDays(day("2024-02-01"), day("2024-02-10")),
+                ALL.withDays(day("2023-01-01"), day("2024-06-30")),
+                ALL.withCategoryPrefix("fuel").withAmounts(5000, 7000).withDays(day("2023-03-01"), day("2023-12-31")));
+    }
+
+    // Live physical rows in ledger order that the filter accepts, one by one.
+    private static int[] scan(ExpenseTracker.ExpenseStore store, ExpenseTracker.LedgerFilter filter) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            ExpenseTracker.Expense expense = store.get(i);
+            int day = store.epochDayAt(i);
+            if (expense.getCategory().toLowerCase(Locale.ROOT).startsWith(filter.categoryPrefix)
+                    && expense.getAmountCents() >= filter.minCents && expense.getAmountCents() <= filter.maxCents
+                    && (!filter.hasDays() || day != NO_DATE && day >= filter.fromDay && day <= filter.toDay)) {
+                rows.add(store.rowAt(i));
+            }
+        }
+        return rows.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // The rows stably sorted by column the way the table shows them.
+    private static int[] sorted(ExpenseTracker.ExpenseStore store, int[] rows, int column, boolean descending) {
+        Comparator<Integer> byColumn;
+        if (column == 0) {
+            Comparator<String> names = Comparator.comparing((String name) -> name.toLowerCase(Locale.ROOT))
+                    .thenComparing(Comparator.naturalOrder());
+            byColumn = Comparator.comparing(row -> store.get(store.indexOfRow(row)).getCategory(), names);
+        } else if (column == 1) {
+            byColumn = Comparator.comparingLong(row -> store.get(store.indexOfRow(row)).getAmountCents());
+        } else {
+            byColumn = Comparator.comparingLong(row -> store.epochDayOfRow(row) == NO_DATE
+                    ? Long.MIN_VALUE : store.epochDayOfRow(row));
+        }
+        List<Integer> list = new ArrayList<>();
+        for (int row : rows) {
+            list.add(row);
+        }
+        list.sort(descending ? byColumn.reversed() : byColumn);
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Test
+    void narrowerFiltersAreRecognised() {
+        ExpenseTracker.LedgerFilter food = ALL.withCategoryPrefix("Fo");
+        assertEquals("fo", food.categoryPrefix);
+        assertTrue(food.hasCategory());
+        assertFalse(food.hasDays());
+        assertTrue(ALL.isAll());
+
+        assertTrue(food.narrows(ALL));
+        assertTrue(ALL.withCategoryPrefix("food").narrows(food));
+        assertFalse(ALL.withCategoryPrefix("f").narrows(food));
+        assertFalse(ALL.withCategoryPrefix("fuel").narrows(food));
+        assertFalse(ALL.narrows(food));
+
+        ExpenseTracker.LedgerFilter march = food.withDays(day("2024-03-01"), day("2024-03-31"));
+        assertTrue(march.withDays(day("2024-03-10"), day("2024-03-20")).narrows(march));
+        assertFalse(march.withDays(day("2024-02-28"), day("2024-03-20")).narrows(march));
+        assertFalse(march.withoutDays().narrows(march));
+        assertTrue(march.withAmounts(100, 200).narrows(march));
+        assertFalse(march.withAmounts(100, 200).narrows(march.withAmounts(150, 200)));
+    }
+
+    @Test
+    void categoryIndexMergesInLedgerOrder() {
+        ExpenseTracker.CategoryIndex index = new ExpenseTracker.CategoryIndex();
+        index.add(2, 5);
+        index.add(0, 3);
+        index.add(2, 1);
+        index.add(40, 4);
+        index.add(0, 0);
+        assertEquals(2, index.count(2));
+        assertEquals(0, index.count(7));
+        assertArrayEquals(new int[] {1, 5}, index.rows(new int[] {2}).toArray());
+        assertArrayEquals(new int[] {0, 1, 3, 4, 5}, index.rows(new int[] {40, 2, 0}).toArray());
+        assertArrayEquals(new int[] {0, 3, 1, 5, 4}, index.rowsInOrder(new int[] {0, 2, 40}, false, 5).toArray());
+        assertArrayEquals(new int[] {4, 1, 5, 0, 3}, index.rowsInOrder(new int[] {0, 2, 40}, true, 5).toArray());
+
+        index.remove(2, 1);
+        index.remove(9, 1);
+        assertArrayEquals(new int[] {0, 3, 5}, index.rows(new int[] {0, 2}).toArray());
+    }
+
+    @Test
+    void selectMatchesAScan() {
+        ExpenseTracker.ExpenseStore store = TestLedgers.randomStore(17, 3 * ExpenseTracker.ExpenseStore.CHUNK_SIZE);
+        for (ExpenseTracker.LedgerFilter filter : filters()) {
+            assertArrayEquals(scan(store, filter), store.select(filter, null).toArray(), filter.categoryPrefix);
+        }
+        // again with both indexes built and kept up to date through changes
+        store.dateIndex();
+        store.categoryIndex();
+        store.add(TestLedgers.expense("Books", 150, "2024-02-05"));
+        store.set(8, TestLedgers.expense("Food court", 120, "2023-04-01"));
+        store.remove(30);
+        for (ExpenseTracker.LedgerFilter filter : filters()) {
+            assertArrayEquals(scan(store, filter), store.select(filter, null).toArray(), filter.categoryPrefix);
+        }
+    }
+
+    @Test
+    void narrowerFilterRefinesThePreviousResult() {
+        ExpenseTracker.ExpenseStore store = TestLedgers.randomStore(27, ExpenseTracker.ExpenseStore.CHUNK_SIZE);
+        ExpenseTracker.LedgerFilter wide = ALL.withCategoryPrefix("f");
+        ExpenseTracker.IntList previous = store.select(wide, null);
+        ExpenseTracker.LedgerFilter narrow = wide.withCategoryPrefix("foo").withAmounts(1000, 5000);
+        assertTrue(narrow.narrows(wide));
+        assertArrayEquals(scan(store, narrow), store.select(narrow, previous).toArray());
+
+        // a sorted result keeps its order when refined
+        ExpenseTracker.IntList byAmount = store.sortRows(previous, 1, true);
+        int[] refined = store.select(narrow, byAmount).toArray();
+        assertArrayEquals(sorted(store, scan(store, narrow), 1, true), refined);
+    }
+
+    @Test
+    void sortIsStableOnEveryColumn() {
+        ExpenseTracker.ExpenseStore store = TestLedgers.randomStore(37, 2 * ExpenseTracker.ExpenseStore.CHUNK_SIZE);
+        int[] all = scan(store, ALL);
+        int[] some = scan(store, ALL.withAmounts(2000, 4000));
+        for (int pass = 0; pass < 2; pass++) {
+            for (int column = 0; column < 3; column++) {
+                for (boolean descending : new boolean[] {false, true}) {
+                    String what = "column " + column + (descending ? " descending" : "") + " pass " + pass;
+                    assertArrayEquals(sorted(store, all, column, descending),
+                            store.sortRows(null, column, descending).toArray(), what);
+                    assertArrayEquals(sorted(store, some, column, descending),
+                            store.sortRows(ExpenseTracker.IntList.of(some, some.length), column, descending).toArray(),
+                            what);
+                }
+            }
+            // the second pass walks the indexes for whole-ledger sorts
+            store.categoryIndex();
+            store.dateIndex();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LedgerPartitionsTest {
+    @TempDir
+    File dir;
+
+    private File root() {
+        return new File(dir, "ledgers");
+    }
+
+    private File directoryOf(String username) throws IOException {
+        return new ExpenseTracker.LedgerPartitions(root()).openJournal(username).directory();
+    }
+
+    @Test
+    void eachUserGetsTheirOwnDirectory() throws Exception {
+        File alice = directoryOf("alice");
+        File bob = directoryOf("bob");
+        assertNotEquals(alice, bob);
+        assertEquals(alice, directoryOf("alice"));
+
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        ExpenseTracker.LedgerEngine engine = ExpenseTracker.LedgerEngine.open(
+                new ExpenseTracker.LedgerPartitions(root()).openJournal("alice"), errors::add);
+        engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        engine.awaitDurable();
+        engine.close();
+
+        engine = ExpenseTracker.LedgerEngine.open(
+                new ExpenseTracker.LedgerPartitions(root()).openJournal("bob"), errors::add);
+        try {
+            assertEquals(0, engine.size());
+        } finally {
+            engine.close();
+        }
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void tornIndexRecordIsDropped() throws Exception {
+        File alice = directoryOf("alice");
+        File bob = directoryOf("bob");
+        File index = new File(root(), "index");
+        long whole = index.length();
+
+        // a crash between the two fields of carol's record
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(index, true))) {
+            out.writeUTF("carol");
+        }
+        assertEquals(alice, directoryOf("alice"));
+        assertEquals(whole, index.length());
+
+        // and one part way through the second field
+        File carol = directoryOf("carol");
+        try (RandomAccessFile raf = new RandomAccessFile(index, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertEquals(bob, directoryOf("bob"));
+        assertEquals(whole, index.length());
+
+        // carol's record is gone, so she gets her directory again, and every
+        // record after hers reads back
+        assertEquals(carol, directoryOf("carol"));
+        File dave = directoryOf("dave");
+        ExpenseTracker.LedgerPartitions reopened = new ExpenseTracker.LedgerPartitions(root());
+        assertEquals(carol, reopened.openJournal("carol").directory());
+        assertEquals(dave, reopened.openJournal("dave").directory());
+        assertEquals(4, List.of(alice, bob, carol, dave).stream().distinct().count());
+    }
+}
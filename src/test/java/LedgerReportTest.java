@@ -0,0 +1,120 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+class LedgerReportTest {
+    private static int day(String date) {
+        return ExpenseTracker.ExpenseStore.parseDay(date);
+    }
+
+    // Checks the report against the rows it covers, gathered one at a time.
+    private static void assertMatchesScan(ExpenseTracker.ExpenseStore store, int fromDay, int toDay) {
+        ExpenseTracker.LedgerReport report = ExpenseTracker.LedgerReport.of(store, fromDay, toDay);
+        boolean dated = fromDay != Integer.MIN_VALUE || toDay != Integer.MAX_VALUE;
+        List<Long> amounts = new ArrayList<>();
+        Map<String, long[]> categories = new LinkedHashMap<>();
+        TreeMap<Integer, long[]> months = new TreeMap<>();
+        long[] weekdays = new long[7];
+        for (int i = 0; i < store.size(); i++) {
+            ExpenseTracker.Expense expense = store.get(i);
+            int day = store.epochDayAt(i);
+            if (dated && (day == ExpenseTracker.ExpenseStore.NO_DATE || day < fromDay || day > toDay)) {
+                continue;
+            }
+            long cents = expense.getAmountCents();
+            amounts.add(cents);
+            long[] category = categories.computeIfAbsent(expense.getCategory(), name -> new long[3]);
+            category[0] += cents;
+            category[1]++;
+            category[2] = Math.max(category[2], cents);
+            if (day != ExpenseTracker.ExpenseStore.NO_DATE) {
+                long[] month = months.computeIfAbsent(ExpenseTracker.RollupCube.monthOf(day), m -> new long[2]);
+                month[0] += cents;
+                month[1]++;
+                weekdays[LocalDate.ofEpochDay(day).getDayOfWeek().getValue() - 1] += cents;
+            }
+        }
+        amounts.sort(null);
+        int rows = amounts.size();
+        String range = ExpenseTracker.ExpenseStore.formatDay(fromDay) + " to " + toDay;
+        assertEquals(rows, report.rows, range);
+        assertEquals(amounts.stream().mapToLong(Long::longValue).sum(), report.totalCents, range);
+        assertEquals(rows == 0 ? 0 : amounts.get(rows - 1), report.largestCents, range);
+        assertEquals(rows == 0 ? 0 : amounts.get((rows - 1) / 2), report.medianCents, range);
+        assertEquals(rows == 0 ? 0 : amounts.get((int) ((rows - 1) * 9L / 10)), report.p90Cents, range);
+        assertArrayEquals(weekdays, report.weekdayCents, range);
+
+        assertEquals(categories.size(), report.categoryNames.length, range);
+        for (int i = 0; i < report.categoryNames.length; i++) {
+            long[] category = categories.get(report.categoryNames[i]);
+            assertArrayEquals(category, new long[] {report.categoryCents[i], report.categoryRows[i],
+                    report.categoryLargest[i]}, report.categoryNames[i]);
+            assertTrue(i == 0 || report.categoryCents[i - 1] >= report.categoryCents[i]);
+        }
+
+        if (months.isEmpty()) {
+            assertEquals(0, report.monthCents.length, range);
+            return;
+        }
+        assertEquals((int) months.firstKey(), report.firstMonth, range);
+        assertEquals(months.lastKey() - months.firstKey() + 1, report.monthCents.length, range);
+        for (int m = 0; m < report.monthCents.length; m++) {
+            long[] month = months.getOrDefault(report.firstMonth + m, new long[2]);
+            assertEquals(month[0], report.monthCents[m], range);
+            assertEquals(month[1], report.monthRows[m], range);
+        }
+    }
+
+    @Test
+    void reportMatchesAScan() {
+        // enough rows for more than one parallel slice
+        ExpenseTracker.ExpenseStore store = TestLedgers.randomStore(19, 80_000);
+        assertMatchesScan(store, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        assertMatchesScan(store, day("2023-05-10"), day("2024-02-20"));
+        assertMatchesScan(store, day("2024-03-01"), day("2024-03-01"));
+        assertMatchesScan(store, day("2020-01-01"), day("2020-12-31"));
+        assertMatchesScan(store, day("2024-06-01"), Integer.MAX_VALUE);
+    }
+
+    @Test
+    void monthlyFiguresAndTrend() {
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        store.add(TestLedgers.expense("Food", 10000, "2024-01-01"));
+        store.add(TestLedgers.expense("Rent", 20000, "2024-02-05"));
+        store.add(TestLedgers.expense("Food", 5000, "2024-04-10"));
+        store.add(TestLedgers.expense("Food", 25000, "2024-04-11"));
+        store.add(TestLedgers.expense("Books", 999, ""));
+
+        ExpenseTracker.LedgerReport report = ExpenseTracker.LedgerReport.of(store, Integer.MIN_VALUE,
+                Integer.MAX_VALUE);
+        assertEquals(5, report.rows);
+        assertEquals(60999, report.totalCents);
+        assertEquals(12200, report.averageCents());
+        assertArrayEquals(new String[] {"Food", "Rent", "Books"}, report.categoryNames);
+        // March is kept, empty, between February and April
+        assertArrayEquals(new long[] {10000, 20000, 0, 30000}, report.monthCents);
+        assertArrayEquals(new long[] {1, 1, 0, 2}, report.monthRows);
+        assertEquals(15000, report.monthlyAverageCents());
+        assertEquals(4000, report.trendCentsPerMonth());
+        assertEquals(10000 + 20000, report.weekdayCents[0]);
+        assertTrue(report.format().startsWith("Period: all time\nExpenses: 5   Total: 609.99"));
+        assertTrue(report.format().contains("  2024-03           0.00        0 expenses"), report.format());
+
+        ExpenseTracker.LedgerReport february = ExpenseTracker.LedgerReport.of(store, day("2024-02-01"),
+                day("2024-02-29"));
+        assertEquals(1, february.rows);
+        assertEquals(0, february.trendCentsPerMonth());
+        assertArrayEquals(new long[] {20000}, february.monthCents);
+        assertEquals(Arrays.asList("Rent"), Arrays.asList(february.categoryNames));
+    }
+}
@@ -0,0 +1,188 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LedgerServerTest {
+    private static final String ALICE = "{\"username\":\"alice\",\"password\":\"secret\"}";
+    private static final String LUNCH = "{\"category\":\"Food\",\"amount\":12.50,\"date\":\"2024-03-01\"}";
+
+    @TempDir
+    File dir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private ExpenseTracker.LedgerPartitions partitions;
+    private ExpenseTracker.LedgerServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        partitions = new ExpenseTracker.LedgerPartitions(new File(dir, "ledgers"));
+        ExpenseTracker.UserManager users = new ExpenseTracker.UserManager(
+                new File(dir, "users.log"), new File(dir, "users.ser"));
+        server = new ExpenseTracker.LedgerServer(0, users, partitions);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop();
+    }
+
+    private HttpResponse<String> call(String method, String path, String token, String body) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + path))
+                .method(method, body == null
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private String expect(int status, HttpResponse<String> response) {
+        assertEquals(status, response.statusCode(), response.body());
+        assertEquals("application/json", response.headers().firstValue("Content-Type").orElse(null));
+        return response.body();
+    }
+
+    private String login() throws Exception {
+        expect(200, call("POST", "/register", null, ALICE));
+        String token = ExpenseTracker.LedgerServer.parseJson(expect(200, call("POST", "/login", null, ALICE)))
+                .get("token");
+        assertNotNull(token);
+        return token;
+    }
+
+    @Test
+    void registerLoginAndLogout() throws Exception {
+        String token = login();
+        assertEquals("{\"error\":\"Username already exists\"}", expect(409, call("POST", "/register", null, ALICE)));
+        expect(401, call("POST", "/login", null, "{\"username\":\"alice\",\"password\":\"wrong\"}"));
+        expect(400, call("POST", "/register", null, "{\"username\":\"bob\"}"));
+        expect(400, call("POST", "/login", null, "{\"username\":"));
+
+        expect(200, call("GET", "/summary", token, null));
+        assertEquals(1, server.openLedgers());
+        assertEquals("{}", expect(200, call("POST", "/logout", token, null)));
+        assertEquals(0, server.openLedgers());
+        expect(401, call("GET", "/summary", token, null));
+        expect(401, call("POST", "/logout", token, null));
+    }
+
+    @Test
+    void everyRouteNeedsASession() throws Exception {
+        for (String[] route : new String[][] {
+                {"POST", "/logout"}, {"GET", "/summary"}, {"PUT", "/budget"}, {"POST", "/undo"},
+                {"POST", "/redo"}, {"GET", "/expenses"}, {"POST", "/expenses"}, {"GET", "/expenses/0"},
+                {"PUT", "/expenses/0"}, {"DELETE", "/expenses/0"}}) {
+            assertEquals("{\"error\":\"Login required\"}", expect(401, call(route[0], route[1], null, null)));
+            expect(401, call(route[0], route[1], "not-a-token", null));
+        }
+    }
+
+    @Test
+    void expenseRoutesRoundTrip() throws Exception {
+        String token = login();
+        assertEquals("{\"position\":0}", expect(200, call("POST", "/expenses", token, LUNCH)));
+        assertEquals("{\"position\":1}", expect(200, call("POST", "/expenses", token,
+                "{\"category\":\"Rent \\\"March\\\"\",\"amount\":900,\"date\":\"2024-03-02\"}")));
+
+        assertEquals(LUNCH, expect(200, call("GET", "/expenses/0", token, null)));
+        assertEquals("[" + LUNCH + ",{\"category\":\"Rent \\\"March\\\"\",\"amount\":900.00,\"date\":\"2024-03-02\"}]",
+                expect(200, call("GET", "/expenses", token, null)));
+        assertEquals("[{\"category\":\"Rent \\\"March\\\"\",\"amount\":900.00,\"date\":\"2024-03-02\"}]",
+                expect(200, call("GET", "/expenses?offset=1&limit=5", token, null)));
+        assertEquals("[]", expect(200, call("GET", "/expenses?offset=2", token, null)));
+
+        // PUT and DELETE answer with the row as it was
+        assertEquals(LUNCH, expect(200, call("PUT", "/expenses/0", token,
+                "{\"category\":\"Groceries\",\"amount\":\"15\",\"date\":\"2024-03-01\"}")));
+        assertEquals("{\"category\":\"Groceries\",\"amount\":15.00,\"date\":\"2024-03-01\"}",
+                expect(200, call("GET", "/expenses/0", token, null)));
+        assertEquals("{\"category\":\"Groceries\",\"amount\":15.00,\"date\":\"2024-03-01\"}",
+                expect(200, call("DELETE", "/expenses/0", token, null)));
+        assertEquals("{\"count\":1,\"total\":900.00,\"budget\":0.00}",
+                expect(200, call("GET", "/summary", token, null)));
+
+        expect(404, call("GET", "/expenses/5", token, null));
+        expect(404, call("DELETE", "/expenses/1", token, null));
+        expect(400, call("GET", "/expenses/x", token, null));
+        expect(400, call("POST", "/expenses", token, "{\"category\":\"Food\",\"amount\":1}"));
+        expect(400, call("POST", "/expenses", token,
+                "{\"category\":\"Food\",\"amount\":1,\"date\":\"2024-02-30\"}"));
+        expect(405, call("PATCH", "/expenses/0", token, LUNCH));
+        expect(405, call("DELETE", "/expenses", token, null));
+    }
+
+    @Test
+    void budgetUndoAndRedoRoundTrip() throws Exception {
+        String token = login();
+        assertEquals("{\"error\":\"Nothing to undo\"}", expect(404, call("POST", "/undo", token, null)));
+        assertEquals("{\"error\":\"Nothing to redo\"}", expect(404, call("POST", "/redo", token, null)));
+
+        assertEquals("{}", expect(200, call("PUT", "/budget", token, "{\"amount\":250.75}")));
+        expect(200, call("POST", "/expenses", token, LUNCH));
+        expect(200, call("DELETE", "/expenses/0", token, null));
+        assertEquals("{\"count\":0,\"total\":0.00,\"budget\":250.75}",
+                expect(200, call("GET", "/summary", token, null)));
+
+        assertEquals("{\"undone\":\"delete Food 12.50\"}", expect(200, call("POST", "/undo", token, null)));
+        assertEquals("{\"undone\":\"add Food 12.50\"}", expect(200, call("POST", "/undo", token, null)));
+        assertEquals("{\"undone\":\"budget 250.75\"}", expect(200, call("POST", "/undo", token, null)));
+        assertEquals("{\"count\":0,\"total\":0.00,\"budget\":0.00}",
+                expect(200, call("GET", "/summary", token, null)));
+
+        assertEquals("{\"redone\":\"budget 250.75\"}", expect(200, call("POST", "/redo", token, null)));
+        assertEquals("{\"redone\":\"add Food 12.50\"}", expect(200, call("POST", "/redo", token, null)));
+        assertEquals("{\"count\":1,\"total\":12.50,\"budget\":250.75}",
+                expect(200, call("GET", "/summary", token, null)));
+
+        expect(400, call("PUT", "/budget", token, "{\"amount\":-1}"));
+        expect(400, call("PUT", "/budget", token, "{}"));
+        expect(405, call("GET", "/budget", token, null));
+    }
+
+    @Test
+    void ledgerOutlivesTheServer() throws Exception {
+        String token = login();
+        expect(200, call("POST", "/expenses", token, LUNCH));
+        expect(200, call("PUT", "/budget", token, "{\"amount\":100}"));
+        server.stop();
+
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        ExpenseTracker.LedgerEngine engine = ExpenseTracker.LedgerEngine.open(partitions.openJournal("alice"),
+                errors::add);
+        try {
+            assertEquals(List.of("Food 1250 2024-03-01"), TestLedgers.rows(engine));
+            assertEquals(10000, engine.budgetCents());
+        } finally {
+            engine.close();
+        }
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void sessionsSeeTheirOwnLedger() throws Exception {
+        String alice = login();
+        expect(200, call("POST", "/register", null, "{\"username\":\"bob\",\"password\":\"pw\"}"));
+        String bob = ExpenseTracker.LedgerServer.parseJson(
+                expect(200, call("POST", "/login", null, "{\"username\":\"bob\",\"password\":\"pw\"}")))
+                .get("token");
+
+        expect(200, call("POST", "/expenses", alice, LUNCH));
+        assertEquals("[]", expect(200, call("GET", "/expenses", bob, null)));
+        assertEquals(2, server.openLedgers());
+    }
+}
@@ -0,0 +1,218 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LedgerSyncTest {
+    @TempDir
+    File dir;
+
+    private final List<IOException> errors = new CopyOnWriteArrayList<>();
+    private File shared;
+    private Replica laptop;
+    private Replica phone;
+
+    private final class Replica {
+        final File home;
+        ExpenseTracker.LedgerEngine engine;
+        ExpenseTracker.LedgerSync sync;
+
+        Replica(String name) throws IOException {
+            home = new File(dir, name);
+            assertTrue(home.mkdirs());
+            open();
+        }
+
+        void open() throws IOException {
+            engine = TestLedgers.open(home, errors);
+            sync = ExpenseTracker.LedgerSync.open(home, engine);
+        }
+
+        void close() throws Exception {
+            engine.awaitDurable();
+            engine.close();
+        }
+
+        ExpenseTracker.LedgerSync.Report sync() throws IOException {
+            return sync.syncWith(shared);
+        }
+
+        long stateBytes() {
+            return new File(home, "sync.state").length();
+        }
+
+        int positionOf(long id) {
+            for (int i = 0; i < engine.size(); i++) {
+                if (engine.get(i).getId() == id) {
+                    return i;
+                }
+            }
+            throw new AssertionError("No row with id " + id);
+        }
+
+        // Replicas may order concurrently added rows differently, so compare contents.
+        List<String> rows() {
+            List<String> rows = new ArrayList<>();
+            for (int i = 0; i < engine.size(); i++) {
+                ExpenseTracker.Expense expense = engine.get(i);
+                rows.add(expense.getId() + " " + expense.getCategory() + " " + expense.getAmountCents()
+                        + " " + expense.getDate());
+            }
+            Collections.sort(rows);
+            return rows;
+        }
+    }
+
+    @BeforeEach
+    void open() throws IOException {
+        shared = new File(dir, "shared");
+        assertTrue(shared.mkdirs());
+        laptop = new Replica("laptop");
+        phone = new Replica("phone");
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        laptop.close();
+        phone.close();
+        assertEquals(List.of(), errors);
+    }
+
+    private void syncAll() throws IOException {
+        laptop.sync();
+        phone.sync();
+        laptop.sync();
+    }
+
+    @Test
+    void replicasConvergeOnIndependentChanges() throws Exception {
+        assertNotEquals(laptop.engine.replica(), phone.engine.replica());
+        laptop.engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        laptop.engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        phone.engine.add(TestLedgers.expense("Coffee", 350, "2024-03-02"));
+
+        ExpenseTracker.LedgerSync.Report report = laptop.sync();
+        assertEquals(2, report.pushed);
+        assertEquals(0, report.pulled);
+        report = phone.sync();
+        assertEquals(1, report.pushed);
+        assertEquals(2, report.applied);
+        report = laptop.sync();
+        assertEquals(0, report.pushed);
+        assertEquals(1, report.applied);
+
+        assertEquals(3, laptop.engine.size());
+        assertEquals(laptop.rows(), phone.rows());
+        assertEquals(laptop.engine.totalCents(), phone.engine.totalCents());
+
+        // a second round has nothing left to move
+        assertEquals(0, laptop.sync().pulled);
+        assertEquals(0, phone.sync().pulled);
+    }
+
+    @Test
+    void replicasConvergeOnConflictingChanges() throws Exception {
+        laptop.engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        laptop.engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        syncAll();
+        long food = laptop.engine.get(0).getId();
+        long rent = laptop.engine.get(1).getId();
+
+        laptop.engine.edit(laptop.positionOf(food), TestLedgers.expense("Food", 1300, "2024-03-01"));
+        phone.engine.edit(phone.positionOf(food), TestLedgers.expense("Groceries", 1400, "2024-03-01"));
+        phone.engine.edit(phone.positionOf(rent), TestLedgers.expense("Rent", 95000, "2024-03-02"));
+        laptop.engine.delete(laptop.positionOf(rent));
+        syncAll();
+
+        assertEquals(laptop.rows(), phone.rows());
+        assertEquals(laptop.engine.totalCents(), phone.engine.totalCents());
+        assertTrue(laptop.engine.verifyRollup());
+        assertTrue(phone.engine.verifyRollup());
+    }
+
+    @Test
+    void replicaCatchesUpAfterReopening() throws Exception {
+        laptop.engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        syncAll();
+        phone.close();
+
+        laptop.engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        laptop.engine.edit(0, TestLedgers.expense("Food", 1500, "2024-03-01"));
+        laptop.sync();
+
+        phone.open();
+        assertEquals(1, phone.engine.size());
+        ExpenseTracker.LedgerSync.Report report = phone.sync();
+        assertEquals(2, report.pulled);
+        assertEquals(laptop.rows(), phone.rows());
+    }
+
+    @Test
+    void stampsAreDroppedOnceEveryReplicaIsPastThem() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            laptop.engine.add(TestLedgers.expense("Food", 100 + i, "2024-03-01"));
+        }
+        syncAll();
+        long stateBefore = laptop.stateBytes();
+        for (int i = 0; i < 100; i++) {
+            laptop.engine.delete(0);
+            laptop.engine.edit(0, TestLedgers.expense("Food", 1, "2024-03-01"));
+        }
+        assertEquals(101, laptop.sync.stampCount());
+
+        // the phone has read the changes but the laptop cannot know that yet
+        laptop.sync();
+        phone.sync();
+        assertEquals(101, laptop.sync.stampCount());
+        // the phone took its stamps from the laptop's file, which it has read past them
+        assertEquals(0, phone.sync.stampCount());
+
+        // once the phone has changed something since, the laptop is sure of it
+        phone.engine.add(TestLedgers.expense("Coffee", 350, "2024-03-04"));
+        phone.sync();
+        laptop.sync();
+        assertEquals(0, laptop.sync.stampCount());
+        assertEquals(stateBefore, laptop.stateBytes());
+        assertEquals(laptop.rows(), phone.rows());
+
+        // changes made from here on still resolve the same way on both
+        long id = laptop.engine.get(0).getId();
+        phone.engine.edit(phone.positionOf(id), TestLedgers.expense("Books", 2000, "2024-03-01"));
+        laptop.engine.delete(laptop.positionOf(id));
+        syncAll();
+        phone.sync();
+        assertEquals(laptop.rows(), phone.rows());
+    }
+
+    @Test
+    void stampsOutliveAReopen() throws Exception {
+        laptop.engine.add(TestLedgers.expense("Food", 1250, "2024-03-01"));
+        laptop.engine.add(TestLedgers.expense("Rent", 90000, "2024-03-02"));
+        syncAll();
+        laptop.engine.edit(0, TestLedgers.expense("Food", 1300, "2024-03-01"));
+        laptop.engine.edit(0, TestLedgers.expense("Food", 1400, "2024-03-01"));
+        laptop.engine.delete(1);
+        laptop.sync();
+        laptop.close();
+        laptop.open();
+        assertEquals(2, laptop.sync.stampCount());
+
+        // the phone edits the deleted row before it has seen the delete, which
+        // the laptop made later on its clock, so the delete wins on both
+        phone.engine.edit(1, TestLedgers.expense("Rent", 95000, "2024-03-02"));
+        syncAll();
+        assertEquals(List.of("Food 1400 2024-03-01"), TestLedgers.rows(laptop.engine));
+        assertEquals(laptop.rows(), phone.rows());
+    }
+}
@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class RollupCubeTest {
+    private static int month(String date) {
+        return ExpenseTracker.RollupCube.monthOf(ExpenseTracker.ExpenseStore.parseDay(date));
+    }
+
+    @Test
+    void monthOfMatchesLocalDate() {
+        for (int day = -800_000; day <= 800_000; day += 17) {
+            LocalDate date = LocalDate.ofEpochDay(day);
+            assertEquals(date.getYear() * 12 + date.getMonthValue() - 1, ExpenseTracker.RollupCube.monthOf(day),
+                    date.toString());
+        }
+        assertEquals(ExpenseTracker.RollupCube.NO_MONTH,
+                ExpenseTracker.RollupCube.monthOf(ExpenseTracker.ExpenseStore.NO_DATE));
+    }
+
+    @Test
+    void marginsAndCellsAddUp() {
+        ExpenseTracker.RollupCube cube = new ExpenseTracker.RollupCube();
+        Map<String, Long> cells = new HashMap<>();
+        long[] categories = new long[200];
+        Random random = new Random(8);
+        long total = 0;
+        // months spread both sides of the first one and more cells than the
+        // table starts with, so the month array and the table both grow
+        for (int i = 0; i < 5000; i++) {
+            int category = random.nextInt(categories.length);
+            int day = ExpenseTracker.ExpenseStore.parseDay("2024-06-15") - 1500 + random.nextInt(3000);
+            long cents = 1 + random.nextInt(10000);
+            cube.add(category, cents, day);
+            cells.merge(category + "/" + ExpenseTracker.RollupCube.monthOf(day), cents, Long::sum);
+            categories[category] += cents;
+            total += cents;
+        }
+        cube.add(3, 700, ExpenseTracker.ExpenseStore.NO_DATE);
+        total += 700;
+        categories[3] += 700;
+
+        assertEquals(total, cube.totalCents());
+        assertEquals(5001, cube.count());
+        assertEquals(700, cube.monthCents(ExpenseTracker.RollupCube.NO_MONTH));
+        for (int category = 0; category < categories.length; category++) {
+            assertEquals(categories[category], cube.categoryCents(category));
+        }
+        assertEquals(0, cube.categoryCents(categories.length + 5));
+        assertEquals(cells.size() + 1, cube.cellCount());
+        cube.forEachCell((category, month, cents, rows) -> {
+            if (month != ExpenseTracker.RollupCube.NO_MONTH) {
+                assertEquals(cells.get(category + "/" + month), cents);
+            }
+        });
+
+        long dated = 0;
+        for (int m = cube.firstMonth(); m < cube.firstMonth() + cube.monthSpan(); m++) {
+            dated += cube.monthCents(m);
+        }
+        assertEquals(total - 700, dated);
+        assertEquals(dated, cube.periodCents(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        long march = 0;
+        for (int category = 0; category < categories.length; category++) {
+            march += cube.cellCents(category, month("2024-03-01"));
+        }
+        assertEquals(march, cube.monthCents(month("2024-03-01")));
+        assertEquals(march, cube.periodCents(month("2024-03-01"), month("2024-03-01")));
+    }
+
+    @Test
+    void removingEveryRowEmptiesTheCell() {
+        ExpenseTracker.RollupCube cube = new ExpenseTracker.RollupCube();
+        int day = ExpenseTracker.ExpenseStore.parseDay("2024-02-10");
+        cube.add(1, 500, day);
+        cube.add(1, 300, day + 5);
+        cube.add(2, 900, day);
+        cube.remove(1, 500, day);
+        assertEquals(2, cube.cellCount());
+        cube.remove(1, 300, day + 5);
+        assertEquals(1, cube.cellCount());
+        assertEquals(0, cube.categoryCents(1));
+        assertEquals(900, cube.monthCents(month("2024-02-01")));
+        assertEquals(900, cube.totalCents());
+        assertEquals(1, cube.count());
+    }
+
+    @Test
+    void storeRollupMatchesARebuild() {
+        ExpenseTracker.ExpenseStore store = TestLedgers.randomStore(18, 2 * ExpenseTracker.ExpenseStore.CHUNK_SIZE);
+        assertTrue(store.rollup().sameAs(ExpenseTracker.RollupCube.of(store)));
+        assertEquals(store.totalCents(), store.rollup().totalCents());
+        assertEquals(store.size(), store.rollup().count());
+
+        ExpenseTracker.RollupCube before = ExpenseTracker.RollupCube.of(store);
+        store.set(0, TestLedgers.expense("Rent", store.get(0).getAmountCents() + 1, store.get(0).getDate()));
+        assertFalse(store.rollup().sameAs(before));
+        assertTrue(store.verifyRollup());
+    }
+}
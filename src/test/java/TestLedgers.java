@@ -0,0 +1,62 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Ledgers in a test's temporary directory, laid out the way LedgerPartitions
+// lays out a user's directory.
+final class TestLedgers {
+    private TestLedgers() {
+    }
+
+    static ExpenseTracker.ExpenseJournal journal(File dir) {
+        return new ExpenseTracker.ExpenseJournal(new File(dir, "expense_data.ledger").getPath(),
+                new File(dir, "expense_data.ser").getPath(),
+                new File(dir, "expense_data.journal").getPath());
+    }
+
+    // Journal writer failures land in errors, which the test checks is empty.
+    static ExpenseTracker.LedgerEngine open(File dir, List<IOException> errors) throws IOException {
+        return ExpenseTracker.LedgerEngine.open(journal(dir), errors::add);
+    }
+
+    static ExpenseTracker.Expense expense(String category, long cents, String date) {
+        return new ExpenseTracker.Expense(category, cents, date);
+    }
+
+    // A store of seeded random rows across two years with some undated, then
+    // edited and thinned out, so it has dead rows and rewritten cells.
+    static ExpenseTracker.ExpenseStore randomStore(long seed, int rows) {
+        String[] categories = {"Food", "food court", "Fuel", "Rent", "Travel", "Books", "FOOD"};
+        Random random = new Random(seed);
+        ExpenseTracker.ExpenseStore store = new ExpenseTracker.ExpenseStore();
+        for (int i = 0; i < rows; i++) {
+            store.add(randomExpense(random, categories));
+        }
+        for (int i = 0; i < rows / 10; i++) {
+            store.set(random.nextInt(store.size()), randomExpense(random, categories));
+            store.remove(random.nextInt(store.size()));
+        }
+        return store;
+    }
+
+    private static ExpenseTracker.Expense randomExpense(Random random, String[] categories) {
+        String date = random.nextInt(50) == 0 ? ""
+                : ExpenseTracker.ExpenseStore.formatDay(19358 + random.nextInt(730));
+        return expense(categories[random.nextInt(categories.length)], 1 + random.nextInt(10000), date);
+    }
+
+    // Rows in ledger order as "category cents date".
+    static List<String> rows(ExpenseTracker.LedgerEngine engine) {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < engine.size(); i++) {
+            rows.add(describe(engine.get(i)));
+        }
+        return rows;
+    }
+
+    static String describe(ExpenseTracker.Expense expense) {
+        return expense.getCategory() + " " + expense.getAmountCents() + " " + expense.getDate();
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UserManagerTest {
+    @TempDir
+    File dir;
+
+    private File log() {
+        return new File(dir, "users.log");
+    }
+
+    private ExpenseTracker.UserManager open() {
+        return new ExpenseTracker.UserManager(log(), new File(dir, "users.ser"));
+    }
+
+    @Test
+    void registeredUsersOutliveARestart() throws Exception {
+        ExpenseTracker.UserManager users = open();
+        assertTrue(users.registerUser("alice", "secret"));
+        assertTrue(users.registerUser("bob", "hunter2"));
+        assertFalse(users.registerUser("alice", "other"));
+        assertTrue(users.authenticateUser("alice", "secret"));
+
+        users = open();
+        assertTrue(users.authenticateUser("alice", "secret"));
+        assertTrue(users.authenticateUser("bob", "hunter2"));
+        assertFalse(users.authenticateUser("alice", "other"));
+        assertFalse(users.authenticateUser("carol", "secret"));
+    }
+
+    @Test
+    void tornRecordIsDropped() throws Exception {
+        ExpenseTracker.UserManager users = open();
+        users.registerUser("alice", "secret");
+        long whole = log().length();
+        // a crash between carol's name and her password
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log(), true))) {
+            out.writeUTF("carol");
+            out.writeUTF("pass");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(log(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        users = open();
+        assertEquals(whole, log().length());
+        assertFalse(users.authenticateUser("carol", "pas"));
+        assertTrue(users.registerUser("carol", "pass"));
+        assertTrue(open().authenticateUser("carol", "pass"));
+        assertTrue(open().authenticateUser("alice", "secret"));
+    }
+
+    @Test
+    void legacyUserFileIsImported() throws Exception {
+        Map<String, ExpenseTracker.User> legacy = new HashMap<>();
+        legacy.put("alice", new ExpenseTracker.User("alice", "secret"));
+        legacy.put("bob", new ExpenseTracker.User("bob", "hunter2"));
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(dir, "users.ser")))) {
+            out.writeObject(legacy);
+        }
+
+        ExpenseTracker.UserManager users = open();
+        assertTrue(users.authenticateUser("alice", "secret"));
+        assertTrue(users.authenticateUser("bob", "hunter2"));
+        assertTrue(log().exists());
+
+        // from here on the log is read and the old file is left alone
+        new File(dir, "users.ser").delete();
+        assertTrue(open().authenticateUser("bob", "hunter2"));
+    }
+}